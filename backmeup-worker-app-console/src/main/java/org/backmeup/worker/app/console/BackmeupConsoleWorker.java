@@ -15,7 +15,17 @@ public class BackmeupConsoleWorker {
 
     public static void main(String[] args) {
         LOGGER.info("Starting backmeup worker core");
-        WorkerCore worker = new WorkerCore();
+        final WorkerCore worker = new WorkerCore();
+
+        // Drain the worker when the process is terminated (e.g. on deploys)
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                LOGGER.info("Shutting down backmeup worker core");
+                worker.shutdown();
+                LOGGER.info("Shutdown complete");
+            }
+        }, "backmeup-worker-shutdown"));
 
         LOGGER.info("Initializing worker");
         worker.initialize();
@@ -26,7 +36,7 @@ public class BackmeupConsoleWorker {
         LOGGER.info("Starting worker done.");
 
         LOGGER.info("Backmeup worker core startet");
-        LOGGER.info("Press any key to quit");
+        LOGGER.info("Press any key to quit, running jobs are drained first");
         try {
             System.in.read();
         } catch (IOException e) {
@@ -2,6 +2,8 @@ package org.backmeup.worker.app.servlet;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -13,6 +15,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.backmeup.worker.WorkerCore;
 import org.backmeup.worker.WorkerInitialisationTask;
 import org.backmeup.worker.app.servlet.model.WorkerData;
+import org.backmeup.worker.config.Configuration;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,6 +47,52 @@ public class WorkerServlet extends HttpServlet {
         LOGGER.info("scheduled worker initialisation in " + SECONDS_BEFORE_INITIALISATION + " seconds.");
     }
 
+    /**
+     * Starts draining the worker if the parameter action is "drain". The
+     * optional parameter timeout gives the seconds running jobs may take to
+     * finish. Responds with the state of the worker, including the progress
+     * of the drain.
+     * 
+     * A drained worker stays offline until it is restarted, so the drain is
+     * only accepted from the local host (e.g. a deployment script), other
+     * clients get 403.
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!isLocalRequest(request)) {
+            LOGGER.warn("Rejected drain request from {}", request.getRemoteAddr());
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Only allowed from the local host");
+            return;
+        }
+        if (!"drain".equals(request.getParameter("action"))) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown action");
+            return;
+        }
+
+        final long timeout;
+        try {
+            String timeoutParam = request.getParameter("timeout");
+            timeout = timeoutParam != null ? Long.parseLong(timeoutParam)
+                    : Long.parseLong(Configuration.getProperty("backmeup.worker.drain.timeoutSeconds", "300"));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid timeout");
+            return;
+        }
+
+        if (!this.worker.isDraining()) {
+            Thread drainThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    worker.drain(timeout, TimeUnit.SECONDS);
+                }
+            }, "backmeup-worker-drain");
+            drainThread.setDaemon(true);
+            drainThread.start();
+        }
+
+        doGet(request, response);
+    }
+
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
         WorkerData workerData = new WorkerData();
@@ -53,6 +102,7 @@ public class WorkerServlet extends HttpServlet {
         workerData.setNoOfFetchedJobs(this.worker.getNoOfFetchedJobs());
         workerData.setNoOfFinishedJobs(this.worker.getNoOfFinishedJobs());
         workerData.setNoOfFailedJobs(this.worker.getNoOfFailedJobs());
+        workerData.setDrainProgress(this.worker.getDrainProgress());
 
         response.setContentType("application/json");
 
@@ -69,6 +119,14 @@ public class WorkerServlet extends HttpServlet {
         }
     }
 
+    private static boolean isLocalRequest(HttpServletRequest request) {
+        try {
+            return InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
     @Override
     public void destroy() {
         LOGGER.info("Shutting down backmeup worker core");
@@ -1,5 +1,6 @@
 package org.backmeup.worker.app.servlet.model;
 
+import org.backmeup.worker.WorkerCore.DrainProgress;
 import org.backmeup.worker.WorkerCore.WorkerState;
 
 public class WorkerData {
@@ -9,6 +10,7 @@ public class WorkerData {
     private int noOfFetchedJobs;
     private int noOfFinishedJobs;
     private int noOfFailedJobs;
+    private DrainProgress drainProgress;
 
     public WorkerData() {
 
@@ -62,4 +64,12 @@ public class WorkerData {
         this.noOfFailedJobs = noOfFailedJobs;
     }
 
+    public DrainProgress getDrainProgress() {
+        return drainProgress;
+    }
+
+    public void setDrainProgress(DrainProgress drainProgress) {
+        this.drainProgress = drainProgress;
+    }
+
 }
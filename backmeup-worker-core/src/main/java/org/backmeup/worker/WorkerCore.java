@@ -3,14 +3,27 @@ package org.backmeup.worker;
 import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.backmeup.model.constants.JobExecutionStatus;
+import org.backmeup.model.dto.BackupJobExecutionDTO;
 import org.backmeup.model.dto.WorkerConfigDTO;
 import org.backmeup.model.dto.WorkerConfigDTO.DistributionMechanism;
 import org.backmeup.model.dto.WorkerInfoDTO;
@@ -18,17 +31,44 @@ import org.backmeup.plugin.infrastructure.PluginManager;
 import org.backmeup.service.client.BackmeupService;
 import org.backmeup.service.client.impl.BackmeupServiceClient;
 import org.backmeup.worker.config.Configuration;
+import org.backmeup.worker.http.PooledHttpTransport;
+import org.backmeup.worker.job.BackupJobRunner;
 import org.backmeup.worker.job.BackupJobWorkerThread;
+import org.backmeup.worker.job.action.ActionDependencies;
+import org.backmeup.worker.job.action.ActionScheduler;
+import org.backmeup.worker.job.admission.AdaptiveConcurrencyController;
+import org.backmeup.worker.job.admission.JobAdmissionController;
+import org.backmeup.worker.job.admission.JobDeduplicationIndex;
+import org.backmeup.worker.job.bandwidth.BandwidthGovernor;
+import org.backmeup.worker.job.bandwidth.BandwidthSchedule;
+import org.backmeup.worker.job.download.DownloadScheduler;
+import org.backmeup.worker.job.incremental.IncrementalBackupFilter;
+import org.backmeup.worker.job.prefetch.JobExecutionPrefetcher;
 import org.backmeup.worker.job.receiver.JobReceivedEvent;
 import org.backmeup.worker.job.receiver.JobReceivedListener;
+import org.backmeup.worker.job.receiver.JobReceiver;
 import org.backmeup.worker.job.receiver.RabbitMQJobReceiver;
+import org.backmeup.worker.job.scheduling.JobScheduler;
+import org.backmeup.worker.job.scheduling.JobSchedulingInfo;
+import org.backmeup.worker.job.scheduling.JobSchedulingQueue;
+import org.backmeup.worker.job.scheduling.JobSizeEstimator;
+import org.backmeup.worker.job.scheduling.SchedulingPolicy;
+import org.backmeup.worker.job.stage.StagedJobExecutor;
+import org.backmeup.worker.job.status.JobStatusUpdater;
+import org.backmeup.worker.job.threadpool.JobThreadFactory;
 import org.backmeup.worker.job.threadpool.ObservableThreadPoolExecutor;
+import org.backmeup.worker.job.threadpool.PluginBulkhead;
 import org.backmeup.worker.job.threadpool.ThreadPoolListener;
+import org.backmeup.worker.job.upload.ParallelUploadEngine;
+import org.backmeup.worker.job.workdir.WorkDirectoryManager;
+import org.backmeup.worker.outbox.ServiceOutbox;
 import org.backmeup.worker.perfmon.PerformanceMonitor;
+import org.backmeup.worker.service.ResilientBackmeupService;
 import org.backmeup.worker.utils.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.netflix.servo.monitor.BasicGauge;
 import com.netflix.servo.monitor.MonitorConfig;
 import com.netflix.servo.monitor.Monitors;
 import com.netflix.servo.monitor.NumberGauge;
@@ -36,6 +76,9 @@ import com.netflix.servo.monitor.NumberGauge;
 public class WorkerCore {
     private static final Logger LOGGER = LoggerFactory.getLogger(WorkerCore.class);
     private static final int WORKER_CONFIG_TIMEOUT_SECONDS = 60;
+    private static final long WORKER_CONFIG_INITIAL_RETRY_DELAY_MILLIS = 1000;
+    private static final long WORKER_CONFIG_MAX_RETRY_DELAY_MILLIS = 16000;
+    private static final long DRAIN_PROGRESS_INTERVAL_MILLIS = 5000;
 
     private final String workerId;
     private final String workerSecret;
@@ -45,24 +88,55 @@ public class WorkerCore {
     private WorkerState currentState;
 
     private final int maxWorkerThreads;
+    private final int jobQueueSize;
     private final AtomicInteger noOfRunningJobs;
     private final AtomicInteger noOfFetchedJobs;
     private final AtomicInteger noOfFinishedJobs;
     private final AtomicInteger noOfFaildJobs;
 
     @SuppressWarnings({ "unused", "PMD.SingularField" })
-    private final NumberGauge maxJobsGauge;
+    private final BasicGauge<Integer> maxJobsGauge;
     @SuppressWarnings({ "unused", "PMD.SingularField" })
     private final NumberGauge noOfRunningJobsGauge;
 
     private PluginManager pluginManager;
+    private final PooledHttpTransport httpTransport;
+    private final ResilientBackmeupService serviceResilience;
     private final BackmeupService bmuServiceClient;
 
     private final String jobTempDir;
+    private final WorkDirectoryManager workDirectoryManager;
+    private final IncrementalBackupFilter incrementalFilter;
     private String backupName;
 
-    private RabbitMQJobReceiver jobReceiver;
+    private final List<JobReceiver> jobReceivers;
+    private final JobAdmissionController admissionController;
+    private final AdaptiveConcurrencyController concurrencyController;
+    private final JobDeduplicationIndex deduplicationIndex;
+    private final JobSizeEstimator sizeEstimator;
+    private final JobScheduler jobScheduler;
     private final ObservableThreadPoolExecutor executorPool;
+    private final PluginBulkhead bulkhead;
+    private final ScheduledExecutorService requeueScheduler;
+    private final long requeueDelayMillis;
+    private final StagedJobExecutor stageExecutor;
+    private final ActionScheduler actionScheduler;
+    private final ParallelUploadEngine uploadEngine;
+    private final DownloadScheduler downloadScheduler;
+    private final BandwidthGovernor downloadGovernor;
+    private final BandwidthGovernor uploadGovernor;
+    private final JobStatusUpdater statusUpdater;
+    private final ServiceOutbox outbox;
+    private final JobExecutionPrefetcher prefetcher;
+    private BackupJobRunner jobRunner;
+    private final ConcurrentMap<BackupJobWorkerThread, JobReceivedEvent> receivedJobs;
+
+    private volatile boolean draining;
+    private volatile long drainDeadline;
+    private final AtomicInteger noOfRequeuedJobs;
+    private final AtomicInteger noOfAbandonedJobs;
+    private final AtomicBoolean shutdown;
+    private final CountDownLatch shutdownCompleted;
 
     // Constructor ------------------------------------------------------------
 
@@ -90,7 +164,12 @@ public class WorkerCore {
         }
 
         this.maxWorkerThreads = Integer.parseInt(Configuration.getProperty("backmeup.worker.maxParallelJobs"));
-        this.maxJobsGauge = new NumberGauge(MonitorConfig.builder("maxJobs").build(), this.maxWorkerThreads);
+        this.maxJobsGauge = new BasicGauge<>(MonitorConfig.builder("maxJobs").build(), new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return getNoOfMaximumJobs();
+            }
+        });
 
         this.noOfRunningJobs = new AtomicInteger(0);
         this.noOfRunningJobsGauge = new NumberGauge(MonitorConfig.builder("runningJobs").build(), this.noOfRunningJobs);
@@ -99,14 +178,201 @@ public class WorkerCore {
         this.noOfFaildJobs = new AtomicInteger(0);
 
         String bmuServiceBaseUrl = Configuration.getProperty("backmeup.service.baseUrl");
-        this.bmuServiceClient = new BackmeupServiceClient(bmuServiceBaseUrl);
+        BackmeupService serviceClient = new BackmeupServiceClient(bmuServiceBaseUrl);
+        if (Boolean.parseBoolean(Configuration.getProperty("backmeup.worker.service.resilient", "false"))) {
+            // Calls fail fast while the service is down, slow listed reads are hedged
+            int failureThreshold = Integer.parseInt(Configuration.getProperty("backmeup.worker.service.failureThreshold", "5"));
+            long openMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(Configuration.getProperty("backmeup.worker.service.openSeconds", "30")));
+            long hedgeDelay = Long.parseLong(Configuration.getProperty("backmeup.worker.service.minHedgeDelayMillis", "200"));
+            Set<String> hedgedMethods = new HashSet<>();
+            for (String methodName : Configuration.getProperty("backmeup.worker.service.hedgedMethods", "").split(",")) {
+                if (!methodName.trim().isEmpty()) {
+                    hedgedMethods.add(methodName.trim());
+                }
+            }
+            this.serviceResilience = new ResilientBackmeupService(serviceClient, failureThreshold, openMillis, hedgeDelay,
+                    hedgedMethods);
+            this.bmuServiceClient = this.serviceResilience.getService();
+        } else {
+            this.serviceResilience = null;
+            this.bmuServiceClient = serviceClient;
+        }
 
         this.jobTempDir = Configuration.getProperty("backmeup.worker.workDir");
+        long minFreeSpace = Long.parseLong(Configuration.getProperty("backmeup.worker.workDir.minFreeSpaceMB", "0")) * 1024 * 1024;
+        long retentionHours = Long.parseLong(Configuration.getProperty("backmeup.worker.workDir.failedJobRetentionHours", "24"));
+        this.workDirectoryManager = new WorkDirectoryManager(new File(this.jobTempDir), minFreeSpace,
+                TimeUnit.HOURS.toMillis(retentionHours));
+
+        // Jobs admitted beyond the number of threads wait in the local queue,
+        // where they are ordered by the job scheduler
+        this.jobQueueSize = Integer.parseInt(Configuration.getProperty("backmeup.worker.jobQueueSize", "0"));
+        this.admissionController = new JobAdmissionController(this.maxWorkerThreads + this.jobQueueSize);
+
+        // Fingerprints of the objects of previous backups, kept outside of the
+        // job directories
+        if (Boolean.parseBoolean(Configuration.getProperty("backmeup.worker.incremental.enabled", "false"))) {
+            String indexDir = Configuration.getProperty("backmeup.worker.incremental.indexDir",
+                    new File(this.jobTempDir, "fingerprints").getPath());
+            long maxAgeDays = Long.parseLong(Configuration.getProperty("backmeup.worker.incremental.maxAgeDays", "30"));
+            this.incrementalFilter = new IncrementalBackupFilter(new File(indexDir), TimeUnit.DAYS.toMillis(maxAgeDays));
+        } else {
+            this.incrementalFilter = null;
+        }
 
-        BlockingQueue<Runnable> jobQueue = new ArrayBlockingQueue<>(this.maxWorkerThreads);
-        ThreadFactory threadFactory = Executors.defaultThreadFactory();
+        // Duplicates of jobs in flight or recently completed are dropped
+        long dedupTtl = Long.parseLong(Configuration.getProperty("backmeup.worker.dedup.ttlMinutes", "60"));
+        this.deduplicationIndex = new JobDeduplicationIndex(new File(this.jobTempDir, "completed-jobs"),
+                TimeUnit.MINUTES.toMillis(dedupTtl));
+
+        this.sizeEstimator = new JobSizeEstimator();
+        SchedulingPolicy policy = SchedulingPolicy.valueOf(Configuration.getProperty("backmeup.worker.scheduling.policy", "FIFO"));
+        long agingRate = Long.parseLong(Configuration.getProperty("backmeup.worker.scheduling.agingRate", "1048576"));
+        long defaultJobSize = Long.parseLong(Configuration.getProperty("backmeup.worker.scheduling.defaultJobSize", "0"));
+        this.jobScheduler = new JobScheduler(policy, agingRate, defaultJobSize, this.sizeEstimator,
+                Configuration.getProperties("backmeup.worker.scheduling.priority."));
+
+        // Jobs spend most of their time waiting for I/O. With virtual threads
+        // (or platform threads with a small stack) many of them can be kept
+        // in flight, CPU bound actions then run on the processing pool
+        boolean virtualThreads = "virtual".equalsIgnoreCase(Configuration.getProperty("backmeup.worker.execution.threads", "platform"));
+        long threadStackSize = Long.parseLong(Configuration.getProperty("backmeup.worker.execution.threadStackSizeKB", "0")) * 1024;
+        JobThreadFactory threadFactory = new JobThreadFactory("backmeup-job-", threadStackSize, virtualThreads);
+
+        JobSchedulingQueue jobQueue = new JobSchedulingQueue();
         this.executorPool = new ObservableThreadPoolExecutor(this.maxWorkerThreads, this.maxWorkerThreads, 10, TimeUnit.SECONDS, jobQueue,
                 threadFactory);
+        // The number of parallel jobs may adapt to the load of the node
+        if (Boolean.parseBoolean(Configuration.getProperty("backmeup.worker.concurrency.adaptive", "false"))) {
+            int minJobs = Integer.parseInt(Configuration.getProperty("backmeup.worker.concurrency.minParallelJobs", "1"));
+            int maxJobs = Integer.parseInt(Configuration.getProperty("backmeup.worker.concurrency.maxParallelJobs",
+                    Integer.toString(Math.max(this.maxWorkerThreads, 4 * Runtime.getRuntime().availableProcessors()))));
+            double maxCpuLoad = Double.parseDouble(Configuration.getProperty("backmeup.worker.concurrency.maxCpuLoad", "0.85"));
+            double maxHeapUsage = Double.parseDouble(Configuration.getProperty("backmeup.worker.concurrency.maxHeapUsage", "0.9"));
+            this.concurrencyController = new AdaptiveConcurrencyController(this.executorPool, this.admissionController,
+                    this.jobQueueSize, minJobs, maxJobs, maxCpuLoad, maxHeapUsage);
+        } else {
+            this.concurrencyController = null;
+        }
+
+        this.bulkhead = new PluginBulkhead(this.executorPool,
+                getPluginLimits("backmeup.worker.bulkhead.source."),
+                getPluginLimits("backmeup.worker.bulkhead.sink."),
+                Integer.parseInt(Configuration.getProperty("backmeup.worker.bulkhead.maxWaitingJobs", "2")),
+                new PluginBulkhead.JobSlots() {
+                    @Override
+                    public boolean tryAcquire() {
+                        return admissionController.tryAcquire();
+                    }
+
+                    @Override
+                    public void release() {
+                        admissionController.release();
+                    }
+                },
+                new PluginBulkhead.RejectionListener() {
+                    @Override
+                    public void jobRejected(Runnable job) {
+                        returnJob(job, true);
+                    }
+                });
+
+        // Rejected jobs are returned to the queue with a delay, otherwise they
+        // would be redelivered to this worker right away
+        this.requeueDelayMillis = Long.parseLong(Configuration.getProperty("backmeup.worker.bulkhead.requeueDelayMillis", "5000"));
+        this.requeueScheduler = new ScheduledThreadPoolExecutor(1, new JobThreadFactory("backmeup-requeue-", 0));
+
+        // With pipelined execution, download, processing and upload of a job
+        // run on separate pools, which limit the jobs per stage. The job keeps
+        // its slot meanwhile, so a stage pool only has an effect if it is
+        // smaller than maxParallelJobs; by default only processing is limited
+        if (Boolean.parseBoolean(Configuration.getProperty("backmeup.worker.execution.pipelined", "false"))) {
+            int downloadThreads = Integer.parseInt(Configuration.getProperty("backmeup.worker.execution.downloadThreads", "0"));
+            int processThreads = Integer.parseInt(Configuration.getProperty("backmeup.worker.execution.processThreads",
+                    Integer.toString(Runtime.getRuntime().availableProcessors())));
+            int uploadThreads = Integer.parseInt(Configuration.getProperty("backmeup.worker.execution.uploadThreads", "0"));
+            this.stageExecutor = new StagedJobExecutor(downloadThreads, processThreads, uploadThreads);
+        } else if (threadFactory.isVirtual()) {
+            // Only processing leaves the job thread
+            int processThreads = Integer.parseInt(Configuration.getProperty("backmeup.worker.execution.processThreads",
+                    Integer.toString(Runtime.getRuntime().availableProcessors())));
+            this.stageExecutor = new StagedJobExecutor(0, processThreads, 0);
+        } else {
+            this.stageExecutor = null;
+        }
+
+        // Independent actions of a job may run concurrently
+        int actionParallelism = Integer.parseInt(Configuration.getProperty("backmeup.worker.actions.parallelism", "1"));
+        this.actionScheduler = new ActionScheduler(actionParallelism, ActionDependencies.fromConfiguration());
+
+        // Datasinks that support it upload the data of a job in parallel parts
+        int uploadThreads = Integer.parseInt(Configuration.getProperty("backmeup.worker.upload.threads", "0"));
+        if (uploadThreads > 0) {
+            int uploadWindow = Integer.parseInt(Configuration.getProperty("backmeup.worker.upload.window", "4"));
+            long partSize = Long.parseLong(Configuration.getProperty("backmeup.worker.upload.partSizeMB", "16")) * 1024 * 1024;
+            int maxRetries = Integer.parseInt(Configuration.getProperty("backmeup.worker.upload.maxRetries", "3"));
+            long retryDelay = Long.parseLong(Configuration.getProperty("backmeup.worker.upload.retryDelayMillis", "1000"));
+            this.uploadEngine = new ParallelUploadEngine(uploadThreads, uploadWindow, partSize, maxRetries, retryDelay);
+        } else {
+            this.uploadEngine = null;
+        }
+
+        // Datasources that support it fetch the objects of a job concurrently
+        int downloadThreads = Integer.parseInt(Configuration.getProperty("backmeup.worker.download.threads", "0"));
+        if (downloadThreads > 0) {
+            int downloadWindow = Integer.parseInt(Configuration.getProperty("backmeup.worker.download.window", "8"));
+            int connectionsPerHost = Integer.parseInt(Configuration.getProperty("backmeup.worker.download.maxConnectionsPerHost", "4"));
+            long segmentSize = Long.parseLong(Configuration.getProperty("backmeup.worker.download.segmentSizeMB", "8")) * 1024 * 1024;
+            // Connections of the downloads are pooled and kept alive
+            this.httpTransport = createHttpTransport();
+            this.downloadScheduler = new DownloadScheduler(downloadThreads, downloadWindow,
+                    getPluginLimits("backmeup.worker.download.window."), connectionsPerHost, segmentSize, this.httpTransport);
+        } else {
+            this.httpTransport = null;
+            this.downloadScheduler = null;
+        }
+
+        // The bandwidth of all jobs is shaped and shared fairly between them
+        this.downloadGovernor = createBandwidthGovernor("download");
+        this.uploadGovernor = createBandwidthGovernor("upload");
+
+        // Status updates of the jobs are coalesced and sent in the background
+        if (Boolean.parseBoolean(Configuration.getProperty("backmeup.worker.statusUpdates.async", "false"))) {
+            long flushInterval = Long.parseLong(Configuration.getProperty("backmeup.worker.statusUpdates.flushIntervalMillis", "1000"));
+            int maxRetries = Integer.parseInt(Configuration.getProperty("backmeup.worker.statusUpdates.maxRetries", "5"));
+            long retryDelay = Long.parseLong(Configuration.getProperty("backmeup.worker.statusUpdates.retryDelayMillis", "1000"));
+            this.statusUpdater = new JobStatusUpdater(this.bmuServiceClient, flushInterval, maxRetries, retryDelay);
+        } else {
+            this.statusUpdater = null;
+        }
+
+        // Status updates and metrics are sent through a file, which keeps
+        // them while the service is unreachable
+        if (Boolean.parseBoolean(Configuration.getProperty("backmeup.worker.outbox.enabled", "false"))) {
+            int outboxSize = Integer.parseInt(Configuration.getProperty("backmeup.worker.outbox.sizeMB", "16")) * 1024 * 1024;
+            long drainInterval = Long.parseLong(Configuration.getProperty("backmeup.worker.outbox.drainIntervalMillis", "5000"));
+            int maxAttempts = Integer.parseInt(Configuration.getProperty("backmeup.worker.outbox.maxAttempts", "10"));
+            this.outbox = new ServiceOutbox(this.bmuServiceClient, new File(this.jobTempDir, "outbox"), outboxSize, drainInterval,
+                    maxAttempts);
+            if (this.statusUpdater != null) {
+                this.statusUpdater.setFailedUpdateHandler(this.outbox);
+            }
+        } else {
+            this.outbox = null;
+        }
+
+        // Job executions of admitted jobs are fetched in the background, so
+        // the receivers never wait for the backmeup service
+        int prefetchThreads = Integer.parseInt(Configuration.getProperty("backmeup.worker.prefetch.threads", "2"));
+        this.prefetcher = new JobExecutionPrefetcher(this.bmuServiceClient, prefetchThreads);
+
+        this.receivedJobs = new ConcurrentHashMap<>();
+        this.jobReceivers = new CopyOnWriteArrayList<>();
+
+        this.noOfRequeuedJobs = new AtomicInteger(0);
+        this.noOfAbandonedJobs = new AtomicInteger(0);
+        this.shutdown = new AtomicBoolean(false);
+        this.shutdownCompleted = new CountDownLatch(1);
 
         Monitors.registerObject(this.workerId.toString(), this);
 
@@ -124,12 +390,29 @@ public class WorkerCore {
         this.currentState = currentState;
     }
 
+    public boolean isDraining() {
+        return this.draining;
+    }
+
+    /**
+     * Returns the progress of the current (or last) drain, null if the worker
+     * has not been drained.
+     */
+    public DrainProgress getDrainProgress() {
+        if (!this.draining) {
+            return null;
+        }
+        long remaining = Math.max(0, this.drainDeadline - System.currentTimeMillis());
+        return new DrainProgress(this.noOfRunningJobs.get(), this.noOfRequeuedJobs.get(), this.noOfAbandonedJobs.get(),
+                remaining, this.executorPool.isTerminated());
+    }
+
     public int getNoOfCurrentJobs() {
-        return this.executorPool.getActiveCount();
+        return this.noOfRunningJobs.get();
     }
 
     public int getNoOfMaximumJobs() {
-        return this.maxWorkerThreads;
+        return this.executorPool.getMaximumPoolSize();
     }
 
     public int getNoOfFinishedJobs() {
@@ -160,18 +443,37 @@ public class WorkerCore {
             this.backupName = resp.getBackupNameTemplate();
 
             if (resp.getDistributionMechanism() == DistributionMechanism.QUEUE) {
-                final StringTokenizer tokenizer = new StringTokenizer(resp.getConnectionInfo(), ";");
-                final String mqHost = tokenizer.nextToken();
-                final String mqName = tokenizer.nextToken();
+                // Connection info has the form "host;queue". Several queues
+                // (possibly on different hosts) are separated by ','
+                final String[] endpoints = resp.getConnectionInfo().split(",");
+                final int consumersPerQueue = Integer.parseInt(Configuration.getProperty("backmeup.worker.receiver.consumers", "1"));
+
+                // The broker must not deliver more jobs than we have free slots
+                // (with an adaptive limit: than we may have at most)
+                final int totalConsumers = endpoints.length * consumersPerQueue;
+                int maxSlots = this.admissionController.getAvailableSlots();
+                if (this.concurrencyController != null) {
+                    maxSlots = this.concurrencyController.getMaxLimit() + this.jobQueueSize;
+                }
+                final int prefetchCount = Math.max(1, maxSlots / totalConsumers);
 
-                this.jobReceiver = new RabbitMQJobReceiver(mqHost, mqName, 500);
-                this.jobReceiver.initialize();
-                this.jobReceiver.addJobReceivedListener(new JobReceivedListener() {
+                final JobReceivedListener listener = new JobReceivedListener() {
                     @Override
                     public void jobReceived(JobReceivedEvent jre) {
                         executeBackupJob(jre);
                     }
-                });
+                };
+
+                for (String endpoint : endpoints) {
+                    final StringTokenizer tokenizer = new StringTokenizer(endpoint.trim(), ";");
+                    final String mqHost = tokenizer.nextToken();
+                    final String mqName = tokenizer.nextToken();
+
+                    JobReceiver receiver = new RabbitMQJobReceiver(mqHost, mqName, consumersPerQueue, prefetchCount);
+                    receiver.initialize();
+                    receiver.addJobReceivedListener(listener);
+                    this.jobReceivers.add(receiver);
+                }
             } else {
                 // DistributionMechanism not supported
                 errorsDuringInit = true;
@@ -189,6 +491,17 @@ public class WorkerCore {
             String pluginsExportedPackages = resp.getPluginsExportedPackages();
             this.pluginManager = new PluginManager(pluginsDeploymentDir, pluginsTempDir, pluginsExportedPackages);
             this.pluginManager.startup();
+            this.jobRunner = new BackupJobRunner(this.pluginManager, this.bmuServiceClient, this.jobTempDir, this.backupName,
+                    this.sizeEstimator, this.stageExecutor, this.actionScheduler);
+            this.jobRunner.setKeepJobData(Boolean.parseBoolean(Configuration.getProperty("backmeup.worker.keepJobData", "false")));
+            this.jobRunner.setWorkDirectoryManager(this.workDirectoryManager);
+            this.jobRunner.setIncrementalFilter(this.incrementalFilter);
+            this.jobRunner.setUploadEngine(this.uploadEngine);
+            this.jobRunner.setDownloadScheduler(this.downloadScheduler);
+            this.jobRunner.setBandwidthGovernors(this.downloadGovernor, this.uploadGovernor);
+            this.jobRunner.setStatusUpdater(this.statusUpdater);
+            this.jobRunner.setOutbox(this.outbox);
+            this.jobRunner.setJournalEnabled(Boolean.parseBoolean(Configuration.getProperty("backmeup.worker.journal.enabled", "false")));
         } catch (Exception e) {
             LOGGER.error("Error initializing plugin infrastructure", e);
             errorsDuringInit = true;
@@ -220,7 +533,7 @@ public class WorkerCore {
         });
 
         if (Boolean.parseBoolean(Configuration.getProperty("backmeup.worker.publishMetrics", "false"))) {
-            PerformanceMonitor.initialize(this.bmuServiceClient);
+            PerformanceMonitor.initialize(this.bmuServiceClient, this.outbox);
         } else {
             PerformanceMonitor.initialize();
         }
@@ -237,38 +550,329 @@ public class WorkerCore {
         }
 
         PerformanceMonitor.startPublishing();
+        this.workDirectoryManager.start();
+        if (this.statusUpdater != null) {
+            this.statusUpdater.start();
+        }
+        if (this.outbox != null) {
+            this.outbox.start();
+        }
+        if (this.concurrencyController != null) {
+            long interval = Long.parseLong(Configuration.getProperty("backmeup.worker.concurrency.interval", "30"));
+            this.concurrencyController.start(interval, TimeUnit.SECONDS);
+        }
+
+        for (JobReceiver receiver : this.jobReceivers) {
+            receiver.start();
+        }
+    }
+
+    /**
+     * Drains the worker: new jobs are no longer received, jobs that have not
+     * been started are returned to the queue and running jobs may finish
+     * until the timeout expires. Jobs still running then are returned to the
+     * queue and interrupted. With journaling enabled, a returned job resumes
+     * from its last checkpoint on the next worker.
+     * 
+     * Blocks until the drain is complete. Calling it again (e.g. from
+     * shutdown) waits for the drain in progress.
+     * 
+     * @return true if all running jobs finished within the timeout
+     */
+    public boolean drain(long timeout, TimeUnit unit) {
+        synchronized (this) {
+            if (!this.draining) {
+                LOGGER.info("Draining worker, running jobs may finish within {} seconds", unit.toSeconds(timeout));
+                this.drainDeadline = System.currentTimeMillis() + unit.toMillis(timeout);
+                this.draining = true;
+                setCurrentState(WorkerState.DRAINING);
+
+                // Stop intake first, receivers waiting for a slot return their jobs
+                if (this.concurrencyController != null) {
+                    this.concurrencyController.shutdown();
+                }
+                for (JobReceiver receiver : this.jobReceivers) {
+                    receiver.pause();
+                }
+                this.admissionController.close();
+                this.workDirectoryManager.close();
+                // Jobs whose execution is being fetched go back to the queue
+                this.prefetcher.shutdown();
+
+                // Jobs that have not been started go back to the queue
+                this.executorPool.shutdown();
+                List<Runnable> unstarted = new ArrayList<>();
+                this.executorPool.getQueue().drainTo(unstarted);
+                for (Runnable job : unstarted) {
+                    returnJob(job, true);
+                }
+                for (Runnable job : this.bulkhead.drainWaitingJobs()) {
+                    // Waiting jobs have given up their slot
+                    returnJob(job, false);
+                }
+                // Jobs whose return is delayed go back right away
+                for (Runnable requeue : this.requeueScheduler.shutdownNow()) {
+                    requeue.run();
+                }
+            }
+        }
 
-        this.jobReceiver.start();
+        boolean drained = awaitRunningJobs();
+        if (!drained && !this.executorPool.isTerminated()) {
+            abandonRunningJobs();
+        }
+        setCurrentState(WorkerState.OFFLINE);
+
+        LOGGER.info("Worker drained: {} jobs returned to the queue, {} jobs abandoned", this.noOfRequeuedJobs.get(),
+                this.noOfAbandonedJobs.get());
+        return drained;
     }
 
+    /**
+     * Drains the worker (see {@link #drain(long, TimeUnit)}) and releases all
+     * resources. The timeout of the drain is given by
+     * backmeup.worker.drain.timeoutSeconds. Concurrent and later calls wait
+     * until the first shutdown has completed.
+     */
     public void shutdown() {
-        this.executorPool.shutdown();
-        this.pluginManager.shutdown();
-        this.jobReceiver.stop();
+        if (!this.shutdown.compareAndSet(false, true)) {
+            try {
+                this.shutdownCompleted.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        try {
+            releaseResources();
+        } finally {
+            this.shutdownCompleted.countDown();
+        }
     }
 
     // Private methods --------------------------------------------------------
 
+    private void releaseResources() {
+        long drainTimeout = Long.parseLong(Configuration.getProperty("backmeup.worker.drain.timeoutSeconds", "300"));
+        drain(drainTimeout, TimeUnit.SECONDS);
+
+        // Closing the receivers returns all unacknowledged jobs to the queue
+        for (JobReceiver receiver : this.jobReceivers) {
+            receiver.stop();
+        }
+        if (this.stageExecutor != null) {
+            this.stageExecutor.shutdown();
+        }
+        this.actionScheduler.shutdown();
+        if (this.uploadEngine != null) {
+            this.uploadEngine.shutdown();
+        }
+        if (this.downloadScheduler != null) {
+            this.downloadScheduler.shutdown();
+        }
+        this.workDirectoryManager.shutdown();
+        if (this.statusUpdater != null) {
+            // Sends the final status of the drained jobs
+            this.statusUpdater.shutdown();
+        }
+        if (this.outbox != null) {
+            // Updates that cannot be sent now are sent after the next start
+            this.outbox.shutdown();
+        }
+        if (this.serviceResilience != null) {
+            this.serviceResilience.shutdown();
+        }
+        if (this.httpTransport != null) {
+            this.httpTransport.shutdown();
+        }
+        this.deduplicationIndex.close();
+        if (this.incrementalFilter != null) {
+            this.incrementalFilter.close();
+        }
+        if (this.pluginManager != null) {
+            this.pluginManager.shutdown();
+        }
+    }
+
     private void executeBackupJob(JobReceivedEvent jre) {
+        // A message may carry a batch of jobs, each of them takes its own slot
+        for (int i = 0; i < jre.getJobCount(); i++) {
+            if (!submitBackupJob(jre, jre.getJobId(i))) {
+                // Interrupted or draining, the remaining jobs are returned to the queue
+                for (int j = i + 1; j < jre.getJobCount(); j++) {
+                    jre.settleJob(jre.getJobId(j), false);
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean submitBackupJob(final JobReceivedEvent jre, Long jobId) {
         this.noOfFetchedJobs.getAndIncrement();
 
-        // if we reached our maximum concurrent job limit, pause the receiver
-        if (getNoOfCurrentJobs() + 1 >= getNoOfMaximumJobs()) {
-            this.jobReceiver.setPaused(true);
+        if (this.draining) {
+            // Received before the receiver was paused
+            this.noOfRequeuedJobs.getAndIncrement();
+            jre.settleJob(jobId, false);
+            return false;
+        }
+
+        if (!this.deduplicationIndex.register(jobId)) {
+            // The original job is (or has been) executed, drop the duplicate
+            LOGGER.info("Dropping duplicate of job {}", jobId);
+            jre.settleJob(jobId, true);
+            return true;
+        }
+
+        // Blocks the receiver while the disk is full or no job slot is free.
+        // The slot is released when the job has been executed, see
+        // jobThreadAterExecute
+        try {
+            if (!this.workDirectoryManager.awaitFreeSpace() || !this.admissionController.acquire()) {
+                // The worker drains
+                LOGGER.info("Worker is draining, returning job {} to the queue", jobId);
+                this.deduplicationIndex.jobAborted(jobId);
+                this.noOfRequeuedJobs.getAndIncrement();
+                jre.settleJob(jobId, false);
+                return false;
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("Interrupted while waiting for admission, returning job {} to the queue", jobId);
+            Thread.currentThread().interrupt();
+            this.deduplicationIndex.jobAborted(jobId);
+            jre.settleJob(jobId, false);
+            return false;
         }
 
-        Long jobId = jre.getJobId();
-        Runnable backupJobWorker = new BackupJobWorkerThread(jobId, this.pluginManager, this.bmuServiceClient, this.jobTempDir,
-                this.backupName);
-        this.executorPool.execute(backupJobWorker);
+        // From here on the job holds a slot, which has to be freed if the
+        // job cannot be handed to the executor. Fetching the execution
+        // changes the job on the service, so it is fetched once and only now
+        this.prefetcher.fetch(jobId, new JobExecutionPrefetcher.FetchListener() {
+            @Override
+            public void fetched(Long fetchedJobId, BackupJobExecutionDTO backupJob) {
+                dispatchBackupJob(jre, fetchedJobId, backupJob);
+            }
+
+            @Override
+            public void cancelled(Long fetchedJobId) {
+                abortBackupJob(jre, fetchedJobId);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Hands an admitted job to the executor.
+     * 
+     * @param backupJob
+     *            the job execution or null if it could not be fetched
+     */
+    private void dispatchBackupJob(JobReceivedEvent jre, Long jobId, BackupJobExecutionDTO backupJob) {
+        if (this.draining) {
+            abortBackupJob(jre, jobId);
+            return;
+        }
+        if (backupJob == null) {
+            LOGGER.warn("Job {} could not be fetched, it is fetched again when it starts", jobId);
+        }
+
+        BackupJobWorkerThread backupJobWorker;
+        try {
+            // The scheduler needs the job execution to order the job
+            JobSchedulingInfo schedulingInfo = this.jobScheduler.schedule(backupJob, jre.getPriority());
+            backupJobWorker = new BackupJobWorkerThread(jobId, backupJob, schedulingInfo, this.jobRunner, this.pluginManager);
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to submit job " + jobId + ", returning it to the queue", e);
+            releaseSlot();
+            this.deduplicationIndex.jobAborted(jobId);
+            jre.settleJob(jobId, false);
+            return;
+        }
+
+        // The job is settled once it has been executed, see jobThreadAterExecute
+        this.receivedJobs.put(backupJobWorker, jre);
+        try {
+            this.bulkhead.execute(backupJobWorker);
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to execute job " + jobId, e);
+            returnJob(backupJobWorker, true);
+        }
+    }
+
+    /**
+     * Frees the slot of an admitted job that has not been handed to the
+     * executor and returns it to the queue.
+     */
+    private void abortBackupJob(JobReceivedEvent jre, Long jobId) {
+        LOGGER.info("Worker is draining, returning job {} to the queue", jobId);
+        releaseSlot();
+        this.deduplicationIndex.jobAborted(jobId);
+        this.noOfRequeuedJobs.getAndIncrement();
+        jre.settleJob(jobId, false);
+    }
+
+    /**
+     * Returns a job that has not been executed to the queue. Unless the
+     * worker drains, the job is returned after backmeup.worker.bulkhead.
+     * requeueDelayMillis, so that it is not redelivered to this worker while
+     * it is still overloaded.
+     * 
+     * @param holdsSlot
+     *            true if the slot of the job has to be freed
+     */
+    private void returnJob(Runnable job, boolean holdsSlot) {
+        final JobReceivedEvent jre = this.receivedJobs.remove(job);
+        if (jre == null) {
+            return;
+        }
+        final Long jobId = ((BackupJobWorkerThread) job).getBackupJobId();
+        if (holdsSlot) {
+            releaseSlot();
+        }
+
+        Runnable requeue = new Runnable() {
+            @Override
+            public void run() {
+                deduplicationIndex.jobAborted(jobId);
+                jre.settleJob(jobId, false);
+            }
+        };
+        if (this.draining || this.requeueDelayMillis <= 0) {
+            LOGGER.warn("Job {} rejected, returning it to the queue", jobId);
+            if (this.draining) {
+                this.noOfRequeuedJobs.getAndIncrement();
+            }
+            requeue.run();
+            return;
+        }
+        LOGGER.warn("Job {} rejected, returning it to the queue in {} ms", jobId, this.requeueDelayMillis);
+        try {
+            this.requeueScheduler.schedule(requeue, this.requeueDelayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The worker drains
+            requeue.run();
+        }
+    }
+
+    /**
+     * Frees a job slot. A job waiting in the bulkhead may take it.
+     */
+    private void releaseSlot() {
+        this.admissionController.release();
+        this.bulkhead.slotReleased();
     }
 
     private void jobThreadBeforeExecute(Thread t, Runnable r) {
         this.noOfRunningJobs.getAndIncrement();
-        setCurrentState(WorkerState.BUSY);
+        if (!this.draining) {
+            setCurrentState(WorkerState.BUSY);
+        }
     }
 
     private void jobThreadAterExecute(Runnable r, Throwable t) {
+        this.bulkhead.jobFinished(r);
+
         if (t != null) {
             this.noOfFaildJobs.getAndIncrement();
         } else {
@@ -276,10 +880,98 @@ public class WorkerCore {
         }
 
         this.noOfRunningJobs.getAndDecrement();
-        if (this.noOfRunningJobs.get() == 0) {
+        if (this.noOfRunningJobs.get() == 0 && !this.draining) {
             setCurrentState(WorkerState.IDLE);
         }
-        this.jobReceiver.setPaused(false);
+
+        // Failed jobs are acknowledged as well, their status is reported to
+        // the service and redelivering them would most likely fail again
+        if (r instanceof BackupJobWorkerThread) {
+            BackupJobWorkerThread worker = (BackupJobWorkerThread) r;
+            this.deduplicationIndex.jobFinished(worker.getBackupJobId(), worker.getStatus() == JobExecutionStatus.SUCCESSFUL);
+
+            JobReceivedEvent jre = this.receivedJobs.remove(worker);
+            if (jre != null) {
+                jre.settleJob(worker.getBackupJobId(), true);
+                releaseSlot();
+            }
+        }
+    }
+
+    /**
+     * Waits until all running jobs have finished or the drain deadline has
+     * passed and logs the progress periodically.
+     */
+    private boolean awaitRunningJobs() {
+        try {
+            long remaining;
+            while ((remaining = this.drainDeadline - System.currentTimeMillis()) > 0) {
+                if (this.executorPool.awaitTermination(Math.min(remaining, DRAIN_PROGRESS_INTERVAL_MILLIS), TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+                LOGGER.info("Draining: {} jobs running, {} seconds left", this.noOfRunningJobs.get(),
+                        TimeUnit.MILLISECONDS.toSeconds(Math.max(0, this.drainDeadline - System.currentTimeMillis())));
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("Interrupted while draining");
+            Thread.currentThread().interrupt();
+        }
+        return this.executorPool.isTerminated();
+    }
+
+    /**
+     * Returns the jobs still running after the drain deadline to the queue and
+     * interrupts them.
+     */
+    private void abandonRunningJobs() {
+        for (BackupJobWorkerThread job : new ArrayList<>(this.receivedJobs.keySet())) {
+            JobReceivedEvent jre = this.receivedJobs.remove(job);
+            if (jre != null) {
+                Long jobId = job.getBackupJobId();
+                LOGGER.warn("Job {} did not finish in time, returning it to the queue", jobId);
+                this.deduplicationIndex.jobAborted(jobId);
+                    this.noOfAbandonedJobs.getAndIncrement();
+                jre.settleJob(jobId, false);
+            }
+        }
+        this.executorPool.shutdownNow();
+    }
+
+    private static PooledHttpTransport createHttpTransport() {
+        int maxConnections = Integer.parseInt(Configuration.getProperty("backmeup.worker.http.maxConnections", "50"));
+        int maxConnectionsPerRoute = Integer.parseInt(Configuration.getProperty("backmeup.worker.http.maxConnectionsPerRoute", "10"));
+        int connectTimeout = Integer.parseInt(Configuration.getProperty("backmeup.worker.http.connectTimeoutMillis", "10000"));
+        int socketTimeout = Integer.parseInt(Configuration.getProperty("backmeup.worker.http.socketTimeoutMillis", "60000"));
+        int connectionRequestTimeout = Integer.parseInt(Configuration.getProperty("backmeup.worker.http.connectionRequestTimeoutMillis",
+                "30000"));
+        long keepAlive = Long.parseLong(Configuration.getProperty("backmeup.worker.http.keepAliveMillis", "30000"));
+        boolean gzip = Boolean.parseBoolean(Configuration.getProperty("backmeup.worker.http.gzip", "true"));
+        return new PooledHttpTransport("worker", maxConnections, maxConnectionsPerRoute,
+                getPluginLimits("backmeup.worker.http.maxConnectionsPerRoute."), connectTimeout, socketTimeout, connectionRequestTimeout,
+                keepAlive, gzip);
+    }
+
+    private static Map<String, Integer> getPluginLimits(String prefix) {
+        Map<String, Integer> limits = new HashMap<>();
+        for (Map.Entry<String, String> e : Configuration.getProperties(prefix).entrySet()) {
+            limits.put(e.getKey(), Integer.parseInt(e.getValue()));
+        }
+        return limits;
+    }
+
+    /**
+     * Creates the governor of a direction, null if its bandwidth is not
+     * limited.
+     */
+    private static BandwidthGovernor createBandwidthGovernor(String direction) {
+        String prefix = "backmeup.worker.bandwidth." + direction + ".";
+        long limit = Long.parseLong(Configuration.getProperty(prefix + "limitKBps", "0")) * 1024;
+        long jobLimit = Long.parseLong(Configuration.getProperty(prefix + "jobLimitKBps", "0")) * 1024;
+        BandwidthSchedule schedule = BandwidthSchedule.parse(limit, Configuration.getProperty(prefix + "schedule"));
+        if (schedule.isEmpty() && jobLimit <= 0) {
+            return null;
+        }
+        return new BandwidthGovernor(direction, schedule, jobLimit, getPluginLimits("backmeup.worker.bandwidth.weight."));
     }
 
     private WorkerInfoDTO getWorkerInfo() {
@@ -302,7 +994,7 @@ public class WorkerCore {
         LOGGER.info("Obtaining worker config");
 
         int retries = 0;
-        final int sleepTime = 1000;
+        long sleepTime = WORKER_CONFIG_INITIAL_RETRY_DELAY_MILLIS;
         final long startTime = System.currentTimeMillis();
         final long abortTime = timeUnit.toMillis(timeout);
         WorkerConfigDTO config = null;
@@ -315,13 +1007,20 @@ public class WorkerCore {
                 config = this.bmuServiceClient.initializeWorker(workerInfo);
             } catch (Exception e) {
                 LOGGER.error("", e);
-            } finally {
-                retries++;
+            }
+
+            retries++;
+            if (config == null) {
+                // Back off exponentially, but not beyond the timeout
+                long remaining = abortTime - (System.currentTimeMillis() - startTime);
                 try {
-                    Thread.sleep(sleepTime);
+                    Thread.sleep(Math.max(0, Math.min(sleepTime, remaining)));
                 } catch (InterruptedException e) {
                     LOGGER.error("", e);
+                    Thread.currentThread().interrupt();
+                    break;
                 }
+                sleepTime = Math.min(sleepTime * 2, WORKER_CONFIG_MAX_RETRY_DELAY_MILLIS);
             }
         }
 
@@ -344,6 +1043,56 @@ public class WorkerCore {
         IDLE,
 
         // Jobs are currently running on worker
-        BUSY
+        BUSY,
+
+        // No new jobs are accepted, running jobs finish
+        DRAINING
+    }
+
+    /**
+     * Snapshot of the progress of a drain.
+     */
+    public static class DrainProgress {
+        private final int noOfRunningJobs;
+        private final int noOfRequeuedJobs;
+        private final int noOfAbandonedJobs;
+        private final long remainingMillis;
+        private final boolean completed;
+
+        public DrainProgress(int noOfRunningJobs, int noOfRequeuedJobs, int noOfAbandonedJobs, long remainingMillis,
+                boolean completed) {
+            this.noOfRunningJobs = noOfRunningJobs;
+            this.noOfRequeuedJobs = noOfRequeuedJobs;
+            this.noOfAbandonedJobs = noOfAbandonedJobs;
+            this.remainingMillis = remainingMillis;
+            this.completed = completed;
+        }
+
+        public int getNoOfRunningJobs() {
+            return this.noOfRunningJobs;
+        }
+
+        /**
+         * Jobs that were returned to the queue before they were started.
+         */
+        public int getNoOfRequeuedJobs() {
+            return this.noOfRequeuedJobs;
+        }
+
+        /**
+         * Jobs that were returned to the queue because they did not finish
+         * before the deadline.
+         */
+        public int getNoOfAbandonedJobs() {
+            return this.noOfAbandonedJobs;
+        }
+
+        public long getRemainingMillis() {
+            return this.remainingMillis;
+        }
+
+        public boolean isCompleted() {
+            return this.completed;
+        }
     }
 }
@@ -1,6 +1,8 @@
 package org.backmeup.worker.config;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 public final class Configuration {
@@ -36,4 +38,18 @@ public final class Configuration {
         }
         return value;
     }
+
+    /**
+     * Returns all properties whose key starts with the given prefix. The
+     * prefix is removed from the keys of the returned map.
+     */
+    public static Map<String, String> getProperties(String prefix) {
+        Map<String, String> properties = new HashMap<>();
+        for (String key : PROPERTIES.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                properties.put(key.substring(prefix.length()), PROPERTIES.getProperty(key).trim());
+            }
+        }
+        return properties;
+    }
 }
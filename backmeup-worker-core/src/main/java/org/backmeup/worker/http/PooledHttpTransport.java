@@ -0,0 +1,242 @@
+package org.backmeup.worker.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicGauge;
+import com.netflix.servo.monitor.MonitorConfig;
+
+/**
+ * Pooled HTTP client for the requests the worker makes itself, e.g. the
+ * ranged downloads of the {@link org.backmeup.worker.job.download.DownloadScheduler}.
+ * Connections are kept alive and reused across requests, so concurrent
+ * requests to the same host do not each pay for a TCP/TLS handshake. The
+ * backmeup service client and the plugins create their own connections and
+ * are not affected by the settings of the transport.
+ * 
+ * The number of connections is limited in total and per route (host). The
+ * limit of a route can be overridden per host name; it applies to each route
+ * of the host, whatever its scheme and port. Idle connections are
+ * closed in the background once their keep-alive has expired. The numbers of
+ * leased, pending and available connections are published as gauges.
+ */
+public class PooledHttpTransport {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledHttpTransport.class);
+
+    private static final String TRANSPORT_TAG = "transport";
+    private static final long EVICTION_INTERVAL_MILLIS = 5000;
+
+    private final long keepAliveMillis;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final ScheduledExecutorService evictionExecutor;
+    private final List<BasicGauge<Integer>> poolGauges;
+
+    /**
+     * @param name
+     *            name of the transport, used as tag of the metrics
+     * @param maxConnections
+     *            maximum number of connections in total
+     * @param maxConnectionsPerRoute
+     *            maximum number of connections per route
+     * @param routeLimits
+     *            maximum number of connections per host name, overrides the
+     *            limit per route
+     * @param connectTimeoutMillis
+     *            timeout for establishing a connection, 0 means no timeout
+     * @param socketTimeoutMillis
+     *            timeout for waiting for data, 0 means no timeout
+     * @param connectionRequestTimeoutMillis
+     *            timeout for waiting for a connection from the pool, 0 means
+     *            no timeout
+     * @param keepAliveMillis
+     *            time an idle connection is kept if the server does not
+     *            specify it, 0 keeps it until the server closes it
+     * @param gzip
+     *            whether responses may be compressed
+     */
+    public PooledHttpTransport(String name, int maxConnections, int maxConnectionsPerRoute, Map<String, Integer> routeLimits,
+            int connectTimeoutMillis, int socketTimeoutMillis, int connectionRequestTimeoutMillis, long keepAliveMillis, boolean gzip) {
+        if (maxConnections < 1 || maxConnectionsPerRoute < 1) {
+            throw new IllegalArgumentException("Connection limits must be positive");
+        }
+        this.keepAliveMillis = keepAliveMillis;
+
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        this.connectionManager.setMaxTotal(maxConnections);
+        this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis)
+                .setSocketTimeout(socketTimeoutMillis)
+                .setConnectionRequestTimeout(connectionRequestTimeoutMillis)
+                .build();
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(this.connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(new KeepAliveStrategy(keepAliveMillis));
+        if (!routeLimits.isEmpty()) {
+            builder.setRoutePlanner(new HostLimitRoutePlanner(routeLimits));
+        }
+        if (!gzip) {
+            builder.disableContentCompression();
+        }
+        this.httpClient = builder.build();
+
+        this.evictionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "backmeup-http-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.evictionExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictConnections();
+            }
+        }, EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        this.poolGauges = new ArrayList<>();
+        registerPoolGauge(name, "httpConnectionsLeased", new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return getPoolStats().getLeased();
+            }
+        });
+        registerPoolGauge(name, "httpConnectionsPending", new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return getPoolStats().getPending();
+            }
+        });
+        registerPoolGauge(name, "httpConnectionsAvailable", new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return getPoolStats().getAvailable();
+            }
+        });
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public CloseableHttpClient getHttpClient() {
+        return this.httpClient;
+    }
+
+    public PoolStats getPoolStats() {
+        return this.connectionManager.getTotalStats();
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    public void shutdown() {
+        this.evictionExecutor.shutdownNow();
+        for (BasicGauge<Integer> gauge : this.poolGauges) {
+            DefaultMonitorRegistry.getInstance().unregister(gauge);
+        }
+        try {
+            this.httpClient.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close HTTP client", e);
+        }
+    }
+
+    // Private methods --------------------------------------------------------
+
+    private void evictConnections() {
+        this.connectionManager.closeExpiredConnections();
+        if (this.keepAliveMillis > 0) {
+            this.connectionManager.closeIdleConnections(this.keepAliveMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void registerPoolGauge(String transportName, String gaugeName, Callable<Integer> value) {
+        MonitorConfig config = MonitorConfig.builder(gaugeName).withTag(TRANSPORT_TAG, transportName).build();
+        BasicGauge<Integer> gauge = new BasicGauge<>(config, value);
+        DefaultMonitorRegistry.getInstance().register(gauge);
+        this.poolGauges.add(gauge);
+    }
+
+    // Nested classes ---------------------------------------------------------
+
+    /**
+     * Applies the connection limit of a host name to a route of the host
+     * when the route is used for the first time. Routes are only known once
+     * a request names the scheme and port.
+     */
+    private class HostLimitRoutePlanner extends DefaultRoutePlanner {
+        private final Map<String, Integer> hostLimits;
+        private final Set<HttpRoute> limitedRoutes;
+
+        HostLimitRoutePlanner(Map<String, Integer> hostLimits) {
+            super(null);
+            this.hostLimits = new HashMap<>();
+            for (Map.Entry<String, Integer> e : hostLimits.entrySet()) {
+                this.hostLimits.put(e.getKey().toLowerCase(Locale.ROOT), e.getValue());
+            }
+            this.limitedRoutes = Collections.newSetFromMap(new ConcurrentHashMap<HttpRoute, Boolean>());
+        }
+
+        @Override
+        public HttpRoute determineRoute(HttpHost host, HttpRequest request, HttpContext context) throws HttpException {
+            HttpRoute route = super.determineRoute(host, request, context);
+            Integer limit = this.hostLimits.get(route.getTargetHost().getHostName().toLowerCase(Locale.ROOT));
+            if (limit != null && this.limitedRoutes.add(route)) {
+                connectionManager.setMaxPerRoute(route, limit);
+            }
+            return route;
+        }
+    }
+
+    /**
+     * Keeps a connection as long as the server allows it (Keep-Alive header)
+     * or for the default time if the server does not specify it.
+     */
+    private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        private final long defaultKeepAliveMillis;
+
+        KeepAliveStrategy(long defaultKeepAliveMillis) {
+            this.defaultKeepAliveMillis = defaultKeepAliveMillis;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : this.defaultKeepAliveMillis;
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package org.backmeup.worker.job;
 
+import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.backmeup.model.constants.JobExecutionStatus;
 import org.backmeup.model.dto.BackupJobExecutionDTO;
@@ -20,6 +23,22 @@ import org.backmeup.plugin.api.storage.Storage;
 import org.backmeup.plugin.api.storage.StorageException;
 import org.backmeup.plugin.infrastructure.PluginManager;
 import org.backmeup.service.client.BackmeupService;
+import org.backmeup.worker.job.action.ActionDependencies;
+import org.backmeup.worker.job.action.ActionScheduler;
+import org.backmeup.worker.job.action.ActionTask;
+import org.backmeup.worker.job.bandwidth.BandwidthGovernor;
+import org.backmeup.worker.job.bandwidth.BandwidthShare;
+import org.backmeup.worker.job.download.DownloadScheduler;
+import org.backmeup.worker.job.download.DownloadSession;
+import org.backmeup.worker.job.incremental.IncrementalBackupFilter;
+import org.backmeup.worker.job.journal.JobJournal;
+import org.backmeup.worker.job.scheduling.JobSizeEstimator;
+import org.backmeup.worker.job.stage.JobStage;
+import org.backmeup.worker.job.status.JobStatusUpdater;
+import org.backmeup.worker.job.stage.StagedJobExecutor;
+import org.backmeup.worker.job.upload.ParallelUploadEngine;
+import org.backmeup.worker.job.workdir.WorkDirectoryManager;
+import org.backmeup.worker.outbox.ServiceOutbox;
 import org.backmeup.worker.perfmon.JobMetrics;
 import org.backmeup.worker.utils.StringUtils;
 import org.slf4j.Logger;
@@ -29,6 +48,15 @@ import com.netflix.servo.monitor.Counter;
 
 /**
  * Implements the actual BackupJob execution.
+ * 
+ * If a {@link StagedJobExecutor} is set, the download, processing and upload
+ * stages of a job run on the thread pool of the respective stage. Otherwise
+ * all stages run on the calling thread.
+ * 
+ * If journaling is enabled, the progress of a job is recorded in a
+ * {@link JobJournal}. A job that is redelivered after its download completed
+ * reuses the downloaded data instead of downloading it again, a job that is
+ * redelivered after its actions completed continues with the upload.
  */
 public class BackupJobRunner {
     private static final Logger LOGGER = LoggerFactory.getLogger(BackupJobRunner.class);
@@ -36,131 +64,360 @@ public class BackupJobRunner {
     private static final String INDEXING_PLUGIN_OSGI_BUNDLE_ID = "org.backmeup.indexing";
     private static final String INDEXER_BACKMEUP_PLUGIN_ID = "org.backmeup.indexer";
 
+    public static final String DOWNLOAD_BANDWIDTH_ATTRIBUTE = "org.backmeup.worker.bandwidth.download";
+    public static final String UPLOAD_BANDWIDTH_ATTRIBUTE = "org.backmeup.worker.bandwidth.upload";
+
     private final String jobTempDir;
     private final String backupNameTemplate;
 
     private final PluginManager pluginManager;
     private final BackmeupService bmuService;
+    private final JobSizeEstimator sizeEstimator;
+    private final StagedJobExecutor stageExecutor;
+    private final ActionScheduler actionScheduler;
+    private volatile boolean keepJobData;
+    private volatile WorkDirectoryManager workDirectoryManager;
+    private volatile IncrementalBackupFilter incrementalFilter;
+    private volatile boolean journalEnabled;
+    private volatile ParallelUploadEngine uploadEngine;
+    private volatile DownloadScheduler downloadScheduler;
+    private volatile BandwidthGovernor downloadGovernor;
+    private volatile BandwidthGovernor uploadGovernor;
+    private volatile JobStatusUpdater statusUpdater;
+    private volatile ServiceOutbox outbox;
 
     private final Counter bytesReceived = JobMetrics.getCounter(BackupJobRunner.class, JobMetrics.BYTES_RECEIVED);
     private final Counter bytesSent = JobMetrics.getCounter(BackupJobRunner.class, JobMetrics.BYTES_SENT);
     private final Counter objectsReceived = JobMetrics.getCounter(BackupJobRunner.class, JobMetrics.OBJECTS_RECEIVED);
     private final Counter objectsSent = JobMetrics.getCounter(BackupJobRunner.class, JobMetrics.OBJECTS_SENT);
+    private final Counter bytesUnchanged = JobMetrics.getCounter(BackupJobRunner.class, JobMetrics.BYTES_UNCHANGED);
+    private final Counter objectsUnchanged = JobMetrics.getCounter(BackupJobRunner.class, JobMetrics.OBJECTS_UNCHANGED);
 
     public BackupJobRunner(PluginManager pluginManager, BackmeupService bmuService, String jobTempDir, String backupName) {
+        this(pluginManager, bmuService, jobTempDir, backupName, null);
+    }
+
+    public BackupJobRunner(PluginManager pluginManager, BackmeupService bmuService, String jobTempDir, String backupName,
+            JobSizeEstimator sizeEstimator) {
+        this(pluginManager, bmuService, jobTempDir, backupName, sizeEstimator, null);
+    }
+
+    public BackupJobRunner(PluginManager pluginManager, BackmeupService bmuService, String jobTempDir, String backupName,
+            JobSizeEstimator sizeEstimator, StagedJobExecutor stageExecutor) {
+        this(pluginManager, bmuService, jobTempDir, backupName, sizeEstimator, stageExecutor, null);
+    }
+
+    public BackupJobRunner(PluginManager pluginManager, BackmeupService bmuService, String jobTempDir, String backupName,
+            JobSizeEstimator sizeEstimator, StagedJobExecutor stageExecutor, ActionScheduler actionScheduler) {
         this.pluginManager = pluginManager;
         this.bmuService = bmuService;
         this.jobTempDir = jobTempDir;
         this.backupNameTemplate = backupName;
+        this.sizeEstimator = sizeEstimator;
+        this.stageExecutor = stageExecutor;
+        // Without a scheduler, actions run in sequence in the order of their dependencies
+        this.actionScheduler = actionScheduler != null ? actionScheduler : new ActionScheduler(1, new ActionDependencies());
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public boolean isKeepJobData() {
+        return this.keepJobData;
+    }
+
+    /**
+     * If set, the temporary data of successful jobs is not removed from the
+     * local storage (e.g. for debugging). Data of failed jobs is always kept.
+     */
+    public void setKeepJobData(boolean keepJobData) {
+        this.keepJobData = keepJobData;
+    }
+
+    public WorkDirectoryManager getWorkDirectoryManager() {
+        return this.workDirectoryManager;
     }
 
-    public void executeBackup(Long jobExecutionId, Storage storage) throws StorageException {
+    /**
+     * If set, the directories of the jobs are removed asynchronously by the
+     * manager instead of closing the storage on the job thread.
+     */
+    public void setWorkDirectoryManager(WorkDirectoryManager workDirectoryManager) {
+        this.workDirectoryManager = workDirectoryManager;
+    }
+
+    public IncrementalBackupFilter getIncrementalFilter() {
+        return this.incrementalFilter;
+    }
+
+    /**
+     * If set, objects that have not changed since the last successful backup
+     * of the source profile are published to the sinks, which may skip their
+     * upload (see {@link IncrementalBackupFilter#CONTEXT_ATTRIBUTE}).
+     */
+    public void setIncrementalFilter(IncrementalBackupFilter incrementalFilter) {
+        this.incrementalFilter = incrementalFilter;
+    }
+
+    public boolean isJournalEnabled() {
+        return this.journalEnabled;
+    }
+
+    /**
+     * If set, the progress of the jobs is journaled in their job directory so
+     * a redelivered job can resume from its last checkpoint.
+     */
+    public void setJournalEnabled(boolean journalEnabled) {
+        this.journalEnabled = journalEnabled;
+    }
+
+    public ParallelUploadEngine getUploadEngine() {
+        return this.uploadEngine;
+    }
+
+    /**
+     * If set, the engine is offered to the datasinks in the plugin context
+     * (see {@link ParallelUploadEngine#CONTEXT_ATTRIBUTE}).
+     */
+    public void setUploadEngine(ParallelUploadEngine uploadEngine) {
+        this.uploadEngine = uploadEngine;
+    }
+
+    public DownloadScheduler getDownloadScheduler() {
+        return this.downloadScheduler;
+    }
+
+    /**
+     * If set, each job gets a download session in the plugin context (see
+     * {@link DownloadScheduler#CONTEXT_ATTRIBUTE}), so datasources can fetch
+     * objects concurrently.
+     */
+    public void setDownloadScheduler(DownloadScheduler downloadScheduler) {
+        this.downloadScheduler = downloadScheduler;
+    }
+
+    public BandwidthGovernor getDownloadGovernor() {
+        return this.downloadGovernor;
+    }
+
+    public BandwidthGovernor getUploadGovernor() {
+        return this.uploadGovernor;
+    }
+
+    /**
+     * If set, each job gets a bandwidth share per direction in the plugin
+     * context (see {@link #DOWNLOAD_BANDWIDTH_ATTRIBUTE} and
+     * {@link #UPLOAD_BANDWIDTH_ATTRIBUTE}). Either governor may be null.
+     */
+    public void setBandwidthGovernors(BandwidthGovernor downloadGovernor, BandwidthGovernor uploadGovernor) {
+        this.downloadGovernor = downloadGovernor;
+        this.uploadGovernor = uploadGovernor;
+    }
+
+    public JobStatusUpdater getStatusUpdater() {
+        return this.statusUpdater;
+    }
+
+    /**
+     * If set, status updates of the jobs are sent asynchronously by the
+     * updater instead of on the job thread.
+     */
+    public void setStatusUpdater(JobStatusUpdater statusUpdater) {
+        this.statusUpdater = statusUpdater;
+    }
+
+    public ServiceOutbox getOutbox() {
+        return this.outbox;
+    }
+
+    /**
+     * If set (and no status updater is set), status updates of the jobs are
+     * added to the outbox, which sends them in the background.
+     */
+    public void setOutbox(ServiceOutbox outbox) {
+        this.outbox = outbox;
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    public JobExecutionStatus executeBackup(Long jobExecutionId, Storage storage) throws StorageException {
         BackupJobExecutionDTO backupJob = this.bmuService.getBackupJobExecution(jobExecutionId, true);
+        return executeBackup(backupJob, storage);
+    }
 
+    /**
+     * @return the status the job execution ended with
+     */
+    public JobExecutionStatus executeBackup(final BackupJobExecutionDTO backupJob, final Storage storage) throws StorageException {
         LOGGER.info("Job execution with id {} started for user {}", backupJob.getId(), backupJob.getUser().getUserId());
 
         backupJob.setStart(new Date());
         backupJob.setStatus(JobExecutionStatus.RUNNING);
 
-        this.bmuService.updateBackupJobExecution(backupJob);
+        updateStatus(backupJob);
+
+        final WorkDirectoryManager workDirs = this.workDirectoryManager;
+        if (workDirs != null) {
+            workDirs.jobStarted(backupJob.getId());
+        }
+
+        // Bandwidth of the job, shaped with the other jobs
+        final BandwidthShare downloadBandwidth = openBandwidthShare(this.downloadGovernor, backupJob);
+        final BandwidthShare uploadBandwidth = openBandwidthShare(this.uploadGovernor, backupJob);
 
         try {
             // Open temporary local storage------------------------------------
             // This storage is used to temporarily store the data while executing the job
-            String tmpDir = generateTmpDirName(backupJob, backupJob.getSource());
-            storage.open(tmpDir);
+            // A job that already downloaded or processed its data continues with it
+            final JobJournal journal = this.journalEnabled ? JobJournal.open(new File(this.jobTempDir, backupJob.getId().toString())) : null;
+            final String resumeDir = journal != null ? journal.getResumableTmpDir() : null;
+            String dataDir = resumeDir != null ? resumeDir : generateTmpDirName(backupJob, backupJob.getSource());
+            storage.open(dataDir);
+            boolean resumable = resumeDir != null;
+            if (resumable && storage.getDataObjectCount() != journal.getObjectCount()) {
+                // Closing removes the stale data, the job downloads again
+                LOGGER.warn("Data of job {} does not match its journal, downloading again", backupJob.getId());
+                storage.close();
+                dataDir = generateTmpDirName(backupJob, backupJob.getSource());
+                storage.open(dataDir);
+                resumable = false;
+            }
+            final boolean processed = resumable && journal.isCompleted(JobStage.PROCESS);
+            if (resumable) {
+                LOGGER.info("Job {} resumes with {} {} objects in {}", backupJob.getId(), journal.getObjectCount(),
+                        processed ? "processed" : "downloaded", dataDir);
+            } else if (journal != null) {
+                journal.begin(dataDir);
+            }
+            final String tmpDir = dataDir;
+            final boolean resumed = resumable;
 
             // Prepare context object -----------------------------------------
             // Make properties global for the action loop. So the plugins can 
             // communicate (e.g. filesplit and encryption plugins)
-            PluginContext pluginContext = new PluginContext();
+            final PluginContext pluginContext = new PluginContext();
             pluginContext.setAttribute("org.backmeup.tmpdir", StringUtils.getLastSplitElement(tmpDir, "/"));
             pluginContext.setAttribute("org.backmeup.userid", backupJob.getUser().getUserId().toString());
 
             // TODO: Remove this workaround for indexing action
             pluginContext.setAttribute("org.backmeup.job", backupJob, true);
 
+            // Sources and sinks shape their streams with the bandwidth shares
+            if (downloadBandwidth != null) {
+                pluginContext.setAttribute(DOWNLOAD_BANDWIDTH_ATTRIBUTE, downloadBandwidth, true);
+            }
+            if (uploadBandwidth != null) {
+                pluginContext.setAttribute(UPLOAD_BANDWIDTH_ATTRIBUTE, uploadBandwidth, true);
+            }
+
+            // Sources may fetch objects concurrently
+            final DownloadScheduler scheduler = this.downloadScheduler;
+            final DownloadSession downloadSession = scheduler != null
+                    ? scheduler.openSession(backupJob.getId(), backupJob.getSource().getPluginId(), downloadBandwidth) : null;
+            if (downloadSession != null) {
+                pluginContext.setAttribute(DownloadScheduler.CONTEXT_ATTRIBUTE, downloadSession, true);
+            }
+
+            // Sinks may upload in parallel parts
+            if (this.uploadEngine != null) {
+                pluginContext.setAttribute(ParallelUploadEngine.CONTEXT_ATTRIBUTE, this.uploadEngine, true);
+            }
+
             // Prepare source plugin data -------------------------------------
-            Datasource source = this.pluginManager.getDatasource(backupJob.getSource().getPluginId());
+            final Datasource source = this.pluginManager.getDatasource(backupJob.getSource().getPluginId());
 
             // Prepare sink plugin data ---------------------------------------
-            Datasink sink = this.pluginManager.getDatasink(backupJob.getSink().getPluginId());
+            final Datasink sink = this.pluginManager.getDatasink(backupJob.getSink().getPluginId());
 
             // Download from source -------------------------------------------
-            LOGGER.info("Job {} downloading", backupJob.getId());
-            source.downloadAll(backupJob.getSource(), pluginContext, storage, new LoggerProgressor(backupJob, "datasource"));
-            this.bytesReceived.increment(storage.getDataObjectSize());
-            this.objectsReceived.increment(storage.getDataObjectCount());
-
-            // Execute actions in sequence ------------------------------------
-            LOGGER.info("Job {} processing", backupJob.getId());
-
-            // Run indexing in case the user has enabled it using the 'enable.indexing' user property
-            // We're using true as the default value for now
-            boolean doIndexing = true;
-
-            // has the indexer been requested during creation of the backup job?
-            List<PluginProfileDTO> actions = backupJob.getActions();
-            PluginProfileDTO indexer = null;
-            for (PluginProfileDTO actionProfile : actions) {
-                if (INDEXER_BACKMEUP_PLUGIN_ID.equals(actionProfile.getPluginId())) {
-                    indexer = actionProfile;
-                    break;
+            if (!resumed) {
+                runStage(JobStage.DOWNLOAD, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        LOGGER.info("Job {} downloading", backupJob.getId());
+                        try {
+                            source.downloadAll(backupJob.getSource(), pluginContext, storage, new LoggerProgressor(backupJob, "datasource"));
+                            // Fetches the source submitted have to complete within the stage
+                            if (downloadSession != null) {
+                                downloadSession.await();
+                            }
+                        } catch (Exception e) {
+                            if (downloadSession != null) {
+                                downloadSession.cancel();
+                            }
+                            throw e;
+                        }
+                        return null;
+                    }
+                });
+                if (journal != null) {
+                    journal.downloadCompleted(storage.getDataObjectCount(), storage.getDataObjectSize());
+                }
+                this.bytesReceived.increment(storage.getDataObjectSize());
+                this.objectsReceived.increment(storage.getDataObjectCount());
+                if (this.sizeEstimator != null) {
+                    this.sizeEstimator.recordRunSize(backupJob.getSource().getProfileId(), storage.getDataObjectSize());
                 }
             }
 
-            if (doIndexing && indexer == null) {
-                // if we need to index, add the indexer to the requested actions
-                PluginDescribable ad = this.pluginManager.getPluginDescribableById(INDEXING_PLUGIN_OSGI_BUNDLE_ID);
-                PluginProfileDTO indexActionProfile = new PluginProfileDTO();
-                indexActionProfile.setPluginId(ad.getId());
-                indexActionProfile.setProperties(new HashMap<String, String>());
-                actions.add(indexActionProfile);
-            }
-
-            // The action maybe need to be sorted by their priority, e.g. to guarantee that encryption happens last
-            // e.g. persistentJob.getSortedRequiredActions()
-            for (PluginProfileDTO actionProfile : backupJob.getActions()) {
-                String actionId = actionProfile.getPluginId();
-                Action action;
-
-                try {
-                    LOGGER.info("Job {} processing action {}", backupJob.getId(), actionId);
-                    if (INDEXER_BACKMEUP_PLUGIN_ID.equals(actionId)) {
-                        if (doIndexing) {
-                            // hand over information from the PluginDescribable to the indexAction plugin
-                            PluginDescribable pluginDescr = this.pluginManager.getPluginDescribableById(backupJob.getSink().getPluginId());
-                            Map<String, String> p = pluginDescr.getMetadata(backupJob.getSink().getAuthData().getProperties());
-
-                            if ((p.get(Metadata.STORAGE_ALWAYS_ACCESSIBLE) != null) && (p.get(Metadata.DOWNLOAD_BASE) != null)) {
-                                pluginContext.setAttribute(Metadata.STORAGE_ALWAYS_ACCESSIBLE, p.get(Metadata.STORAGE_ALWAYS_ACCESSIBLE));
-                                pluginContext.setAttribute(Metadata.DOWNLOAD_BASE, p.get(Metadata.DOWNLOAD_BASE));
-                            }
-                            pluginContext.setAttribute("org.backmeup.bmuprefix", StringUtils.getLastSplitElement(tmpDir, "/"));
-                            pluginContext.setAttribute("org.backmeup.thumbnails.tmpdir",
-                                    "/data/thumbnails/" + StringUtils.getLastSplitElement(tmpDir, "/"));
-                            doIndexing(actionProfile, pluginContext, storage, backupJob);
+            // Execute actions ------------------------------------------------
+            // In incremental mode, sinks learn which objects are unchanged
+            // A job that already processed its data continues with the upload.
+            // Its changes are lost, the objects count as changed next time
+            final IncrementalBackupFilter filter = this.incrementalFilter;
+            IncrementalBackupFilter.Changes changes = null;
+            if (!processed) {
+                // From here on the data is modified, a job interrupted before
+                // the actions completed has to start over
+                if (journal != null) {
+                    journal.stageStarted(JobStage.PROCESS);
+                }
+                changes = runStage(JobStage.PROCESS, new Callable<IncrementalBackupFilter.Changes>() {
+                    @Override
+                    public IncrementalBackupFilter.Changes call() throws Exception {
+                        IncrementalBackupFilter.Changes result = null;
+                        if (filter != null) {
+                            result = filter.findUnchanged(backupJob.getSource().getProfileId(), storage, new File(tmpDir));
+                            pluginContext.setAttribute(IncrementalBackupFilter.CONTEXT_ATTRIBUTE, result, true);
                         }
-                    } else {
-                        action = this.pluginManager.getAction(actionId);
-                        action.doAction(actionProfile, pluginContext, storage, new LoggerProgressor(backupJob, "action"));
+                        processActions(backupJob, pluginContext, storage, tmpDir);
+                        return result;
                     }
-                } catch (ActionException e) {
-                    LOGGER.info("Job {} processing action {} failed with exception: {}", backupJob.getId(), actionId, e);
+                });
+                if (journal != null) {
+                    journal.processingCompleted(storage.getDataObjectCount(), storage.getDataObjectSize());
                 }
             }
+            if (changes != null) {
+                this.bytesUnchanged.increment(changes.getUnchangedBytes());
+                this.objectsUnchanged.increment(changes.getUnchangedObjects());
+            }
 
             // Upload to sink -------------------------------------------------
-            LOGGER.info("Job {} uploading", backupJob.getId());
-            sink.upload(backupJob.getSink(), pluginContext, storage, new LoggerProgressor(backupJob, "datasink"));
+            runStage(JobStage.UPLOAD, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    LOGGER.info("Job {} uploading", backupJob.getId());
+                    sink.upload(backupJob.getSink(), pluginContext, storage, new LoggerProgressor(backupJob, "datasink"));
+                    return null;
+                }
+            });
+            if (journal != null) {
+                journal.stageCompleted(JobStage.UPLOAD);
+            }
             this.bytesSent.increment(storage.getDataObjectSize());
             this.objectsSent.increment(storage.getDataObjectCount());
+            if (changes != null) {
+                filter.commit(changes);
+            }
 
             // Close temp local storage-----------------------------------------
             // Closing the storage means to remove all files in the temporary directory.
             // Including the root directory and the parent (/..../jobId/BMU_xxxxx)!
-            // For debugging reasons, storage is not closed:
-            //storage.close();
+            // For debugging reasons, the data can be kept (see keepJobData).
+            // With a work directory manager, the data is removed asynchronously
+            if (!this.keepJobData && workDirs == null) {
+                closeStorage(backupJob, storage);
+            }
 
             backupJob.setStatus(JobExecutionStatus.SUCCESSFUL);
 
@@ -171,19 +428,146 @@ public class BackupJobRunner {
         } finally {
             LOGGER.info("Job execution with id {} ended with status: {}", backupJob.getId(), backupJob.getStatus());
             backupJob.setEnd(new Date());
+            try {
+                updateStatus(backupJob);
+            } finally {
+                // Released even if the status could not be sent
+                if (workDirs != null) {
+                    boolean successful = backupJob.getStatus() == JobExecutionStatus.SUCCESSFUL;
+                    workDirs.jobFinished(backupJob.getId(), successful && !this.keepJobData);
+                }
+                if (downloadBandwidth != null) {
+                    downloadBandwidth.close();
+                }
+                if (uploadBandwidth != null) {
+                    uploadBandwidth.close();
+                }
+            }
+        }
+        return backupJob.getStatus();
+    }
+
+    private void processActions(final BackupJobExecutionDTO backupJob, final PluginContext pluginContext, final Storage storage,
+            String tmpDir) throws StorageException {
+        LOGGER.info("Job {} processing", backupJob.getId());
+
+        // Run indexing in case the user has enabled it using the 'enable.indexing' user property
+        // We're using true as the default value for now
+        boolean doIndexing = true;
+
+        // has the indexer been requested during creation of the backup job?
+        List<PluginProfileDTO> actions = backupJob.getActions();
+        PluginProfileDTO indexer = null;
+        for (PluginProfileDTO actionProfile : actions) {
+            if (INDEXER_BACKMEUP_PLUGIN_ID.equals(actionProfile.getPluginId())) {
+                indexer = actionProfile;
+                break;
+            }
+        }
+
+        if (doIndexing && indexer == null) {
+            // if we need to index, add the indexer to the requested actions
+            PluginDescribable ad = this.pluginManager.getPluginDescribableById(INDEXING_PLUGIN_OSGI_BUNDLE_ID);
+            PluginProfileDTO indexActionProfile = new PluginProfileDTO();
+            indexActionProfile.setPluginId(ad.getId());
+            indexActionProfile.setProperties(new HashMap<String, String>());
+            actions.add(indexActionProfile);
+        }
+
+        // The order of the actions is given by their dependencies, e.g. to
+        // guarantee that encryption happens last
+        List<ActionTask> tasks = new ArrayList<>();
+        for (final PluginProfileDTO actionProfile : backupJob.getActions()) {
+            final String actionId = actionProfile.getPluginId();
+
+            if (INDEXER_BACKMEUP_PLUGIN_ID.equals(actionId)) {
+                if (doIndexing) {
+                    // hand over information from the PluginDescribable to the indexAction plugin
+                    PluginDescribable pluginDescr = this.pluginManager.getPluginDescribableById(backupJob.getSink().getPluginId());
+                    Map<String, String> p = pluginDescr.getMetadata(backupJob.getSink().getAuthData().getProperties());
+
+                    if ((p.get(Metadata.STORAGE_ALWAYS_ACCESSIBLE) != null) && (p.get(Metadata.DOWNLOAD_BASE) != null)) {
+                        pluginContext.setAttribute(Metadata.STORAGE_ALWAYS_ACCESSIBLE, p.get(Metadata.STORAGE_ALWAYS_ACCESSIBLE));
+                        pluginContext.setAttribute(Metadata.DOWNLOAD_BASE, p.get(Metadata.DOWNLOAD_BASE));
+                    }
+                    pluginContext.setAttribute("org.backmeup.bmuprefix", StringUtils.getLastSplitElement(tmpDir, "/"));
+                    pluginContext.setAttribute("org.backmeup.thumbnails.tmpdir",
+                            "/data/thumbnails/" + StringUtils.getLastSplitElement(tmpDir, "/"));
+                    addIndexingTasks(tasks, actionProfile, pluginContext, storage, backupJob);
+                }
+            } else {
+                tasks.add(new ActionTask(actionId) {
+                    @Override
+                    public void execute() throws ActionException, StorageException {
+                        Action action = pluginManager.getAction(actionId);
+                        action.doAction(actionProfile, pluginContext, storage, new LoggerProgressor(backupJob, "action"));
+                    }
+                });
+            }
+        }
+
+        this.actionScheduler.execute(backupJob.getId(), tasks);
+    }
+
+    private void updateStatus(BackupJobExecutionDTO backupJob) {
+        JobStatusUpdater updater = this.statusUpdater;
+        ServiceOutbox jobOutbox = this.outbox;
+        if (updater != null) {
+            updater.submit(backupJob);
+        } else if (jobOutbox == null || !jobOutbox.addStatusUpdate(backupJob)) {
+            // Sent directly if the outbox is full
             this.bmuService.updateBackupJobExecution(backupJob);
         }
     }
 
-    private void doIndexing(PluginProfileDTO profile, PluginContext context, Storage storage, BackupJobExecutionDTO job)
-            throws ActionException, StorageException {
-        // If we do indexing, the Thumbnail renderer needs to run before!
-        Action thumbnailAction = this.pluginManager.getAction("org.backmeup.thumbnail");
-        thumbnailAction.doAction(profile, context, storage, new LoggerProgressor(job, "thumbnailAction"));
+    private static BandwidthShare openBandwidthShare(BandwidthGovernor governor, BackupJobExecutionDTO backupJob) {
+        if (governor == null) {
+            return null;
+        }
+        return governor.openShare(backupJob.getId(), backupJob.getSource().getPluginId());
+    }
+
+    private void closeStorage(BackupJobExecutionDTO backupJob, Storage storage) {
+        try {
+            storage.close();
+            LOGGER.info("Job {} removed temporary data", backupJob.getId());
+        } catch (StorageException e) {
+            // The backup itself succeeded, only the temporary data is left
+            LOGGER.warn("Job {} failed to remove temporary data: {}", backupJob.getId(), e);
+        }
+    }
+
+    /**
+     * Runs a stage of the job on the thread pool of the stage or, if no stage
+     * executor is set, on the calling thread.
+     */
+    private <T> T runStage(JobStage stage, Callable<T> task) throws Exception {
+        if (this.stageExecutor == null) {
+            return task.call();
+        }
+        return this.stageExecutor.execute(stage, task);
+    }
+
+    private void addIndexingTasks(List<ActionTask> tasks, final PluginProfileDTO profile, final PluginContext context,
+            final Storage storage, final BackupJobExecutionDTO job) {
+        // If we do indexing, the Thumbnail renderer needs to run before (see
+        // ActionDependencies)!
+        tasks.add(new ActionTask(ActionDependencies.THUMBNAIL_ACTION_ID) {
+            @Override
+            public void execute() throws ActionException, StorageException {
+                Action thumbnailAction = pluginManager.getAction(ActionDependencies.THUMBNAIL_ACTION_ID);
+                thumbnailAction.doAction(profile, context, storage, new LoggerProgressor(job, "thumbnailAction"));
+            }
+        });
 
         // After thumbnail rendering, run indexing
-        Action indexAction = this.pluginManager.getAction("org.backmeup.indexing");
-        indexAction.doAction(profile, context, storage, new LoggerProgressor(job, "indexaction"));
+        tasks.add(new ActionTask(ActionDependencies.INDEXING_ACTION_ID) {
+            @Override
+            public void execute() throws ActionException, StorageException {
+                Action indexAction = pluginManager.getAction(ActionDependencies.INDEXING_ACTION_ID);
+                indexAction.doAction(profile, context, storage, new LoggerProgressor(job, "indexaction"));
+            }
+        });
     }
 
     private String generateTmpDirName(BackupJobExecutionDTO job, PluginProfileDTO profile) {
@@ -1,40 +1,93 @@
 package org.backmeup.worker.job;
 
+import org.backmeup.model.constants.JobExecutionStatus;
+import org.backmeup.model.dto.BackupJobExecutionDTO;
 import org.backmeup.plugin.api.storage.Storage;
 import org.backmeup.plugin.infrastructure.PluginManager;
 import org.backmeup.service.client.BackmeupService;
 import org.backmeup.worker.WorkerException;
+import org.backmeup.worker.job.scheduling.JobSchedulingInfo;
+import org.backmeup.worker.job.scheduling.SchedulableJob;
+import org.backmeup.worker.job.threadpool.PluginJob;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class BackupJobWorkerThread implements Runnable {
+public class BackupJobWorkerThread implements PluginJob, SchedulableJob {
     private static final Logger LOGGER = LoggerFactory.getLogger(BackupJobWorkerThread.class);
 
     private final Long backupJobId;
-    private final String backupName;
-
-    private final String jobTempDir;
+    private final BackupJobExecutionDTO backupJob;
+    private final JobSchedulingInfo schedulingInfo;
 
     private final PluginManager pluginManager;
-    private final BackmeupService bmuServiceClient;
+    private final BackupJobRunner runner;
+
+    private volatile JobExecutionStatus status;
 
     public BackupJobWorkerThread(Long backupJobId, PluginManager pluginManager,
             BackmeupService bmuServiceClient, String jobTempDir,String backupName) {
+        this(backupJobId, null, null, new BackupJobRunner(pluginManager, bmuServiceClient, jobTempDir, backupName), pluginManager);
+    }
+
+    /**
+     * @param backupJob
+     *            the already fetched job execution or null if the runner
+     *            has to fetch it
+     * @param schedulingInfo
+     *            scheduling attributes of the job or null
+     */
+    public BackupJobWorkerThread(Long backupJobId, BackupJobExecutionDTO backupJob, JobSchedulingInfo schedulingInfo,
+            BackupJobRunner runner, PluginManager pluginManager) {
         super();
         this.backupJobId = backupJobId;
-        this.backupName = backupName;
-        this.jobTempDir = jobTempDir;
+        this.backupJob = backupJob;
+        this.schedulingInfo = schedulingInfo;
+        this.runner = runner;
         this.pluginManager = pluginManager;
+    }
+
+    public Long getBackupJobId() {
+        return backupJobId;
+    }
+
+    /**
+     * The status the job ended with or null if the job has not been executed
+     * (or could not be started).
+     */
+    public JobExecutionStatus getStatus() {
+        return status;
+    }
 
-        this.bmuServiceClient = bmuServiceClient;
+    @Override
+    public JobSchedulingInfo getSchedulingInfo() {
+        return schedulingInfo;
+    }
+
+    @Override
+    public String getSourcePluginId() {
+        if (backupJob == null || backupJob.getSource() == null) {
+            return null;
+        }
+        return backupJob.getSource().getPluginId();
+    }
+
+    @Override
+    public String getSinkPluginId() {
+        if (backupJob == null || backupJob.getSink() == null) {
+            return null;
+        }
+        return backupJob.getSink().getPluginId();
     }
 
     @Override
     public void run() {
         try {
-            BackupJobRunner runner = new BackupJobRunner(pluginManager, bmuServiceClient, jobTempDir, backupName);
             Storage storage = pluginManager.service(Storage.class, "org.backmeup.localfilesystemstorage");
-            runner.executeBackup(backupJobId, storage);
+            if (backupJob != null) {
+                status = runner.executeBackup(backupJob, storage);
+            } else {
+                status = runner.executeBackup(backupJobId, storage);
+            }
         } catch (Exception e) {
             LOGGER.error("", e);
             throw new WorkerException("Failed to process job", e);
@@ -0,0 +1,177 @@
+package org.backmeup.worker.job.action;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.backmeup.worker.config.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ordering constraints between the actions of a backup job. Each action may
+ * declare the actions that have to complete before it can start. The special
+ * prerequisite {@link #ALL_ACTIONS} means that an action has to run after all
+ * other actions of the job (e.g. encryption).
+ * 
+ * Most constraints only define the order, an action whose prerequisite failed
+ * is still executed. Indexing however depends on the thumbnails: it is
+ * skipped if thumbnail rendering failed, as it was when both ran in sequence
+ * (see {@link #getRequiredActions(String)}).
+ * 
+ * Constraints can be configured with the property
+ * backmeup.worker.actions.dependencies.&lt;actionId&gt; and a comma separated
+ * list of action ids. A configured constraint replaces the built-in one of
+ * that action and only defines the order.
+ */
+public class ActionDependencies {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ActionDependencies.class);
+
+    public static final String ALL_ACTIONS = "*";
+
+    public static final String THUMBNAIL_ACTION_ID = "org.backmeup.thumbnail";
+    public static final String INDEXING_ACTION_ID = "org.backmeup.indexing";
+    public static final String ENCRYPTION_ACTION_ID = "org.backmeup.encryption";
+
+    private static final String CONFIG_PREFIX = "backmeup.worker.actions.dependencies.";
+
+    private final Map<String, Set<String>> prerequisites;
+    private final Map<String, Set<String>> requiredActions;
+
+    /**
+     * Creates the built-in constraints: thumbnails are rendered before
+     * indexing, which requires them, and encryption runs after all other
+     * actions.
+     */
+    public ActionDependencies() {
+        this.prerequisites = new HashMap<>();
+        this.prerequisites.put(INDEXING_ACTION_ID, Collections.singleton(THUMBNAIL_ACTION_ID));
+        this.prerequisites.put(ENCRYPTION_ACTION_ID, Collections.singleton(ALL_ACTIONS));
+
+        this.requiredActions = new HashMap<>();
+        this.requiredActions.put(INDEXING_ACTION_ID, Collections.singleton(THUMBNAIL_ACTION_ID));
+    }
+
+    public ActionDependencies(Map<String, String> constraints) {
+        this();
+        for (Map.Entry<String, String> constraint : constraints.entrySet()) {
+            Set<String> ids = new LinkedHashSet<>();
+            for (String id : Arrays.asList(constraint.getValue().split(","))) {
+                if (!id.trim().isEmpty()) {
+                    ids.add(id.trim());
+                }
+            }
+            this.prerequisites.put(constraint.getKey(), ids);
+            this.requiredActions.remove(constraint.getKey());
+        }
+    }
+
+    public static ActionDependencies fromConfiguration() {
+        return new ActionDependencies(Configuration.getProperties(CONFIG_PREFIX));
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    public Set<String> getPrerequisites(String actionId) {
+        Set<String> ids = this.prerequisites.get(actionId);
+        if (ids == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(ids);
+    }
+
+    /**
+     * Returns the prerequisites that have to succeed for the action to run.
+     * The action is skipped if one of them failed or was skipped.
+     */
+    public Set<String> getRequiredActions(String actionId) {
+        Set<String> ids = this.requiredActions.get(actionId);
+        if (ids == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(ids);
+    }
+
+    /**
+     * Splits the actions of a job into waves. All actions of a wave only
+     * depend on actions of earlier waves and may run concurrently. Within a
+     * wave, the actions keep the order in which they were given. Actions with
+     * the same id never run in the same wave.
+     * 
+     * If the constraints contain a cycle, the cycle is broken by running the
+     * first remaining action.
+     */
+    public List<List<ActionTask>> plan(List<ActionTask> tasks) {
+        // Number of unfinished actions per id
+        Map<String, Integer> unfinished = new HashMap<>();
+        for (ActionTask task : tasks) {
+            Integer count = unfinished.get(task.getActionId());
+            unfinished.put(task.getActionId(), count == null ? 1 : count + 1);
+        }
+
+        Map<ActionTask, Set<String>> pending = new HashMap<>();
+        for (ActionTask task : tasks) {
+            pending.put(task, resolvePrerequisites(task.getActionId(), unfinished.keySet()));
+        }
+
+        List<List<ActionTask>> waves = new ArrayList<>();
+        List<ActionTask> remaining = new ArrayList<>(tasks);
+        while (!remaining.isEmpty()) {
+            List<ActionTask> wave = new ArrayList<>();
+            Set<String> waveIds = new HashSet<>();
+            for (ActionTask task : remaining) {
+                if (!waveIds.contains(task.getActionId()) && isReady(pending.get(task), unfinished)) {
+                    wave.add(task);
+                    waveIds.add(task.getActionId());
+                }
+            }
+
+            if (wave.isEmpty()) {
+                LOGGER.warn("Cyclic action dependencies between {}, running {} first", remaining, remaining.get(0));
+                wave.add(remaining.get(0));
+            }
+
+            remaining.removeAll(wave);
+            for (ActionTask task : wave) {
+                unfinished.put(task.getActionId(), unfinished.get(task.getActionId()) - 1);
+            }
+            waves.add(wave);
+        }
+        return waves;
+    }
+
+    // Private methods --------------------------------------------------------
+
+    private Set<String> resolvePrerequisites(String actionId, Set<String> jobActionIds) {
+        Set<String> declared = getPrerequisites(actionId);
+        Set<String> resolved = new HashSet<>();
+        if (declared.contains(ALL_ACTIONS)) {
+            // All actions that are not themselves meant to run last
+            for (String id : jobActionIds) {
+                if (!getPrerequisites(id).contains(ALL_ACTIONS)) {
+                    resolved.add(id);
+                }
+            }
+        } else {
+            resolved.addAll(declared);
+            resolved.retainAll(jobActionIds);
+        }
+        resolved.remove(actionId);
+        return resolved;
+    }
+
+    private static boolean isReady(Set<String> prerequisites, Map<String, Integer> unfinished) {
+        for (String id : prerequisites) {
+            if (unfinished.get(id) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
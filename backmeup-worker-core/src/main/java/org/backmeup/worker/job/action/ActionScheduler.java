@@ -0,0 +1,134 @@
+package org.backmeup.worker.job.action;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.backmeup.plugin.api.ActionException;
+import org.backmeup.plugin.api.storage.StorageException;
+import org.backmeup.worker.WorkerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the actions of a backup job in the order given by the
+ * {@link ActionDependencies}. Independent actions (e.g. thumbnail rendering
+ * and a checksum action) run concurrently on a fork-join pool that is shared
+ * by all jobs. With a parallelism of 1, all actions run in sequence on the
+ * calling thread.
+ * 
+ * A failing action is logged and does not stop the job, but actions that
+ * require it (see {@link ActionDependencies#getRequiredActions(String)}) are
+ * skipped. Any other exception fails the job, actions of later waves are not
+ * started then.
+ */
+public class ActionScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ActionScheduler.class);
+
+    private final ActionDependencies dependencies;
+    private final ForkJoinPool pool;
+
+    public ActionScheduler(int parallelism, ActionDependencies dependencies) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.dependencies = dependencies;
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    public int getParallelism() {
+        return this.pool != null ? this.pool.getParallelism() : 1;
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    public void execute(Long jobId, List<ActionTask> tasks) throws StorageException {
+        // Ids of actions that failed or were skipped
+        Set<String> failed = Collections.synchronizedSet(new HashSet<String>());
+        for (List<ActionTask> wave : this.dependencies.plan(tasks)) {
+            List<ActionTask> runnable = new ArrayList<>();
+            for (ActionTask task : wave) {
+                if (canRun(jobId, task, failed)) {
+                    runnable.add(task);
+                }
+            }
+
+            if (this.pool == null || runnable.size() <= 1) {
+                for (ActionTask task : runnable) {
+                    executeTask(jobId, task, failed);
+                }
+            } else {
+                executeConcurrently(jobId, runnable, failed);
+            }
+        }
+    }
+
+    public void shutdown() {
+        if (this.pool != null) {
+            this.pool.shutdown();
+        }
+    }
+
+    // Private methods --------------------------------------------------------
+
+    private boolean canRun(Long jobId, ActionTask task, Set<String> failed) {
+        for (String id : this.dependencies.getRequiredActions(task.getActionId())) {
+            if (failed.contains(id)) {
+                LOGGER.info("Job {} skipping action {}, required action {} failed", jobId, task.getActionId(), id);
+                failed.add(task.getActionId());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void executeConcurrently(final Long jobId, List<ActionTask> wave, final Set<String> failed) throws StorageException {
+        List<Callable<Void>> callables = new ArrayList<>();
+        for (final ActionTask task : wave) {
+            callables.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    executeTask(jobId, task, failed);
+                    return null;
+                }
+            });
+        }
+
+        // Waits until all actions of the wave have completed
+        List<Future<Void>> futures = this.pool.invokeAll(callables);
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new WorkerException("Interrupted while executing actions of job " + jobId);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof StorageException) {
+                    throw (StorageException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new WorkerException("Failed to execute actions of job " + jobId, cause);
+            }
+        }
+    }
+
+    private static void executeTask(Long jobId, ActionTask task, Set<String> failed) throws StorageException {
+        try {
+            LOGGER.info("Job {} processing action {}", jobId, task.getActionId());
+            task.execute();
+        } catch (ActionException e) {
+            LOGGER.info("Job {} processing action {} failed with exception: {}", jobId, task.getActionId(), e);
+            failed.add(task.getActionId());
+        }
+    }
+}
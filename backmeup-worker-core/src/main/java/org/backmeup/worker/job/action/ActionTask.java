@@ -0,0 +1,28 @@
+package org.backmeup.worker.job.action;
+
+import org.backmeup.plugin.api.ActionException;
+import org.backmeup.plugin.api.storage.StorageException;
+
+/**
+ * A single action of a backup job, e.g. the execution of an action plugin on
+ * the local storage of the job. The action id is used to resolve the ordering
+ * constraints between the actions of a job (see {@link ActionDependencies}).
+ */
+public abstract class ActionTask {
+    private final String actionId;
+
+    public ActionTask(String actionId) {
+        this.actionId = actionId;
+    }
+
+    public String getActionId() {
+        return this.actionId;
+    }
+
+    public abstract void execute() throws ActionException, StorageException;
+
+    @Override
+    public String toString() {
+        return this.actionId;
+    }
+}
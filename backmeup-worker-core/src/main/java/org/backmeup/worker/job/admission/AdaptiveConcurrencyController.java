@@ -0,0 +1,260 @@
+package org.backmeup.worker.job.admission;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.backmeup.worker.perfmon.OperatingSystemMetricPoller;
+import org.backmeup.worker.perfmon.RuntimeMetricPoller;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.Metric;
+import com.netflix.servo.monitor.BasicGauge;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.publish.BasicMetricFilter;
+import com.netflix.servo.publish.MetricPoller;
+
+/**
+ * Adapts the number of jobs executed in parallel to the load of the node
+ * (additive increase, multiplicative decrease).
+ * 
+ * In every interval, the controller samples CPU load, heap usage and free
+ * physical memory (see {@link OperatingSystemMetricPoller} and
+ * {@link RuntimeMetricPoller}) and the job throughput of the executor:
+ * <ul>
+ * <li>If the node is overloaded, the limit is cut by a quarter.</li>
+ * <li>If all threads are busy and the throughput did not drop since the
+ * limit was last raised, the limit is raised by one.</li>
+ * <li>If the throughput dropped after the limit was raised, the increase is
+ * reverted.</li>
+ * </ul>
+ * The limit stays within the configured bounds. It is applied to the core and
+ * maximum size of the executor and to the job slots of the admission
+ * controller (limit plus the size of the local job queue).
+ */
+public class AdaptiveConcurrencyController {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveConcurrencyController.class);
+
+    private static final double DECREASE_FACTOR = 0.75;
+    private static final double THROUGHPUT_TOLERANCE = 0.9;
+    private static final double MIN_FREE_PHYSICAL_MEMORY = 0.05;
+
+    private final ThreadPoolExecutor executor;
+    private final JobAdmissionController admissionController;
+    private final int queueSize;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double maxCpuLoad;
+    private final double maxHeapUsage;
+
+    private final MetricPoller osPoller = new OperatingSystemMetricPoller();
+    private final MetricPoller runtimePoller = new RuntimeMetricPoller();
+
+    private volatile int limit;
+    private boolean lastIncreased;
+    private double lastThroughput;
+    private long lastCompletedJobs;
+    private long lastSampleTime;
+
+    private ScheduledExecutorService scheduler;
+
+    public AdaptiveConcurrencyController(ThreadPoolExecutor executor, JobAdmissionController admissionController, int queueSize,
+            int minLimit, int maxLimit, double maxCpuLoad, double maxHeapUsage) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid bounds: " + minLimit + " - " + maxLimit);
+        }
+        this.executor = executor;
+        this.admissionController = admissionController;
+        this.queueSize = queueSize;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxCpuLoad = maxCpuLoad;
+        this.maxHeapUsage = maxHeapUsage;
+
+        this.limit = Math.max(minLimit, Math.min(maxLimit, executor.getCorePoolSize()));
+
+        DefaultMonitorRegistry.getInstance().register(new BasicGauge<>(MonitorConfig.builder("concurrencyLimit").build(),
+                new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return limit;
+                    }
+                }));
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public int getMinLimit() {
+        return this.minLimit;
+    }
+
+    public int getMaxLimit() {
+        return this.maxLimit;
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    public synchronized void start(long interval, TimeUnit unit) {
+        if (this.scheduler != null) {
+            throw new IllegalStateException("Controller already started");
+        }
+
+        applyLimit(this.limit);
+        this.lastCompletedJobs = this.executor.getCompletedTaskCount();
+        this.lastSampleTime = System.nanoTime();
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "backmeup-concurrency-controller");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    adjust(collectSample());
+                } catch (RuntimeException e) {
+                    // Keep the controller alive
+                    LOGGER.error("Failed to adapt concurrency limit", e);
+                }
+            }
+        }, interval, interval, unit);
+    }
+
+    public synchronized void shutdown() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Computes the next limit from a sample of the node load and applies it.
+     * 
+     * @return the new limit
+     */
+    public synchronized int adjust(Sample sample) {
+        int next = this.limit;
+        boolean increased = false;
+
+        if (sample.isOverloaded(this.maxCpuLoad, this.maxHeapUsage)) {
+            next = (int) Math.floor(this.limit * DECREASE_FACTOR);
+        } else if (this.lastIncreased && sample.throughput < this.lastThroughput * THROUGHPUT_TOLERANCE) {
+            // More parallel jobs did not pay off
+            next = this.limit - 1;
+        } else if (sample.saturated) {
+            next = this.limit + 1;
+            increased = true;
+        }
+
+        next = Math.max(this.minLimit, Math.min(this.maxLimit, next));
+        this.lastIncreased = increased && next > this.limit;
+        this.lastThroughput = sample.throughput;
+
+        if (next != this.limit) {
+            LOGGER.info("Changing number of parallel jobs from {} to {} ({})", this.limit, next, sample);
+            applyLimit(next);
+        }
+        return next;
+    }
+
+    // Private methods --------------------------------------------------------
+
+    private void applyLimit(int newLimit) {
+        // The core size must never exceed the maximum size
+        if (newLimit > this.executor.getMaximumPoolSize()) {
+            this.executor.setMaximumPoolSize(newLimit);
+            this.executor.setCorePoolSize(newLimit);
+        } else {
+            this.executor.setCorePoolSize(newLimit);
+            this.executor.setMaximumPoolSize(newLimit);
+        }
+        this.admissionController.setMaxSlots(newLimit + this.queueSize);
+        this.limit = newLimit;
+    }
+
+    private synchronized Sample collectSample() {
+        List<Metric> osMetrics = this.osPoller.poll(BasicMetricFilter.MATCH_ALL);
+        List<Metric> runtimeMetrics = this.runtimePoller.poll(BasicMetricFilter.MATCH_ALL);
+
+        Sample sample = new Sample();
+        sample.cpuLoad = valueOf(osMetrics, "processCpuLoad");
+        double totalPhysical = valueOf(osMetrics, "totalPhysicalMemory");
+        if (totalPhysical > 0) {
+            sample.freePhysicalMemory = valueOf(osMetrics, "freePhysicalMemory") / totalPhysical;
+        }
+        double maxMemory = valueOf(runtimeMetrics, "maxMemory");
+        if (maxMemory > 0) {
+            sample.heapUsage = valueOf(runtimeMetrics, "usedMemory") / maxMemory;
+        }
+
+        long now = System.nanoTime();
+        long completed = this.executor.getCompletedTaskCount();
+        double seconds = (now - this.lastSampleTime) / 1e9;
+        sample.throughput = seconds > 0 ? (completed - this.lastCompletedJobs) / seconds : 0;
+        this.lastCompletedJobs = completed;
+        this.lastSampleTime = now;
+
+        sample.saturated = this.executor.getActiveCount() >= this.limit
+                && (!this.executor.getQueue().isEmpty() || this.admissionController.getAvailableSlots() <= 0);
+        return sample;
+    }
+
+    private static double valueOf(List<Metric> metrics, String name) {
+        for (Metric metric : metrics) {
+            if (name.equals(metric.getConfig().getName()) && metric.hasNumberValue()) {
+                return metric.getNumberValue().doubleValue();
+            }
+        }
+        // Metric not supported by this runtime
+        return -1;
+    }
+
+    // Nested classes ---------------------------------------------------------
+
+    /**
+     * Load of the node in one interval. Loads are ratios between 0 and 1, a
+     * negative value means that the metric is not available.
+     */
+    public static class Sample {
+        private double cpuLoad = -1;
+        private double heapUsage = -1;
+        private double freePhysicalMemory = -1;
+        private double throughput;
+        private boolean saturated;
+
+        public Sample() {
+        }
+
+        public Sample(double cpuLoad, double heapUsage, double freePhysicalMemory, double throughput, boolean saturated) {
+            this.cpuLoad = cpuLoad;
+            this.heapUsage = heapUsage;
+            this.freePhysicalMemory = freePhysicalMemory;
+            this.throughput = throughput;
+            this.saturated = saturated;
+        }
+
+        boolean isOverloaded(double maxCpuLoad, double maxHeapUsage) {
+            return this.cpuLoad > maxCpuLoad || this.heapUsage > maxHeapUsage
+                    || (this.freePhysicalMemory >= 0 && this.freePhysicalMemory < MIN_FREE_PHYSICAL_MEMORY);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("cpu: %.2f, heap: %.2f, free memory: %.2f, throughput: %.3f jobs/s, saturated: %s",
+                    this.cpuLoad, this.heapUsage, this.freePhysicalMemory, this.throughput, this.saturated);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.backmeup.worker.job.admission;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicTimer;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.monitor.Timer;
+
+/**
+ * Hands out a limited number of job slots. A permit has to be acquired before
+ * a job is handed to the executor and is released exactly once when the job
+ * has finished (or could not be submitted). Since job listeners are invoked
+ * on the thread of the job receiver, the receiver blocks while no slot is
+ * free.
+ * 
+ * The number of slots can be changed at runtime. If it is reduced while more
+ * slots are in use, no new slots are handed out until enough jobs have
+ * finished.
+ * 
+ * Once the controller is closed (e.g. while the worker drains), no slots are
+ * handed out anymore and waiting receivers return.
+ */
+public class JobAdmissionController {
+    private static final long CLOSE_CHECK_INTERVAL_MILLIS = 500;
+
+    private int maxSlots;
+    private volatile boolean closed;
+    private final ResizableSemaphore slots;
+
+    private final Timer admissionWaitTime;
+
+    public JobAdmissionController(int maxSlots) {
+        if (maxSlots < 1) {
+            throw new IllegalArgumentException("At least one job slot is required");
+        }
+        this.maxSlots = maxSlots;
+        this.slots = new ResizableSemaphore(maxSlots);
+
+        this.admissionWaitTime = new BasicTimer(MonitorConfig.builder("admissionWaitTime").build(), TimeUnit.MILLISECONDS);
+        DefaultMonitorRegistry.getInstance().register(this.admissionWaitTime);
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public synchronized int getMaxSlots() {
+        return this.maxSlots;
+    }
+
+    public synchronized void setMaxSlots(int maxSlots) {
+        if (maxSlots < 1) {
+            throw new IllegalArgumentException("At least one job slot is required");
+        }
+        if (maxSlots > this.maxSlots) {
+            this.slots.release(maxSlots - this.maxSlots);
+        } else if (maxSlots < this.maxSlots) {
+            this.slots.reducePermits(this.maxSlots - maxSlots);
+        }
+        this.maxSlots = maxSlots;
+    }
+
+    public int getAvailableSlots() {
+        return this.slots.availablePermits();
+    }
+
+    public synchronized int getUsedSlots() {
+        return this.maxSlots - this.slots.availablePermits();
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    /**
+     * Blocks until a job slot is free or the controller is closed. The time
+     * spent waiting is recorded in the admissionWaitTime metric.
+     * 
+     * @return true if a slot was acquired, false if the controller is closed
+     */
+    public boolean acquire() throws InterruptedException {
+        final long start = System.nanoTime();
+        try {
+            while (!this.closed) {
+                if (this.slots.tryAcquire(CLOSE_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (this.closed) {
+                        this.slots.release();
+                        return false;
+                    }
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            this.admissionWaitTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public boolean tryAcquire() {
+        return !this.closed && this.slots.tryAcquire();
+    }
+
+    public void release() {
+        this.slots.release();
+    }
+
+    /**
+     * Stops handing out slots. Receivers waiting for a slot return without
+     * one.
+     */
+    public void close() {
+        this.closed = true;
+    }
+
+    // Nested classes ---------------------------------------------------------
+
+    private static class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
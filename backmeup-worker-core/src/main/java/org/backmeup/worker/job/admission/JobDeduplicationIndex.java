@@ -0,0 +1,222 @@
+package org.backmeup.worker.job.admission;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.backmeup.worker.perfmon.JobMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.servo.monitor.Counter;
+
+/**
+ * Remembers the jobs that are in flight or have recently completed
+ * successfully, so that duplicates (e.g. redeliveries or re-published job
+ * ids) are dropped before they take a job slot. Duplicates are counted in the
+ * duplicateJobs metric.
+ * 
+ * Completed jobs are remembered for a configurable time. They are also
+ * appended to a file, so they survive a restart of the worker. The file is
+ * compacted once it contains mostly expired entries. Jobs in flight are only
+ * kept in memory, they have to run again after a crash.
+ */
+public class JobDeduplicationIndex {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobDeduplicationIndex.class);
+
+    private static final String SEPARATOR = ";";
+    private static final int MIN_COMPACTION_SIZE = 1000;
+
+    private final File file;
+    private final long ttlMillis;
+
+    private final Set<Long> inFlightJobs;
+    // Completed jobs and the time they completed at, in order of completion
+    private final LinkedHashMap<Long, Long> completedJobs;
+
+    private Writer writer;
+    private int fileEntries;
+
+    private final Counter duplicateJobs = JobMetrics.getCounter(JobDeduplicationIndex.class, "duplicateJobs");
+
+    /**
+     * @param file
+     *            file the completed jobs are stored in or null to keep them
+     *            in memory only
+     * @param ttlMillis
+     *            time completed jobs are remembered
+     */
+    public JobDeduplicationIndex(File file, long ttlMillis) {
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+        this.inFlightJobs = new HashSet<>();
+        this.completedJobs = new LinkedHashMap<>();
+
+        if (file != null) {
+            load();
+        }
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public synchronized int getNoOfInFlightJobs() {
+        return this.inFlightJobs.size();
+    }
+
+    public synchronized int getNoOfCompletedJobs() {
+        evictExpired(System.currentTimeMillis());
+        return this.completedJobs.size();
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    /**
+     * Registers a received job.
+     * 
+     * @return false if the job is a duplicate of a job in flight or of a
+     *         recently completed job
+     */
+    public synchronized boolean register(Long jobId) {
+        evictExpired(System.currentTimeMillis());
+
+        if (this.inFlightJobs.contains(jobId) || this.completedJobs.containsKey(jobId)) {
+            this.duplicateJobs.increment();
+            return false;
+        }
+        this.inFlightJobs.add(jobId);
+        return true;
+    }
+
+    /**
+     * Must be called when a registered job has been executed.
+     * 
+     * @param successful
+     *            true if the job completed successfully. Otherwise the job is
+     *            forgotten, so that it may be retried.
+     */
+    public synchronized void jobFinished(Long jobId, boolean successful) {
+        this.inFlightJobs.remove(jobId);
+        if (!successful || this.ttlMillis <= 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        this.completedJobs.remove(jobId);
+        this.completedJobs.put(jobId, now);
+        append(jobId, now);
+    }
+
+    /**
+     * Must be called when a registered job was not executed (e.g. it was
+     * returned to the queue).
+     */
+    public synchronized void jobAborted(Long jobId) {
+        this.inFlightJobs.remove(jobId);
+    }
+
+    public synchronized void close() {
+        if (this.writer != null) {
+            try {
+                this.writer.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close " + this.file, e);
+            }
+            this.writer = null;
+        }
+    }
+
+    // Private methods --------------------------------------------------------
+
+    private void evictExpired(long now) {
+        Iterator<Map.Entry<Long, Long>> it = this.completedJobs.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue() + this.ttlMillis > now) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    private void load() {
+        if (!this.file.exists()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        try (BufferedReader reader = Files.newBufferedReader(this.file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] entry = line.split(SEPARATOR);
+                try {
+                    Long jobId = Long.valueOf(entry[0]);
+                    long completed = Long.parseLong(entry[1]);
+                    if (completed + this.ttlMillis > now) {
+                        this.completedJobs.remove(jobId);
+                        this.completedJobs.put(jobId, completed);
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    // Partially written entry, e.g. after a crash
+                    LOGGER.debug("Skipping invalid entry '{}' in {}", line, this.file);
+                }
+            }
+            LOGGER.info("Loaded {} recently completed jobs from {}", this.completedJobs.size(), this.file);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to load completed jobs from " + this.file, e);
+        }
+        compact();
+    }
+
+    private void append(Long jobId, long completed) {
+        if (this.file == null) {
+            return;
+        }
+
+        if (this.fileEntries > Math.max(MIN_COMPACTION_SIZE, 2 * this.completedJobs.size())) {
+            compact();
+        }
+
+        try {
+            if (this.writer == null) {
+                this.writer = Files.newBufferedWriter(this.file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+            }
+            this.writer.write(jobId + SEPARATOR + completed + "\n");
+            this.writer.flush();
+            this.fileEntries++;
+        } catch (IOException e) {
+            LOGGER.warn("Failed to store completed job " + jobId + " in " + this.file, e);
+        }
+    }
+
+    /**
+     * Rewrites the file with the entries that have not expired yet.
+     */
+    private void compact() {
+        close();
+        evictExpired(System.currentTimeMillis());
+
+        File tmpFile = new File(this.file.getPath() + ".tmp");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<Long, Long> entry : this.completedJobs.entrySet()) {
+                    out.write(entry.getKey() + SEPARATOR + entry.getValue() + "\n");
+                }
+            }
+            Files.move(tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.fileEntries = this.completedJobs.size();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to compact " + this.file, e);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.backmeup.worker.job.bandwidth;
+
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicTimer;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.monitor.Timer;
+
+/**
+ * Shapes the bandwidth of one direction (e.g. uploads) of all jobs with token
+ * buckets. The governor has a global limit, which may change by time of day
+ * (see {@link BandwidthSchedule}), and an optional limit per job.
+ * 
+ * Jobs transfer through their {@link BandwidthShare}. When the global limit
+ * is reached, waiting transfers are served in weighted fair order: each
+ * share advances a virtual clock by bytes / weight, the transfer with the
+ * smallest virtual finish time goes first. A job with twice the weight thus
+ * gets twice the bandwidth while both are transferring, and a single job may
+ * use all of it. Weights are configured per source plugin.
+ * 
+ * Keeping the global limit below the capacity of the link leaves room for
+ * traffic that is not shaped, e.g. the calls to the backmeup service.
+ */
+public class BandwidthGovernor {
+    private static final String DIRECTION_TAG = "direction";
+    private static final long MIN_WAIT_MILLIS = 1;
+
+    private final String direction;
+    private final BandwidthSchedule schedule;
+    private final long jobRate;
+    private final Map<String, Integer> weights;
+
+    private final TokenBucket bucket;
+    private final PriorityQueue<Request> waiting;
+    private double virtualTime;
+    private long sequence;
+    private long rateMinute = -1;
+
+    private final Timer throttleWaitTime;
+
+    /**
+     * @param direction
+     *            name of the direction for logging and metrics
+     * @param jobRate
+     *            limit per job in bytes per second, 0 for unlimited
+     * @param weights
+     *            weight per source plugin id, the default weight is 1
+     */
+    public BandwidthGovernor(String direction, BandwidthSchedule schedule, long jobRate, Map<String, Integer> weights) {
+        this.direction = direction;
+        this.schedule = schedule;
+        this.jobRate = jobRate;
+        this.weights = new HashMap<>(weights);
+
+        this.bucket = new TokenBucket(schedule.getRate(Calendar.getInstance()), System.nanoTime());
+        this.waiting = new PriorityQueue<>(16, new Comparator<Request>() {
+            @Override
+            public int compare(Request r1, Request r2) {
+                int c = Double.compare(r1.virtualFinish, r2.virtualFinish);
+                return c != 0 ? c : Long.compare(r1.sequence, r2.sequence);
+            }
+        });
+
+        MonitorConfig config = MonitorConfig.builder("throttleWaitTime").withTag(DIRECTION_TAG, direction).build();
+        this.throttleWaitTime = new BasicTimer(config, TimeUnit.MILLISECONDS);
+        DefaultMonitorRegistry.getInstance().register(this.throttleWaitTime);
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public String getDirection() {
+        return this.direction;
+    }
+
+    /**
+     * Returns the current global limit in bytes per second, 0 if unlimited.
+     */
+    public synchronized long getRate() {
+        updateRate();
+        return this.bucket.getRate();
+    }
+
+    public long getJobRate() {
+        return this.jobRate;
+    }
+
+    public int getWeight(String pluginId) {
+        Integer weight = pluginId != null ? this.weights.get(pluginId) : null;
+        return weight != null && weight > 0 ? weight : 1;
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    /**
+     * Opens the share of a job. The share has to be closed when the job has
+     * finished.
+     */
+    public BandwidthShare openShare(Long jobId, String sourcePluginId) {
+        return new BandwidthShare(this, jobId, getWeight(sourcePluginId), this.jobRate);
+    }
+
+    // Package methods --------------------------------------------------------
+
+    /**
+     * Blocks until the share may transfer the bytes under the global limit.
+     */
+    void acquire(BandwidthShare share, long bytes) throws InterruptedException {
+        final long start = System.nanoTime();
+        synchronized (this) {
+            updateRate();
+            if (this.bucket.getRate() <= 0) {
+                return;
+            }
+
+            // A share that was idle starts at the current virtual time
+            double virtualStart = Math.max(share.getVirtualTime(), this.virtualTime);
+            Request request = new Request(virtualStart, virtualStart + (double) bytes / share.getWeight(), this.sequence++);
+            share.setVirtualTime(request.virtualFinish);
+            this.waiting.add(request);
+            try {
+                while (true) {
+                    long nanos = this.bucket.nanosUntilAvailable(System.nanoTime());
+                    if (nanos == 0 && this.waiting.peek() == request) {
+                        this.bucket.reserve(bytes, System.nanoTime());
+                        this.virtualTime = request.virtualStart;
+                        break;
+                    }
+                    wait(Math.max(MIN_WAIT_MILLIS, TimeUnit.NANOSECONDS.toMillis(nanos)));
+                    updateRate();
+                }
+            } finally {
+                this.waiting.remove(request);
+                notifyAll();
+            }
+        }
+        this.throttleWaitTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    // Private methods --------------------------------------------------------
+
+    /**
+     * Applies the limit of the schedule, checked once a minute.
+     */
+    private void updateRate() {
+        long minute = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+        if (minute != this.rateMinute) {
+            this.rateMinute = minute;
+            long rate = this.schedule.getRate(Calendar.getInstance());
+            if (rate != this.bucket.getRate()) {
+                this.bucket.setRate(rate, System.nanoTime());
+                notifyAll();
+            }
+        }
+    }
+
+    // Nested classes ---------------------------------------------------------
+
+    private static class Request {
+        private final double virtualStart;
+        private final double virtualFinish;
+        private final long sequence;
+
+        Request(double virtualStart, double virtualFinish, long sequence) {
+            this.virtualStart = virtualStart;
+            this.virtualFinish = virtualFinish;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.backmeup.worker.job.bandwidth;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bandwidth limits by time of day. A schedule has the form
+ * "08:00-18:00=512,22:00-06:00=0": a list of intervals with their limit in
+ * KB/s, 0 meaning unlimited. An interval may wrap around midnight. The first
+ * interval that contains the time applies, outside of all intervals the
+ * default limit applies.
+ */
+public class BandwidthSchedule {
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    private final long defaultRate;
+    private final List<Interval> intervals;
+
+    /**
+     * @param defaultRate
+     *            limit in bytes per second outside of the intervals, 0 for
+     *            unlimited
+     */
+    public BandwidthSchedule(long defaultRate) {
+        this(defaultRate, Collections.<Interval> emptyList());
+    }
+
+    private BandwidthSchedule(long defaultRate, List<Interval> intervals) {
+        this.defaultRate = defaultRate;
+        this.intervals = intervals;
+    }
+
+    /**
+     * Parses a schedule.
+     * 
+     * @throws IllegalArgumentException
+     *             if the schedule is malformed
+     */
+    public static BandwidthSchedule parse(long defaultRate, String schedule) {
+        List<Interval> intervals = new ArrayList<>();
+        if (schedule != null) {
+            for (String entry : schedule.split(",")) {
+                entry = entry.trim();
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                int eq = entry.indexOf('=');
+                int dash = entry.indexOf('-');
+                if (eq < 0 || dash < 0 || dash > eq) {
+                    throw new IllegalArgumentException("Invalid bandwidth schedule entry: " + entry);
+                }
+                int from = parseTime(entry.substring(0, dash).trim()) % MINUTES_PER_DAY;
+                int to = parseTime(entry.substring(dash + 1, eq).trim());
+                long rate = Long.parseLong(entry.substring(eq + 1).trim()) * 1024;
+                if (rate < 0) {
+                    throw new IllegalArgumentException("Invalid bandwidth schedule entry: " + entry);
+                }
+                intervals.add(new Interval(from, to, rate));
+            }
+        }
+        return new BandwidthSchedule(defaultRate, intervals);
+    }
+
+    public boolean isEmpty() {
+        return this.defaultRate <= 0 && this.intervals.isEmpty();
+    }
+
+    /**
+     * Returns the limit in bytes per second at the given minute of the day,
+     * 0 if unlimited.
+     */
+    public long getRate(int minuteOfDay) {
+        for (Interval interval : this.intervals) {
+            if (interval.contains(minuteOfDay)) {
+                return interval.rate;
+            }
+        }
+        return this.defaultRate;
+    }
+
+    public long getRate(Calendar time) {
+        return getRate(time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE));
+    }
+
+    private static int parseTime(String time) {
+        int colon = time.indexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Invalid time: " + time);
+        }
+        int hours = Integer.parseInt(time.substring(0, colon));
+        int minutes = Integer.parseInt(time.substring(colon + 1));
+        if (hours < 0 || minutes < 0 || minutes >= 60 || hours * 60 + minutes > MINUTES_PER_DAY) {
+            throw new IllegalArgumentException("Invalid time: " + time);
+        }
+        return hours * 60 + minutes;
+    }
+
+    // Nested classes ---------------------------------------------------------
+
+    private static class Interval {
+        private final int from;
+        private final int to;
+        private final long rate;
+
+        Interval(int from, int to, long rate) {
+            this.from = from;
+            this.to = to;
+            this.rate = rate;
+        }
+
+        boolean contains(int minute) {
+            if (this.from <= this.to) {
+                return minute >= this.from && minute < this.to;
+            }
+            // Wraps around midnight
+            return minute >= this.from || minute < this.to;
+        }
+    }
+}
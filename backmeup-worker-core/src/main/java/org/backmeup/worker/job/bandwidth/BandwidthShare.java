@@ -0,0 +1,201 @@
+package org.backmeup.worker.job.bandwidth;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicGauge;
+import com.netflix.servo.monitor.MonitorConfig;
+
+/**
+ * The bandwidth of a single job in one direction. Transfers are limited by
+ * the limit of the job and shaped by the {@link BandwidthGovernor}. Streams
+ * of datasources and datasinks are shaped by wrapping them, see
+ * {@link #wrap(InputStream)} and {@link #wrap(OutputStream)}.
+ * 
+ * The throughput the job achieved is exposed as jobThroughput gauge (bytes
+ * per second) while the share is open.
+ */
+public class BandwidthShare implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BandwidthShare.class);
+
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    private final BandwidthGovernor governor;
+    private final Long jobId;
+    private final int weight;
+    private final TokenBucket jobBucket;
+
+    private final long opened;
+    private final AtomicLong bytes;
+    private double virtualTime;
+
+    private final BasicGauge<Long> throughputGauge;
+
+    BandwidthShare(BandwidthGovernor governor, Long jobId, int weight, long jobRate) {
+        this.governor = governor;
+        this.jobId = jobId;
+        this.weight = weight;
+        this.jobBucket = jobRate > 0 ? new TokenBucket(jobRate, System.nanoTime()) : null;
+
+        this.opened = System.nanoTime();
+        this.bytes = new AtomicLong(0);
+
+        MonitorConfig config = MonitorConfig.builder("jobThroughput").withTag("direction", governor.getDirection())
+                .withTag("jobId", String.valueOf(jobId)).build();
+        this.throughputGauge = new BasicGauge<>(config, new Callable<Long>() {
+            @Override
+            public Long call() {
+                return getThroughput();
+            }
+        });
+        DefaultMonitorRegistry.getInstance().register(this.throughputGauge);
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public Long getJobId() {
+        return this.jobId;
+    }
+
+    public int getWeight() {
+        return this.weight;
+    }
+
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+    /**
+     * Average throughput since the share was opened in bytes per second.
+     */
+    public long getThroughput() {
+        long elapsed = System.nanoTime() - this.opened;
+        return elapsed > 0 ? this.bytes.get() * TimeUnit.SECONDS.toNanos(1) / elapsed : 0;
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    /**
+     * Blocks until the job may transfer the bytes.
+     */
+    public void acquire(long count) throws InterruptedException {
+        if (count <= 0) {
+            return;
+        }
+        if (this.jobBucket != null) {
+            long nanos = this.jobBucket.reserve(count, System.nanoTime());
+            if (nanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            }
+        }
+        this.governor.acquire(this, count);
+        this.bytes.addAndGet(count);
+    }
+
+    public InputStream wrap(InputStream in) {
+        return new ShapedInputStream(in);
+    }
+
+    public OutputStream wrap(OutputStream out) {
+        return new ShapedOutputStream(out);
+    }
+
+    @Override
+    public void close() {
+        DefaultMonitorRegistry.getInstance().unregister(this.throughputGauge);
+        LOGGER.info("Job {} transferred {} bytes ({}), {} bytes/s", this.jobId, this.bytes.get(), this.governor.getDirection(),
+                getThroughput());
+    }
+
+    // Package methods --------------------------------------------------------
+
+    /**
+     * Virtual finish time of the last transfer, guarded by the governor.
+     */
+    double getVirtualTime() {
+        return this.virtualTime;
+    }
+
+    void setVirtualTime(double virtualTime) {
+        this.virtualTime = virtualTime;
+    }
+
+    // Private methods --------------------------------------------------------
+
+    private void acquireInterruptibly(long count) throws InterruptedIOException {
+        try {
+            acquire(count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    // Nested classes ---------------------------------------------------------
+
+    /**
+     * Charges the bytes read after each read, reads are limited to the chunk
+     * size so that large reads do not monopolize the bandwidth.
+     */
+    private class ShapedInputStream extends FilterInputStream {
+        ShapedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                acquireInterruptibly(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, Math.min(len, MAX_CHUNK_SIZE));
+            if (n > 0) {
+                acquireInterruptibly(n);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Charges the bytes before they are written, in chunks.
+     */
+    private class ShapedOutputStream extends FilterOutputStream {
+        ShapedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            acquireInterruptibly(1);
+            this.out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int written = 0;
+            while (written < len) {
+                int chunk = Math.min(len - written, MAX_CHUNK_SIZE);
+                acquireInterruptibly(chunk);
+                this.out.write(b, off + written, chunk);
+                written += chunk;
+            }
+        }
+    }
+}
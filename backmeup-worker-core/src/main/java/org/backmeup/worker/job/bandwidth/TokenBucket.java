@@ -0,0 +1,74 @@
+package org.backmeup.worker.job.bandwidth;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket of bytes. The bucket holds at most one second worth of
+ * tokens. A reservation may exceed the tokens available, the bucket then
+ * goes into debt and later reservations wait until the debt is paid. Thus
+ * large transfers need not be split to fit the bucket.
+ * 
+ * A rate of 0 means unlimited.
+ */
+class TokenBucket {
+    private long rate;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(long rate, long now) {
+        this.rate = rate;
+        this.tokens = rate;
+        this.lastRefill = now;
+    }
+
+    synchronized long getRate() {
+        return this.rate;
+    }
+
+    synchronized void setRate(long rate, long now) {
+        refill(now);
+        this.rate = rate;
+        this.tokens = Math.min(this.tokens, rate);
+    }
+
+    /**
+     * Returns the nanoseconds until tokens are available, 0 if they are
+     * available now.
+     */
+    synchronized long nanosUntilAvailable(long now) {
+        if (this.rate <= 0) {
+            return 0;
+        }
+        refill(now);
+        if (this.tokens > 0) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - this.tokens) * TimeUnit.SECONDS.toNanos(1) / this.rate);
+    }
+
+    /**
+     * Takes the bytes from the bucket.
+     * 
+     * @return the nanoseconds the caller has to wait before the transfer
+     */
+    synchronized long reserve(long bytes, long now) {
+        if (this.rate <= 0) {
+            return 0;
+        }
+        refill(now);
+        double before = this.tokens;
+        this.tokens -= bytes;
+        if (before > 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-before * TimeUnit.SECONDS.toNanos(1) / this.rate);
+    }
+
+    private void refill(long now) {
+        if (this.rate > 0) {
+            double added = (double) (now - this.lastRefill) * this.rate / TimeUnit.SECONDS.toNanos(1);
+            this.tokens = Math.min(this.rate, this.tokens + added);
+        }
+        this.lastRefill = now;
+    }
+}
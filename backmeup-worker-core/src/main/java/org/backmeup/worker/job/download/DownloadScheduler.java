@@ -0,0 +1,139 @@
+package org.backmeup.worker.job.download;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.backmeup.worker.http.PooledHttpTransport;
+import org.backmeup.worker.job.bandwidth.BandwidthShare;
+import org.backmeup.worker.job.threadpool.JobThreadFactory;
+
+/**
+ * Runs the object fetches of datasources concurrently. A datasource takes the
+ * {@link DownloadSession} of its job from the plugin context (see
+ * {@link #CONTEXT_ATTRIBUTE}) and submits a fetch per object instead of
+ * fetching the objects one after another.
+ * 
+ * The threads are shared by all jobs. Each session has a window that limits
+ * the number of its fetches in flight; the window may be configured per
+ * source plugin. The number of concurrent fetches per host is limited across
+ * all sessions. Large objects can be fetched with concurrent ranged GETs
+ * through the pooled HTTP transport of the worker.
+ */
+public class DownloadScheduler {
+    public static final String CONTEXT_ATTRIBUTE = "org.backmeup.worker.downloadSession";
+
+    private final ThreadPoolExecutor executor;
+    private final int defaultWindow;
+    private final Map<String, Integer> sourceWindows;
+    private final int maxConnectionsPerHost;
+    private final long segmentSize;
+
+    private final ConcurrentMap<String, Semaphore> hostConnections;
+    private final PooledHttpTransport transport;
+
+    /**
+     * @param threads
+     *            number of threads shared by all jobs
+     * @param defaultWindow
+     *            maximum number of fetches of a job in flight
+     * @param sourceWindows
+     *            window per source plugin id, overrides the default window
+     * @param maxConnectionsPerHost
+     *            maximum number of concurrent fetches per host
+     * @param segmentSize
+     *            size of the segments of a ranged download in bytes
+     * @param transport
+     *            HTTP transport of the ranged downloads
+     */
+    public DownloadScheduler(int threads, int defaultWindow, Map<String, Integer> sourceWindows, int maxConnectionsPerHost,
+            long segmentSize, PooledHttpTransport transport) {
+        if (threads < 1 || defaultWindow < 1 || maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("Threads, window and connections per host must be positive");
+        }
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("Segment size must be positive");
+        }
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new JobThreadFactory("backmeup-download-", 0));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.defaultWindow = defaultWindow;
+        this.sourceWindows = new HashMap<>(sourceWindows);
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.segmentSize = segmentSize;
+        this.hostConnections = new ConcurrentHashMap<>();
+        this.transport = transport;
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public int getWindow(String sourcePluginId) {
+        Integer window = this.sourceWindows.get(sourcePluginId);
+        return window != null ? window : this.defaultWindow;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return this.maxConnectionsPerHost;
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    /**
+     * Opens the session for a job with the window of its source plugin.
+     */
+    public DownloadSession openSession(Long jobId, String sourcePluginId) {
+        return openSession(jobId, sourcePluginId, null);
+    }
+
+    /**
+     * Opens the session for a job whose ranged downloads are shaped by the
+     * given bandwidth share.
+     */
+    public DownloadSession openSession(Long jobId, String sourcePluginId, BandwidthShare bandwidth) {
+        return new DownloadSession(this, jobId, getWindow(sourcePluginId), bandwidth);
+    }
+
+    public void shutdown() {
+        // The transport is shared and shut down by its owner
+        this.executor.shutdownNow();
+    }
+
+    // Package methods --------------------------------------------------------
+
+    ThreadPoolExecutor getExecutor() {
+        return this.executor;
+    }
+
+    CloseableHttpClient getHttpClient() {
+        return this.transport.getHttpClient();
+    }
+
+    long getSegmentSize() {
+        return this.segmentSize;
+    }
+
+    /**
+     * Returns the semaphore limiting the fetches of a host, null if the host
+     * is unknown.
+     */
+    Semaphore getHostConnections(String host) {
+        if (host == null) {
+            return null;
+        }
+        Semaphore connections = this.hostConnections.get(host);
+        if (connections == null) {
+            Semaphore created = new Semaphore(this.maxConnectionsPerHost, true);
+            connections = this.hostConnections.putIfAbsent(host, created);
+            if (connections == null) {
+                connections = created;
+            }
+        }
+        return connections;
+    }
+}
@@ -0,0 +1,272 @@
+package org.backmeup.worker.job.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.backmeup.plugin.api.storage.StorageException;
+import org.backmeup.worker.job.bandwidth.BandwidthShare;
+import org.backmeup.worker.perfmon.JobMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.servo.monitor.Counter;
+
+/**
+ * The fetches of a single job. Submitting a fetch blocks while the window of
+ * the session or the connections of the host are exhausted. Once a fetch has
+ * failed, further submissions fail as well. The job waits for all fetches
+ * with {@link #await()}.
+ * 
+ * Ranged downloads are shaped by the download bandwidth share of the job, if
+ * any. Fetches of the datasource shape their streams themselves.
+ */
+public class DownloadSession {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DownloadSession.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DownloadScheduler scheduler;
+    private final Long jobId;
+    private final Semaphore window;
+    private final BandwidthShare bandwidth;
+
+    private final List<Future<Void>> futures;
+    private final AtomicReference<Exception> failure;
+
+    private final Counter fetchesCompleted = JobMetrics.getCounter(DownloadSession.class, JobMetrics.FETCHES_COMPLETED);
+    private final Counter segmentsFetched = JobMetrics.getCounter(DownloadSession.class, JobMetrics.SEGMENTS_FETCHED);
+
+    DownloadSession(DownloadScheduler scheduler, Long jobId, int window, BandwidthShare bandwidth) {
+        this.scheduler = scheduler;
+        this.jobId = jobId;
+        this.window = new Semaphore(window);
+        this.bandwidth = bandwidth;
+        this.futures = new ArrayList<>();
+        this.failure = new AtomicReference<>(null);
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    /**
+     * Submits a fetch. Blocks until the window of the session and the
+     * connections of the host of the fetch allow it to start.
+     * 
+     * @throws StorageException
+     *             if a fetch of this session has failed before
+     */
+    public void submit(final ObjectFetch fetch) throws StorageException {
+        checkFailure();
+
+        final Semaphore hostConnections = this.scheduler.getHostConnections(fetch.getHost());
+        try {
+            this.window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException(e);
+        }
+        if (hostConnections != null) {
+            try {
+                hostConnections.acquire();
+            } catch (InterruptedException e) {
+                this.window.release();
+                Thread.currentThread().interrupt();
+                throw new StorageException(e);
+            }
+        }
+
+        Callable<Void> task = new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    fetch.fetch();
+                    fetchesCompleted.increment();
+                    return null;
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                    throw e;
+                } finally {
+                    release(hostConnections);
+                }
+            }
+        };
+
+        synchronized (this.futures) {
+            pruneCompleted();
+            try {
+                this.futures.add(this.scheduler.getExecutor().submit(task));
+            } catch (RejectedExecutionException e) {
+                release(hostConnections);
+                throw new StorageException(e);
+            }
+        }
+    }
+
+    /**
+     * Downloads an object with ranged GETs of the segment size of the
+     * scheduler, the segments are fetched concurrently. Once all segments
+     * have been written to the target file, the handler is called (e.g. to
+     * add the file to the storage). The server has to support ranges.
+     * 
+     * @param length
+     *            length of the object in bytes
+     */
+    public void submitRanged(final URI uri, final long length, final File target, final DownloadedFileHandler handler)
+            throws StorageException {
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            file.setLength(length);
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+
+        final long segmentSize = this.scheduler.getSegmentSize();
+        final int segments = (int) Math.max(1, (length + segmentSize - 1) / segmentSize);
+        final AtomicInteger remaining = new AtomicInteger(segments);
+        for (int i = 0; i < segments; i++) {
+            final long start = i * segmentSize;
+            final long end = segments == 1 ? -1 : Math.min(length, start + segmentSize) - 1;
+            submit(new ObjectFetch() {
+                @Override
+                public String getHost() {
+                    return uri.getHost();
+                }
+
+                @Override
+                public void fetch() throws IOException, StorageException {
+                    fetchSegment(uri, target, start, end);
+                    if (remaining.decrementAndGet() == 0) {
+                        handler.downloaded(target);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Blocks until all submitted fetches have completed.
+     * 
+     * @throws StorageException
+     *             the first failure of a fetch
+     */
+    public void await() throws StorageException {
+        List<Future<Void>> pending;
+        synchronized (this.futures) {
+            pending = new ArrayList<>(this.futures);
+        }
+
+        try {
+            for (Future<Void> future : pending) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // Exceptions of fetches are already recorded, errors are not
+                    if (!(e.getCause() instanceof Exception)) {
+                        this.failure.compareAndSet(null, e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new StorageException(e);
+        }
+        checkFailure();
+    }
+
+    /**
+     * Cancels all fetches in flight.
+     */
+    public void cancel() {
+        synchronized (this.futures) {
+            for (Future<Void> future : this.futures) {
+                future.cancel(true);
+            }
+            this.futures.clear();
+        }
+    }
+
+    // Private methods --------------------------------------------------------
+
+    private void fetchSegment(URI uri, File target, long start, long end) throws IOException {
+        HttpGet get = new HttpGet(uri);
+        if (end >= 0) {
+            get.setHeader(HttpHeaders.RANGE, "bytes=" + start + "-" + end);
+        }
+        // Ranges of a compressed response would address the compressed bytes
+        get.setHeader(HttpHeaders.ACCEPT_ENCODING, "identity");
+
+        try (CloseableHttpResponse response = this.scheduler.getHttpClient().execute(get)) {
+            int status = response.getStatusLine().getStatusCode();
+            int expected = end >= 0 ? HttpStatus.SC_PARTIAL_CONTENT : HttpStatus.SC_OK;
+            if (status != expected) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                throw new IOException("Unexpected status " + status + " fetching " + uri + " (bytes " + start + "-" + end + ")");
+            }
+
+            long written = 0;
+            InputStream content = response.getEntity().getContent();
+            if (this.bandwidth != null) {
+                content = this.bandwidth.wrap(content);
+            }
+            try (InputStream in = content; RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+                file.seek(start);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    file.write(buffer, 0, read);
+                    written += read;
+                }
+            }
+            if (end >= 0 && written != end - start + 1) {
+                throw new IOException("Incomplete segment of " + uri + ": " + written + " of " + (end - start + 1) + " bytes");
+            }
+        }
+        this.segmentsFetched.increment();
+        LOGGER.debug("Job {} fetched bytes {}-{} of {}", this.jobId, start, end, uri);
+    }
+
+    private void release(Semaphore hostConnections) {
+        if (hostConnections != null) {
+            hostConnections.release();
+        }
+        this.window.release();
+    }
+
+    private void pruneCompleted() {
+        for (Iterator<Future<Void>> it = this.futures.iterator(); it.hasNext();) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+    }
+
+    private void checkFailure() throws StorageException {
+        Exception e = this.failure.get();
+        if (e != null) {
+            throw e instanceof StorageException ? (StorageException) e : new StorageException(e);
+        }
+    }
+
+    // Nested classes and interfaces ------------------------------------------
+
+    public interface DownloadedFileHandler {
+        void downloaded(File file) throws IOException, StorageException;
+    }
+}
@@ -0,0 +1,21 @@
+package org.backmeup.worker.job.download;
+
+import java.io.IOException;
+
+import org.backmeup.plugin.api.storage.StorageException;
+
+/**
+ * Fetches a single object from the source and writes it to the storage of
+ * the job. Fetches of a job run concurrently, so an implementation must be
+ * thread safe.
+ */
+public interface ObjectFetch {
+    /**
+     * Returns the host the object is fetched from, used to limit the number
+     * of connections per host. May be null if the number of connections is
+     * not limited.
+     */
+    String getHost();
+
+    void fetch() throws IOException, StorageException;
+}
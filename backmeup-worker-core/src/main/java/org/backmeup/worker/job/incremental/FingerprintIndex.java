@@ -0,0 +1,266 @@
+package org.backmeup.worker.job.incremental;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Persistent index of the fingerprints of the data objects of one source
+ * profile. The index is a hash table with open addressing (linear probing)
+ * in a memory-mapped file. Each record holds the hash of the object path, the
+ * size and content digest of the object and the time it was last seen:
+ * 
+ * <pre>
+ * header: int magic, int version, int capacity, int size
+ * record: long pathHash, long size, byte[16] digest, long lastSeen
+ * </pre>
+ * 
+ * A path hash of 0 marks a free slot. The table is rebuilt with twice the
+ * capacity when it is more than 70% full, and without the records of objects
+ * that have not been seen for a while when they are evicted.
+ */
+public class FingerprintIndex implements Closeable {
+    public static final int DIGEST_LENGTH = 16;
+
+    private static final int MAGIC = 0x424D5546;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 8 + 8 + DIGEST_LENGTH + 8;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MAX_LOAD_FACTOR = 0.7;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int size;
+
+    /**
+     * Opens the index stored in the file or creates a new one. An invalid
+     * file is replaced by an empty index.
+     */
+    public FingerprintIndex(File file) throws IOException {
+        this.file = file;
+        if (file.exists() && file.length() >= HEADER_SIZE) {
+            map(file);
+            if (this.buffer.getInt(0) == MAGIC && this.buffer.getInt(4) == VERSION
+                    && file.length() == fileSize(this.buffer.getInt(8))) {
+                this.capacity = this.buffer.getInt(8);
+                this.size = this.buffer.getInt(12);
+                return;
+            }
+            this.raf.close();
+        }
+        create(file, INITIAL_CAPACITY);
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    public synchronized int capacity() {
+        return this.capacity;
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    /**
+     * Returns true if the index contains an object with the same path, size
+     * and digest.
+     */
+    public synchronized boolean contains(String path, long objectSize, byte[] digest) {
+        long hash = hash(path);
+        int slot = find(hash);
+        int pos = position(slot);
+        if (this.buffer.getLong(pos) != hash || this.buffer.getLong(pos + 8) != objectSize) {
+            return false;
+        }
+
+        byte[] stored = new byte[DIGEST_LENGTH];
+        this.buffer.position(pos + 16);
+        this.buffer.get(stored);
+        return Arrays.equals(stored, Arrays.copyOf(digest, DIGEST_LENGTH));
+    }
+
+    public synchronized void put(String path, long objectSize, byte[] digest, long lastSeen) throws IOException {
+        if (this.size + 1 > this.capacity * MAX_LOAD_FACTOR) {
+            grow();
+        }
+
+        long hash = hash(path);
+        int slot = find(hash);
+        int pos = position(slot);
+        if (this.buffer.getLong(pos) == 0) {
+            this.size++;
+            this.buffer.putInt(12, this.size);
+        }
+        write(this.buffer, pos, hash, objectSize, Arrays.copyOf(digest, DIGEST_LENGTH), lastSeen);
+    }
+
+    /**
+     * Removes the records of objects that have not been seen since the given
+     * time, e.g. objects that have been deleted from the source. Without
+     * eviction these records would stay in the index forever.
+     * 
+     * @return the number of removed records
+     */
+    public synchronized int evict(long seenBefore) throws IOException {
+        int evicted = 0;
+        for (int slot = 0; slot < this.capacity; slot++) {
+            int pos = position(slot);
+            if (this.buffer.getLong(pos) != 0 && this.buffer.getLong(pos + 16 + DIGEST_LENGTH) < seenBefore) {
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            // Records cannot be removed in place, they may be part of the
+            // probe sequence of other records
+            rebuild(this.capacity, seenBefore);
+        }
+        return evicted;
+    }
+
+    public synchronized void flush() {
+        this.buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.raf != null) {
+            this.buffer.force();
+            this.raf.close();
+            this.raf = null;
+        }
+    }
+
+    // Private methods --------------------------------------------------------
+
+    /**
+     * Returns the slot of the record with the given hash or the free slot the
+     * record would be stored in.
+     */
+    private int find(long hash) {
+        int mask = this.capacity - 1;
+        int slot = (int) (mix(hash) & mask);
+        while (true) {
+            long stored = this.buffer.getLong(position(slot));
+            if (stored == 0 || stored == hash) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void grow() throws IOException {
+        rebuild(this.capacity * 2, Long.MIN_VALUE);
+    }
+
+    /**
+     * Copies the records seen at or after minLastSeen into a new table of
+     * the given capacity, which replaces the file atomically.
+     */
+    private void rebuild(int newCapacity, long minLastSeen) throws IOException {
+        if (fileSize(newCapacity) > Integer.MAX_VALUE) {
+            throw new IOException("Fingerprint index " + this.file + " is full");
+        }
+        File tmpFile = new File(this.file.getPath() + ".tmp");
+        int newSize = 0;
+        try (RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw")) {
+            tmp.setLength(fileSize(newCapacity));
+            MappedByteBuffer newBuffer = tmp.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize(newCapacity));
+
+            byte[] digest = new byte[DIGEST_LENGTH];
+            for (int slot = 0; slot < this.capacity; slot++) {
+                int pos = position(slot);
+                long hash = this.buffer.getLong(pos);
+                long lastSeen = this.buffer.getLong(pos + 16 + DIGEST_LENGTH);
+                if (hash == 0 || lastSeen < minLastSeen) {
+                    continue;
+                }
+                this.buffer.position(pos + 16);
+                this.buffer.get(digest);
+
+                int newSlot = (int) (mix(hash) & (newCapacity - 1));
+                while (newBuffer.getLong(HEADER_SIZE + newSlot * RECORD_SIZE) != 0) {
+                    newSlot = (newSlot + 1) & (newCapacity - 1);
+                }
+                write(newBuffer, HEADER_SIZE + newSlot * RECORD_SIZE, hash, this.buffer.getLong(pos + 8), digest, lastSeen);
+                newSize++;
+            }
+            writeHeader(newBuffer, newCapacity, newSize);
+            newBuffer.force();
+        }
+
+        this.raf.close();
+        Files.move(tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(this.file);
+        this.capacity = newCapacity;
+        this.size = newSize;
+    }
+
+    private void create(File f, int initialCapacity) throws IOException {
+        this.raf = new RandomAccessFile(f, "rw");
+        this.raf.setLength(0);
+        this.raf.setLength(fileSize(initialCapacity));
+        this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize(initialCapacity));
+        writeHeader(this.buffer, initialCapacity, 0);
+        this.capacity = initialCapacity;
+        this.size = 0;
+    }
+
+    private void map(File f) throws IOException {
+        this.raf = new RandomAccessFile(f, "rw");
+        this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.raf.length());
+    }
+
+    private static void writeHeader(MappedByteBuffer buf, int capacity, int size) {
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, VERSION);
+        buf.putInt(8, capacity);
+        buf.putInt(12, size);
+    }
+
+    private static void write(MappedByteBuffer buf, int pos, long hash, long objectSize, byte[] digest, long lastSeen) {
+        buf.putLong(pos, hash);
+        buf.putLong(pos + 8, objectSize);
+        buf.position(pos + 16);
+        buf.put(digest);
+        buf.putLong(pos + 16 + DIGEST_LENGTH, lastSeen);
+    }
+
+    private static int position(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private static long fileSize(int capacity) {
+        return HEADER_SIZE + (long) capacity * RECORD_SIZE;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the path. 0 is reserved for free slots.
+     */
+    static long hash(String path) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long mix(long hash) {
+        return hash ^ (hash >>> 32);
+    }
+}
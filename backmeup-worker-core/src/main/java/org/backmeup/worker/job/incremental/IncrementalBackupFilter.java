@@ -0,0 +1,242 @@
+package org.backmeup.worker.job.incremental;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.backmeup.plugin.api.storage.DataObject;
+import org.backmeup.plugin.api.storage.Storage;
+import org.backmeup.plugin.api.storage.StorageException;
+import org.backmeup.worker.WorkerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects the objects of a backup that have not changed since the last
+ * successful backup of the same source profile. An object is unchanged if its
+ * path, size and content digest match the {@link FingerprintIndex} of the
+ * profile.
+ * 
+ * The unchanged objects are published to the plugins in the context
+ * attribute {@link #CONTEXT_ATTRIBUTE}. Sinks that reference the data of
+ * earlier backups pass them to the
+ * {@link org.backmeup.worker.job.upload.ParallelUploadEngine}, which skips
+ * them. Sinks that store each backup on its own ignore them and still upload
+ * all objects.
+ * 
+ * The fingerprints are only written to the index by {@link #commit(Changes)},
+ * after the backup has been uploaded successfully. Fingerprints of objects
+ * that have not been seen for maxAgeMillis, e.g. because they have been
+ * deleted from the source, are evicted then.
+ * 
+ * Note that the datasource still downloads all objects, the plugin API does
+ * not allow to download changed objects only.
+ */
+public class IncrementalBackupFilter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalBackupFilter.class);
+
+    public static final String CONTEXT_ATTRIBUTE = "org.backmeup.worker.incremental.changes";
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File indexDir;
+    private final long maxAgeMillis;
+    private final ConcurrentMap<Long, FingerprintIndex> indexes;
+
+    /**
+     * @param maxAgeMillis
+     *            time after which the fingerprint of an object that has not
+     *            been seen again is evicted, 0 keeps fingerprints forever
+     */
+    public IncrementalBackupFilter(File indexDir, long maxAgeMillis) {
+        if (maxAgeMillis < 0) {
+            throw new IllegalArgumentException("Maximum age must not be negative");
+        }
+        this.indexDir = indexDir;
+        this.maxAgeMillis = maxAgeMillis;
+        this.indexes = new ConcurrentHashMap<>();
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    /**
+     * Compares the objects of the storage with the index of the profile. The
+     * content of an object is read from its file in the data directory of the
+     * storage, objects without a file are treated as changed.
+     * 
+     * @return the unchanged objects and the changed objects that have to be
+     *         committed once the backup succeeded
+     */
+    public Changes findUnchanged(Long profileId, Storage storage, File dataDir) throws StorageException {
+        Changes changes = new Changes(profileId);
+        FingerprintIndex index = getIndex(profileId);
+
+        Iterator<DataObject> it = storage.getDataObjects();
+        while (it.hasNext()) {
+            DataObject object = it.next();
+            File file = new File(dataDir, object.getPath());
+            if (!file.isFile()) {
+                LOGGER.debug("Profile {}: no file for object {}, treating it as changed", profileId, object.getPath());
+                continue;
+            }
+
+            byte[] digest = digest(file);
+            Fingerprint fingerprint = new Fingerprint(object.getPath(), object.getLength(), digest);
+            if (index != null && index.contains(object.getPath(), object.getLength(), digest)) {
+                changes.unchangedPaths.add(object.getPath());
+                changes.unchangedBytes += object.getLength();
+            } else {
+                changes.changedObjects++;
+            }
+            changes.seenObjects.add(fingerprint);
+        }
+
+        LOGGER.info("Profile {}: {} objects unchanged ({} bytes), {} objects changed", profileId,
+                changes.unchangedPaths.size(), changes.unchangedBytes, changes.changedObjects);
+        return changes;
+    }
+
+    /**
+     * Adds the fingerprints of the changed objects to the index and marks all
+     * objects of the backup as seen, then evicts the fingerprints of the
+     * objects that have not been seen for maxAgeMillis.
+     */
+    public void commit(Changes changes) {
+        FingerprintIndex index = getIndex(changes.profileId);
+        if (index == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        try {
+            for (Fingerprint fingerprint : changes.seenObjects) {
+                index.put(fingerprint.path, fingerprint.size, fingerprint.digest, now);
+            }
+            if (this.maxAgeMillis > 0) {
+                int evicted = index.evict(now - this.maxAgeMillis);
+                if (evicted > 0) {
+                    LOGGER.info("Profile {}: evicted {} fingerprints", changes.profileId, evicted);
+                }
+            }
+            index.flush();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to update fingerprint index of profile " + changes.profileId, e);
+        }
+    }
+
+    public void close() {
+        for (FingerprintIndex index : this.indexes.values()) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close fingerprint index", e);
+            }
+        }
+        this.indexes.clear();
+    }
+
+    // Private methods --------------------------------------------------------
+
+    /**
+     * Returns the index of the profile or null if it cannot be opened. All
+     * objects are treated as changed then.
+     */
+    private FingerprintIndex getIndex(Long profileId) {
+        FingerprintIndex index = this.indexes.get(profileId);
+        if (index != null) {
+            return index;
+        }
+
+        synchronized (this.indexes) {
+            index = this.indexes.get(profileId);
+            if (index == null) {
+                try {
+                    if (!this.indexDir.isDirectory() && !this.indexDir.mkdirs()) {
+                        throw new IOException("Failed to create directory " + this.indexDir);
+                    }
+                    index = new FingerprintIndex(new File(this.indexDir, profileId + ".idx"));
+                    this.indexes.put(profileId, index);
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to open fingerprint index of profile " + profileId + ", running a full backup", e);
+                }
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Digests the file in chunks, objects may be larger than the heap.
+     */
+    private static byte[] digest(File file) throws StorageException {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new WorkerException(e);
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    // Nested classes ---------------------------------------------------------
+
+    public static class Changes {
+        private final Long profileId;
+        private final List<Fingerprint> seenObjects = new ArrayList<>();
+        private final Set<String> unchangedPaths = new HashSet<>();
+        private int changedObjects;
+        private long unchangedBytes;
+
+        Changes(Long profileId) {
+            this.profileId = profileId;
+        }
+
+        public int getChangedObjects() {
+            return this.changedObjects;
+        }
+
+        public long getUnchangedBytes() {
+            return this.unchangedBytes;
+        }
+
+        public int getUnchangedObjects() {
+            return this.unchangedPaths.size();
+        }
+
+        /**
+         * Returns true if the object has not changed since the last
+         * successful backup of the profile.
+         */
+        public boolean isUnchanged(String path) {
+            return this.unchangedPaths.contains(path);
+        }
+    }
+
+    private static class Fingerprint {
+        private final String path;
+        private final long size;
+        private final byte[] digest;
+
+        Fingerprint(String path, long size, byte[] digest) {
+            this.path = path;
+            this.size = size;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.backmeup.worker.job.journal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.backmeup.worker.job.stage.JobStage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Progress journal of a job, stored in the job directory. The journal records
+ * the temporary directory of the job and the stages that have been started
+ * and completed, so a job that is redelivered after a crash or shutdown of the
+ * worker can resume from the last checkpoint.
+ * 
+ * A job resumes from one of two checkpoints: a completed download, where it
+ * continues with the actions, and completed actions, where it continues with
+ * the upload. While the actions run, the data is modified in place, so a job
+ * interrupted during the actions has to start over.
+ * 
+ * The journal is rewritten atomically on every change. A worker that shares
+ * the work directory can resume the jobs of another worker.
+ */
+public class JobJournal {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobJournal.class);
+
+    private static final String FILE_NAME = "job.journal";
+
+    private static final String TMP_DIR = "tmpDir";
+    private static final String STARTED = "started.";
+    private static final String COMPLETED = "completed.";
+    private static final String OBJECT_COUNT = "objectCount";
+    private static final String OBJECT_SIZE = "objectSize";
+
+    private final File file;
+    private final Properties entries;
+
+    private JobJournal(File file, Properties entries) {
+        this.file = file;
+        this.entries = entries;
+    }
+
+    /**
+     * Opens the journal in the job directory. A missing or unreadable journal
+     * results in an empty one.
+     */
+    public static JobJournal open(File jobDir) {
+        File file = new File(jobDir, FILE_NAME);
+        Properties entries = new Properties();
+        if (file.exists()) {
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                entries.load(in);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to read journal " + file + ", starting over", e);
+                entries.clear();
+            }
+        }
+        return new JobJournal(file, entries);
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public synchronized String getTmpDir() {
+        return this.entries.getProperty(TMP_DIR);
+    }
+
+    public synchronized boolean isStarted(JobStage stage) {
+        return this.entries.containsKey(STARTED + stage.name());
+    }
+
+    public synchronized boolean isCompleted(JobStage stage) {
+        return this.entries.containsKey(COMPLETED + stage.name());
+    }
+
+    public synchronized int getObjectCount() {
+        return Integer.parseInt(this.entries.getProperty(OBJECT_COUNT, "-1"));
+    }
+
+    public synchronized long getObjectSize() {
+        return Long.parseLong(this.entries.getProperty(OBJECT_SIZE, "-1"));
+    }
+
+    /**
+     * Returns the temporary directory of the job if the job can resume from
+     * its download or its processed data, null otherwise.
+     */
+    public synchronized String getResumableTmpDir() {
+        String tmpDir = getTmpDir();
+        if (tmpDir == null) {
+            return null;
+        }
+        boolean downloaded = isCompleted(JobStage.DOWNLOAD) && !isStarted(JobStage.PROCESS);
+        if (!downloaded && !isCompleted(JobStage.PROCESS)) {
+            return null;
+        }
+        if (!new File(tmpDir).isDirectory()) {
+            return null;
+        }
+        return tmpDir;
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    /**
+     * Starts a new journal for the temporary directory of the job.
+     */
+    public synchronized void begin(String tmpDir) {
+        this.entries.clear();
+        this.entries.setProperty(TMP_DIR, tmpDir);
+        save();
+    }
+
+    public synchronized void stageStarted(JobStage stage) {
+        this.entries.setProperty(STARTED + stage.name(), Long.toString(System.currentTimeMillis()));
+        save();
+    }
+
+    public synchronized void stageCompleted(JobStage stage) {
+        this.entries.setProperty(COMPLETED + stage.name(), Long.toString(System.currentTimeMillis()));
+        save();
+    }
+
+    /**
+     * Marks the download as completed and records the downloaded objects.
+     */
+    public synchronized void downloadCompleted(int objectCount, long objectSize) {
+        this.entries.setProperty(OBJECT_COUNT, Integer.toString(objectCount));
+        this.entries.setProperty(OBJECT_SIZE, Long.toString(objectSize));
+        stageCompleted(JobStage.DOWNLOAD);
+    }
+
+    /**
+     * Marks the actions as completed and records the processed objects,
+     * which replace the downloaded ones.
+     */
+    public synchronized void processingCompleted(int objectCount, long objectSize) {
+        this.entries.setProperty(OBJECT_COUNT, Integer.toString(objectCount));
+        this.entries.setProperty(OBJECT_SIZE, Long.toString(objectSize));
+        stageCompleted(JobStage.PROCESS);
+    }
+
+    public synchronized void delete() {
+        this.entries.clear();
+        if (this.file.exists() && !this.file.delete()) {
+            LOGGER.warn("Failed to delete journal {}", this.file);
+        }
+    }
+
+    // Private methods --------------------------------------------------------
+
+    private void save() {
+        File tmpFile = new File(this.file.getPath() + ".tmp");
+        try {
+            Files.createDirectories(this.file.getParentFile().toPath());
+            try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+                this.entries.store(out, null);
+                out.getFD().sync();
+            }
+            Files.move(tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Without the journal, the job starts over when it is redelivered
+            LOGGER.warn("Failed to write journal " + this.file, e);
+        }
+    }
+}
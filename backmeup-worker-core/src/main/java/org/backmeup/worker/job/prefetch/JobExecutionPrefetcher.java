@@ -0,0 +1,150 @@
+package org.backmeup.worker.job.prefetch;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.backmeup.model.dto.BackupJobExecutionDTO;
+import org.backmeup.service.client.BackmeupService;
+import org.backmeup.worker.job.threadpool.JobThreadFactory;
+import org.backmeup.worker.perfmon.JobMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.servo.monitor.Counter;
+
+/**
+ * Fetches the job executions of admitted jobs in the background, so that
+ * neither the receiver nor a job thread waits for the backmeup service. The
+ * execution is handed to a listener, which queues the job for a thread.
+ *
+ * Fetching a job execution changes the job on the service, so a job is only
+ * fetched once it has passed the duplicate check and holds a slot, and it is
+ * fetched exactly once: a fetch is neither repeated nor started for a job
+ * that is already being fetched.
+ */
+public class JobExecutionPrefetcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobExecutionPrefetcher.class);
+
+    private final BackmeupService bmuService;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<Long, FetchTask> fetches;
+
+    private final Counter prefetchFailures = JobMetrics.getCounter(JobExecutionPrefetcher.class, JobMetrics.PREFETCH_FAILURES);
+
+    /**
+     * @param threads
+     *            number of concurrent fetches
+     */
+    public JobExecutionPrefetcher(BackmeupService bmuService, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.bmuService = bmuService;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new JobThreadFactory("backmeup-prefetch-", 0));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.fetches = new ConcurrentHashMap<>();
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public int getNoOfPendingFetches() {
+        return this.fetches.size();
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    /**
+     * Starts fetching the execution of the job. The listener is notified
+     * exactly once, on the fetching thread or, if the prefetcher is shut
+     * down, on the thread that shuts it down.
+     *
+     * @throws IllegalStateException
+     *             if the job is being fetched already
+     */
+    public void fetch(Long jobId, FetchListener listener) {
+        FetchTask task = new FetchTask(jobId, listener);
+        if (this.fetches.putIfAbsent(jobId, task) != null) {
+            throw new IllegalStateException("Job " + jobId + " is being fetched already");
+        }
+        try {
+            this.executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down, the listener returns the job
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Cancels the pending fetches, their listeners are notified before this
+     * method returns.
+     */
+    public void shutdown() {
+        // Cancelled before the threads are interrupted, otherwise a running
+        // fetch would fail instead of being cancelled
+        this.executor.shutdown();
+        for (FetchTask task : new ArrayList<>(this.fetches.values())) {
+            task.cancel(true);
+        }
+        this.executor.shutdownNow();
+    }
+
+    // Nested classes and interfaces ------------------------------------------
+
+    public interface FetchListener {
+        /**
+         * @param jobExecution
+         *            the execution or null if it could not be fetched
+         */
+        void fetched(Long jobId, BackupJobExecutionDTO jobExecution);
+
+        /**
+         * The fetch was cancelled because the prefetcher has been shut down.
+         */
+        void cancelled(Long jobId);
+    }
+
+    private class FetchTask extends FutureTask<BackupJobExecutionDTO> {
+        private final Long jobId;
+        private final FetchListener listener;
+
+        FetchTask(final Long jobId, FetchListener listener) {
+            super(new Callable<BackupJobExecutionDTO>() {
+                @Override
+                public BackupJobExecutionDTO call() {
+                    return bmuService.getBackupJobExecution(jobId, true);
+                }
+            });
+            this.jobId = jobId;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void done() {
+            fetches.remove(this.jobId, this);
+            if (isCancelled()) {
+                this.listener.cancelled(this.jobId);
+                return;
+            }
+
+            BackupJobExecutionDTO jobExecution = null;
+            try {
+                jobExecution = get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                prefetchFailures.increment();
+                LOGGER.warn("Failed to fetch job " + this.jobId, e.getCause());
+            }
+            this.listener.fetched(this.jobId, jobExecution);
+        }
+    }
+}
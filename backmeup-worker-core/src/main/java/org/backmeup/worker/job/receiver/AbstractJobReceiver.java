@@ -0,0 +1,31 @@
+package org.backmeup.worker.job.receiver;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Base class for job receivers that handles listener registration and event
+ * dispatching. Listeners are kept in a copy-on-write list, so dispatching a
+ * job neither locks nor copies the list.
+ */
+public abstract class AbstractJobReceiver implements JobReceiver {
+    private final List<JobReceivedListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Events -----------------------------------------------------------------
+
+    protected void fireEvent(JobReceivedEvent jre) {
+        for (JobReceivedListener l : this.listeners) {
+            l.jobReceived(jre);
+        }
+    }
+
+    @Override
+    public void addJobReceivedListener(JobReceivedListener listener) {
+        this.listeners.add(listener);
+    }
+
+    @Override
+    public void removeJobReceivedListener(JobReceivedListener listener) {
+        this.listeners.remove(listener);
+    }
+}
@@ -0,0 +1,89 @@
+package org.backmeup.worker.job.receiver;
+
+import org.backmeup.worker.utils.ByteUtils;
+
+/**
+ * Wire format of job messages. Two formats are supported:
+ * 
+ * <ul>
+ * <li>Single job: exactly 8 bytes, the big-endian job id. This is the format
+ * older producers send.</li>
+ * <li>Batch: the int {@link #BATCH_MAGIC}, the int number of jobs and the
+ * big-endian job ids (4 + 4 + n * 8 bytes).</li>
+ * </ul>
+ * 
+ * Job ids are read directly from the message body, see
+ * {@link #getJobId(byte[], int)}.
+ */
+public final class JobMessageFormat {
+    /** "BMUJ" */
+    public static final int BATCH_MAGIC = 0x424D554A;
+
+    private static final int LONG_BYTES = Long.SIZE / Byte.SIZE;
+    private static final int INT_BYTES = Integer.SIZE / Byte.SIZE;
+    private static final int BATCH_HEADER_SIZE = 2 * INT_BYTES;
+
+    private JobMessageFormat() {
+        // Utility classes should not have public constructor
+    }
+
+    /**
+     * Validates the message and returns the number of job ids it contains.
+     * 
+     * @throws IllegalArgumentException if the message is malformed
+     */
+    public static int getJobCount(byte[] body) {
+        if (body == null) {
+            throw new IllegalArgumentException("Empty job message");
+        }
+        if (body.length == LONG_BYTES) {
+            return 1;
+        }
+        if (body.length < BATCH_HEADER_SIZE + LONG_BYTES || ByteUtils.getInt(body, 0) != BATCH_MAGIC) {
+            throw new IllegalArgumentException("Unknown job message format (" + body.length + " bytes)");
+        }
+        int count = ByteUtils.getInt(body, INT_BYTES);
+        if (count < 1 || (body.length - BATCH_HEADER_SIZE) / LONG_BYTES != count
+                || (body.length - BATCH_HEADER_SIZE) % LONG_BYTES != 0) {
+            throw new IllegalArgumentException("Job batch size " + count + " does not match message size " + body.length);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the job id at the given index. The message must have been
+     * validated with {@link #getJobCount(byte[])}.
+     */
+    public static long getJobId(byte[] body, int index) {
+        if (body.length == LONG_BYTES) {
+            if (index != 0) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: 1");
+            }
+            return ByteUtils.getLong(body, 0);
+        }
+        return ByteUtils.getLong(body, BATCH_HEADER_SIZE + index * LONG_BYTES);
+    }
+
+    /**
+     * Encodes the given job ids. A single id is encoded in the single job
+     * format, so the message can be read by older workers.
+     */
+    public static byte[] encode(long... jobIds) {
+        if (jobIds.length == 0) {
+            throw new IllegalArgumentException("At least one job id is required");
+        }
+        if (jobIds.length == 1) {
+            byte[] body = new byte[LONG_BYTES];
+            ByteUtils.putLong(body, 0, jobIds[0]);
+            return body;
+        }
+
+        byte[] body = new byte[BATCH_HEADER_SIZE + jobIds.length * LONG_BYTES];
+        ByteUtils.putInt(body, 0, BATCH_MAGIC);
+        ByteUtils.putInt(body, INT_BYTES, jobIds.length);
+        for (int i = 0; i < jobIds.length; i++) {
+            ByteUtils.putLong(body, BATCH_HEADER_SIZE + i * LONG_BYTES, jobIds[i]);
+        }
+        return body;
+    }
+}
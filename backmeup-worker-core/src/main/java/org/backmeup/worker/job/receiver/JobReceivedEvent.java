@@ -1,18 +1,165 @@
 package org.backmeup.worker.job.receiver;
 
+import java.util.ArrayList;
 import java.util.EventObject;
+import java.util.List;
 
+/**
+ * Notifies about one or more received jobs. A message may carry a batch of
+ * job ids (see {@link JobMessageFormat}), the ids are read from the message
+ * body on access.
+ *
+ * Every job of the event has to be settled with
+ * {@link #settleJob(long, boolean)} once it has been processed or could not
+ * be submitted. When the last job is settled, the message is settled with the
+ * receiver: jobs that have been processed must not be delivered again, only
+ * the others are returned to the queue.
+ */
 public class JobReceivedEvent extends EventObject {
     private static final long serialVersionUID = 6959348412326443090L;
 
     protected Long jobId;
+    protected long deliveryTag;
+    protected transient JobReceiver receiver;
+
+    private final byte[] body;
+    private final int jobCount;
+    private final Integer priority;
+    private int unsettledJobs;
+    private final List<Long> unprocessedJobs;
 
     public JobReceivedEvent(Object obj, Long jobId) {
+        this(obj, jobId, null, -1);
+    }
+
+    public JobReceivedEvent(Object obj, Long jobId, JobReceiver receiver, long deliveryTag) {
         super(obj);
         this.jobId = jobId;
+        this.receiver = receiver;
+        this.deliveryTag = deliveryTag;
+
+        this.body = null;
+        this.jobCount = 1;
+        this.priority = null;
+        this.unsettledJobs = 1;
+        this.unprocessedJobs = new ArrayList<>();
     }
 
+    /**
+     * Creates an event for a job message. The message must have been
+     * validated with {@link JobMessageFormat#getJobCount(byte[])}.
+     */
+    public JobReceivedEvent(Object obj, byte[] body, int jobCount, JobReceiver receiver, long deliveryTag) {
+        this(obj, body, jobCount, null, receiver, deliveryTag);
+    }
+
+    /**
+     * Creates an event for a job message with the given message priority.
+     * The message must have been validated with
+     * {@link JobMessageFormat#getJobCount(byte[])}.
+     */
+    public JobReceivedEvent(Object obj, byte[] body, int jobCount, Integer priority, JobReceiver receiver, long deliveryTag) {
+        super(obj);
+        this.jobId = JobMessageFormat.getJobId(body, 0);
+        this.receiver = receiver;
+        this.deliveryTag = deliveryTag;
+
+        this.body = body;
+        this.jobCount = jobCount;
+        this.priority = priority;
+        this.unsettledJobs = jobCount;
+        this.unprocessedJobs = new ArrayList<>();
+    }
+
+    /**
+     * Returns the id of the first job of this event.
+     */
     public Long getJobId() {
         return jobId;
     }
+
+    public long getJobId(int index) {
+        if (index < 0 || index >= jobCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + jobCount);
+        }
+        if (body == null) {
+            return jobId;
+        }
+        return JobMessageFormat.getJobId(body, index);
+    }
+
+    public int getJobCount() {
+        return jobCount;
+    }
+
+    /**
+     * Priority of the message that delivered the jobs, null if the message
+     * has none.
+     */
+    public Integer getPriority() {
+        return priority;
+    }
+
+    /**
+     * The receiver that delivered the job and has to acknowledge it.
+     */
+    public JobReceiver getReceiver() {
+        return receiver;
+    }
+
+    /**
+     * Tag the receiver uses to acknowledge or reject the job once processed.
+     */
+    public long getDeliveryTag() {
+        return deliveryTag;
+    }
+
+    /**
+     * Marks one job of this event as settled. When the last job is settled,
+     * the message is acknowledged if all of its jobs were processed and
+     * returned to the queue if none was. If only some jobs were processed,
+     * the message is acknowledged and the other jobs are returned to the
+     * queue as a new message (see {@link JobReceiver#requeueJobs}), so the
+     * processed jobs do not run again on another worker.
+     *
+     * @return true if this was the last unsettled job of the event
+     */
+    public boolean settleJob(long jobId, boolean processed) {
+        long[] requeued;
+        synchronized (this) {
+            if (unsettledJobs == 0) {
+                throw new IllegalStateException("All jobs of the message are settled already");
+            }
+            if (!processed) {
+                unprocessedJobs.add(jobId);
+            }
+            if (--unsettledJobs > 0) {
+                return false;
+            }
+            requeued = getUnprocessedJobIds();
+        }
+
+        if (receiver != null) {
+            if (requeued.length == 0) {
+                receiver.acknowledgeJob(this);
+            } else if (requeued.length == jobCount) {
+                receiver.rejectJob(this, true);
+            } else {
+                receiver.requeueJobs(this, requeued);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ids of the jobs of this event that have been settled without being
+     * processed.
+     */
+    public synchronized long[] getUnprocessedJobIds() {
+        long[] ids = new long[unprocessedJobs.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = unprocessedJobs.get(i);
+        }
+        return ids;
+    }
 }
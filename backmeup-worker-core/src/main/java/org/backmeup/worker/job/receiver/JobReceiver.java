@@ -1,5 +1,36 @@
 package org.backmeup.worker.job.receiver;
 
+/**
+ * Source of backup jobs. A receiver notifies its listeners about every job it
+ * receives. Each job has to be acknowledged or rejected through the receiver
+ * that delivered it (see {@link JobReceivedEvent#getReceiver()}).
+ */
 public interface JobReceiver {
+    void initialize();
 
+    void start();
+
+    void stop();
+
+    /**
+     * Stops receiving new jobs. Jobs received before can still be
+     * acknowledged or rejected until the receiver is stopped.
+     */
+    void pause();
+
+    boolean isRunning();
+
+    void acknowledgeJob(JobReceivedEvent jre);
+
+    void rejectJob(JobReceivedEvent jre, boolean requeue);
+
+    /**
+     * Acknowledges a message of which only some jobs have been processed and
+     * returns the given (unprocessed) jobs of it to the queue.
+     */
+    void requeueJobs(JobReceivedEvent jre, long[] jobIds);
+
+    void addJobReceivedListener(JobReceivedListener listener);
+
+    void removeJobReceivedListener(JobReceivedListener listener);
 }
@@ -1,92 +1,114 @@
 package org.backmeup.worker.job.receiver;
 
 import java.io.IOException;
-import java.util.Vector;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.backmeup.model.exceptions.BackMeUpException;
-import org.backmeup.worker.utils.ByteUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
-import com.rabbitmq.client.QueueingConsumer;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
 
 /**
  * A Receiver class that listens to a RabbitMQ message queue and receives Backup
  * jobs that get sent across the wire.
- * 
+ *
+ * The receiver opens one connection to the broker and consumes the queue on
+ * a configurable number of channels in parallel. A message carries a single
+ * job id or a batch of job ids, see {@link JobMessageFormat}.
+ *
+ * Messages are consumed with manual acknowledgements. The broker delivers at
+ * most prefetchCount unacknowledged messages per channel, so backpressure is
+ * handled by the broker: a message has to be acknowledged (see
+ * {@link #acknowledgeJob(JobReceivedEvent)}) before the next one is delivered
+ * on that channel. Jobs that are not acknowledged when the worker dies are
+ * redelivered.
  */
-public class RabbitMQJobReceiver implements JobReceiver{
-    private static final int DELAY_INTERVAL = 500;
-
+public class RabbitMQJobReceiver extends AbstractJobReceiver {
     private static final Logger LOGGER = LoggerFactory.getLogger(RabbitMQJobReceiver.class);
 
     private final String mqName;
     private final String mqHost;
+    private final int noOfConsumers;
+    private final int prefetchCount;
 
     private boolean initialized;
 
     private final AtomicReference<Connection> mqConnection;
-    private final AtomicReference<Channel> mqChannel;
-    private final AtomicInteger mqTimeout;
-
-    private final AtomicReference<Thread> receiverThread;
-    private final AtomicBoolean stopReceiver;
-    private final AtomicBoolean pauseReceiver;
-    private final AtomicInteger pauseInterval;
+    private final List<JobConsumer> consumers;
 
-    private final Vector<JobReceivedListener> listeners;
+    public RabbitMQJobReceiver(String mqHostAdr, String mqName, int prefetchCount) {
+        this(mqHostAdr, mqName, 1, prefetchCount);
+    }
 
-    public RabbitMQJobReceiver(String mqHostAdr, String mqName, int waitInterval) {
+    public RabbitMQJobReceiver(String mqHostAdr, String mqName, int noOfConsumers, int prefetchCount) {
+        if (noOfConsumers < 1) {
+            throw new IllegalArgumentException("At least one consumer is required");
+        }
+        if (prefetchCount < 1) {
+            throw new IllegalArgumentException("Prefetch count must be at least 1");
+        }
         this.mqName = mqName;
         this.mqHost = mqHostAdr;
-        this.mqTimeout = new AtomicInteger(waitInterval);
+        this.noOfConsumers = noOfConsumers;
+        this.prefetchCount = prefetchCount;
 
-        this.stopReceiver = new AtomicBoolean(false);
-        this.pauseReceiver = new AtomicBoolean(false);
-        this.pauseInterval = new AtomicInteger(waitInterval);
-
-        this.mqChannel = new AtomicReference<>(null);
         this.mqConnection = new AtomicReference<>(null);
-        this.receiverThread = new AtomicReference<>(null);
+        this.consumers = new CopyOnWriteArrayList<>();
 
         this.initialized = false;
-
-        this.listeners = new Vector<>();
     }
 
 
     // Properties -------------------------------------------------------------
 
+    @Override
     public boolean isRunning() {
-        return receiverThread.get() != null;
+        for (JobConsumer consumer : consumers) {
+            if (consumer.isConsuming()) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public boolean isPaused() {
-        return pauseReceiver.get();
+    public int getNoOfConsumers() {
+        return noOfConsumers;
     }
 
-    public void setPaused(boolean paused) {
-        pauseReceiver.set(paused);
+    public int getPrefetchCount() {
+        return prefetchCount;
     }
 
     // Methods ----------------------------------------------------------------
 
+    @Override
     public void initialize() {
         // Connect to the message queue
-        LOGGER.info("Connecting to the message queue");
+        LOGGER.info("Connecting to the message queue {} on {}", mqName, mqHost);
 
         try {
             ConnectionFactory factory = new ConnectionFactory();
             factory.setHost(mqHost);
             mqConnection.set(factory.newConnection());
-            mqChannel.set(mqConnection.get().createChannel());
-            mqChannel.get().queueDeclare(mqName, false, false, false, null);
+
+            for (int i = 0; i < noOfConsumers; i++) {
+                Channel channel = mqConnection.get().createChannel();
+                channel.queueDeclare(mqName, false, false, false, null);
+
+                // Never hand us more unacknowledged jobs than we have free slots
+                channel.basicQos(prefetchCount);
+
+                consumers.add(new JobConsumer(channel));
+            }
 
             initialized = true;
         } catch (IOException e) {
@@ -95,6 +117,7 @@ public class RabbitMQJobReceiver implements JobReceiver{
 
     }
 
+    @Override
     public void start() {
         if (!initialized) {
             throw new IllegalStateException("Cannot start: receiver is not initialized");
@@ -104,91 +127,220 @@ public class RabbitMQJobReceiver implements JobReceiver{
             throw new IllegalStateException("Cannot start: receiver is already running");
         }
 
-        receiverThread.set(new Thread(new Runnable() {
-            @Override
-            public void run() {
-                LOGGER.info("Starting message queue receiver");
-
-                QueueingConsumer consumer = new QueueingConsumer(mqChannel.get());
-
-                try {
-                    mqChannel.get().basicConsume(mqName, true, consumer);
-                    while (!stopReceiver.get()) {
-                        if(!pauseReceiver.get()) {
-                            try {
-                                QueueingConsumer.Delivery delivery = consumer.nextDelivery(mqTimeout.get());
-                                if (delivery != null) {
-                                    byte[] body = delivery.getBody();
-
-                                    Long jobId = ByteUtils.bytesToLong(body);
-                                    LOGGER.info("Received job with id: " + jobId);
-
-                                    fireEvent(new JobReceivedEvent(this, jobId));
-
-                                    // Delay further receiving to give the callback listener a chance
-                                    // to react on (e.g. pause or stop)
-                                    Thread.sleep(DELAY_INTERVAL);
-                                }
-                            } catch (Exception ex) {
-                                LOGGER.error("Failed to receive job", ex);
-                            }
-                        }
-                        if(pauseReceiver.get()) {
-                            try {
-                                Thread.sleep(pauseInterval.get());
-                            } catch (InterruptedException e) {
-                                LOGGER.error("",e);
-                            }
-                        }
-                    }
-
-                    LOGGER.info("Stopping message queue receiver");
-
-                    mqChannel.get().close();
-                    mqConnection.get().close();
-
-                } catch (IOException e) {
-                    // Should only happen if message queue is down
-                    LOGGER.error("Message queue down", e);
-                    throw new BackMeUpException(e);
-                }
+        LOGGER.info("Starting message queue receiver ({} consumers, prefetch: {})", noOfConsumers, prefetchCount);
+        try {
+            for (JobConsumer consumer : consumers) {
+                consumer.consume();
+            }
+        } catch (IOException e) {
+            // Should only happen if message queue is down
+            LOGGER.error("Message queue down", e);
+            throw new BackMeUpException(e);
+        }
+    }
 
-                LOGGER.info("Message queue receiver stopped");
+    @Override
+    public void stop() {
+        LOGGER.info("Stopping message queue receiver");
 
-                stopReceiver.set(false);
-                receiverThread.set(null);
+        try {
+            for (JobConsumer consumer : consumers) {
+                consumer.cancel();
+            }
+
+            // Closing the channels returns all unacknowledged jobs to the queue
+            for (JobConsumer consumer : consumers) {
+                consumer.close();
+            }
+            if (mqConnection.get().isOpen()) {
+                mqConnection.get().close();
             }
-        }));
+        } catch (IOException e) {
+            LOGGER.error("", e);
+            throw new BackMeUpException(e);
+        }
 
-        receiverThread.get().start();
+        LOGGER.info("Message queue receiver stopped");
     }
 
-    public void stop() {
-        stopReceiver.set(true);
+    /**
+     * Cancels the consumers but keeps the channels open, so jobs that have
+     * been delivered can still be acknowledged or rejected.
+     */
+    @Override
+    public void pause() {
+        LOGGER.info("Pausing message queue receiver");
+
         try {
-            // Wait for thread to complete
-            receiverThread.get().join();
-        } catch (InterruptedException e) {
+            for (JobConsumer consumer : consumers) {
+                consumer.cancel();
+            }
+        } catch (IOException e) {
             LOGGER.error("", e);
             throw new BackMeUpException(e);
         }
     }
 
-    // Events -----------------------------------------------------------------
+    /**
+     * Acknowledges a job after it has been processed. The broker removes the
+     * message from the queue and may deliver the next job.
+     */
+    @Override
+    public void acknowledgeJob(JobReceivedEvent jre) {
+        try {
+            consumerOf(jre).ack(jre.getDeliveryTag());
+        } catch (IOException e) {
+            LOGGER.error("Failed to acknowledge job " + jre.getJobId(), e);
+        }
+    }
+
+    /**
+     * Rejects a job that could not be processed. If requeue is true, the job
+     * is returned to the queue and delivered again.
+     */
+    @Override
+    public void rejectJob(JobReceivedEvent jre, boolean requeue) {
+        try {
+            consumerOf(jre).nack(jre.getDeliveryTag(), requeue);
+        } catch (IOException e) {
+            LOGGER.error("Failed to reject job " + jre.getJobId(), e);
+        }
+    }
 
-    protected void fireEvent(JobReceivedEvent jre){
-        @SuppressWarnings("unchecked")
-        Vector<JobReceivedListener> listenerClone = (Vector<JobReceivedListener>) listeners.clone();
-        for(JobReceivedListener l : listenerClone){
-            l.jobReceived(jre);
+    /**
+     * Publishes the given jobs of a partly processed message as a new message
+     * to the queue and acknowledges the original message. If the jobs cannot
+     * be published, the whole message is returned to the queue, so that no
+     * job is lost.
+     */
+    @Override
+    public void requeueJobs(JobReceivedEvent jre, long[] jobIds) {
+        JobConsumer consumer = consumerOf(jre);
+        try {
+            consumer.republish(jre.getDeliveryTag(), JobMessageFormat.encode(jobIds), jre.getPriority());
+            LOGGER.info("Returned {} of {} jobs of the message starting with id {} to the queue", jobIds.length,
+                    jre.getJobCount(), jre.getJobId());
+        } catch (IOException e) {
+            LOGGER.error("Failed to return jobs of the message starting with id " + jre.getJobId() + ", requeueing it", e);
+            try {
+                consumer.nack(jre.getDeliveryTag(), true);
+            } catch (IOException e2) {
+                LOGGER.error("Failed to reject job " + jre.getJobId(), e2);
+            }
         }
     }
 
-    public void addJobReceivedListener(JobReceivedListener listener){
-        listeners.add(listener);
+    private JobConsumer consumerOf(JobReceivedEvent jre) {
+        if (jre.getReceiver() != this || !(jre.getSource() instanceof JobConsumer)) {
+            throw new IllegalArgumentException("Job " + jre.getJobId() + " was not received by this receiver");
+        }
+        return (JobConsumer) jre.getSource();
     }
 
-    public void removeJobReceivedListener(JobReceivedListener listener){
-        listeners.remove(listener);
+    // Nested classes ---------------------------------------------------------
+
+    /**
+     * Consumes the queue on its own channel. Deliveries are acknowledged on
+     * the channel they were received on.
+     */
+    private class JobConsumer extends DefaultConsumer {
+        private final AtomicReference<String> consumerTag = new AtomicReference<>(null);
+
+        public JobConsumer(Channel channel) {
+            super(channel);
+        }
+
+        public boolean isConsuming() {
+            return consumerTag.get() != null;
+        }
+
+        public void consume() throws IOException {
+            consumerTag.set(getChannel().basicConsume(mqName, false, this));
+        }
+
+        public void cancel() throws IOException {
+            String tag = consumerTag.getAndSet(null);
+            if (tag != null && getChannel().isOpen()) {
+                getChannel().basicCancel(tag);
+            }
+        }
+
+        public void close() throws IOException {
+            if (getChannel().isOpen()) {
+                getChannel().close();
+            }
+        }
+
+        public void ack(long deliveryTag) throws IOException {
+            synchronized (getChannel()) {
+                getChannel().basicAck(deliveryTag, false);
+            }
+        }
+
+        public void nack(long deliveryTag, boolean requeue) throws IOException {
+            synchronized (getChannel()) {
+                getChannel().basicNack(deliveryTag, false, requeue);
+            }
+        }
+
+        /**
+         * Publishes the body as a new message to the queue before the
+         * delivery is acknowledged. The message keeps the priority of the
+         * delivery.
+         */
+        public void republish(long deliveryTag, byte[] body, Integer priority) throws IOException {
+            AMQP.BasicProperties properties = null;
+            if (priority != null) {
+                properties = new AMQP.BasicProperties.Builder().priority(priority).build();
+            }
+            synchronized (getChannel()) {
+                getChannel().basicPublish("", mqName, properties, body);
+                getChannel().basicAck(deliveryTag, false);
+            }
+        }
+
+        @Override
+        public void handleDelivery(String tag, Envelope envelope, AMQP.BasicProperties properties, byte[] body)
+                throws IOException {
+            long deliveryTag = envelope.getDeliveryTag();
+
+            int jobCount;
+            try {
+                jobCount = JobMessageFormat.getJobCount(body);
+            } catch (Exception ex) {
+                // Malformed message, requeueing would only deliver it again
+                LOGGER.error("Failed to decode job message, discarding it", ex);
+                synchronized (getChannel()) {
+                    getChannel().basicReject(deliveryTag, false);
+                }
+                return;
+            }
+
+            Integer priority = properties != null ? properties.getPriority() : null;
+            JobReceivedEvent jre = new JobReceivedEvent(this, body, jobCount, priority, RabbitMQJobReceiver.this, deliveryTag);
+            String redelivered = envelope.isRedeliver() ? "redelivered " : "";
+            if (jobCount == 1) {
+                LOGGER.info("Received {}job with id: {}", redelivered, jre.getJobId());
+            } else {
+                LOGGER.info("Received {}batch of {} jobs starting with id: {}", redelivered, jobCount, jre.getJobId());
+            }
+
+            try {
+                fireEvent(jre);
+            } catch (Exception ex) {
+                // The jobs of the delivery are settled through the event, some
+                // of them may already be running. Rejecting the delivery here
+                // would settle it twice
+                LOGGER.error("Failed to receive job", ex);
+            }
+        }
+
+        @Override
+        public void handleShutdownSignal(String tag, ShutdownSignalException sig) {
+            if (!sig.isInitiatedByApplication()) {
+                LOGGER.error("Message queue down", sig);
+            }
+            consumerTag.compareAndSet(tag, null);
+        }
     }
 }
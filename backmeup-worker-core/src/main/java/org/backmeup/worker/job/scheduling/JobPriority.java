@@ -0,0 +1,22 @@
+package org.backmeup.worker.job.scheduling;
+
+public enum JobPriority {
+    // Interactive jobs, e.g. jobs of datasources users back up on demand
+    HIGH,
+
+    NORMAL,
+
+    // Bulk jobs that may wait until the worker has spare capacity
+    LOW;
+
+    /**
+     * Maps the priority of a queue message (0-9, higher is more urgent) to a
+     * job priority: 0 is low, 1 to 4 normal and 5 or more high.
+     */
+    public static JobPriority fromMessagePriority(int messagePriority) {
+        if (messagePriority >= 5) {
+            return HIGH;
+        }
+        return messagePriority > 0 ? NORMAL : LOW;
+    }
+}
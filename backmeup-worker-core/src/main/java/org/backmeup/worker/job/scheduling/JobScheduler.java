@@ -0,0 +1,95 @@
+package org.backmeup.worker.job.scheduling;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.backmeup.model.dto.BackupJobExecutionDTO;
+
+/**
+ * Computes the scheduling attributes of received jobs.
+ * 
+ * The priority of a job is taken from the message that delivered it, if the
+ * message has one (see {@link JobPriority#fromMessagePriority(int)}).
+ * Otherwise it is configured per source plugin with
+ * backmeup.worker.scheduling.priority.&lt;pluginId&gt;, jobs of other plugins
+ * have normal priority. With {@link SchedulingPolicy#SHORTEST_JOB_FIRST} the
+ * virtual deadline of a job is its enqueue time plus the time it takes to
+ * transfer its estimated size at the configured aging rate (bytes per
+ * second). A large job is therefore overtaken by small jobs received
+ * shortly after it, but not by small jobs received long after it.
+ */
+public class JobScheduler {
+    private final SchedulingPolicy policy;
+    private final long agingRate;
+    private final long defaultSize;
+    private final JobSizeEstimator sizeEstimator;
+    private final Map<String, JobPriority> pluginPriorities;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param pluginPriorities
+     *            priority names (HIGH, NORMAL, LOW) by source plugin id
+     * @throws IllegalArgumentException
+     *             if a priority is not known
+     */
+    public JobScheduler(SchedulingPolicy policy, long agingRate, long defaultSize, JobSizeEstimator sizeEstimator,
+            Map<String, String> pluginPriorities) {
+        if (agingRate < 1) {
+            throw new IllegalArgumentException("Aging rate must be positive");
+        }
+        this.policy = policy;
+        this.agingRate = agingRate;
+        this.defaultSize = defaultSize;
+        this.sizeEstimator = sizeEstimator;
+
+        this.pluginPriorities = new HashMap<>();
+        for (Map.Entry<String, String> e : pluginPriorities.entrySet()) {
+            try {
+                this.pluginPriorities.put(e.getKey(), JobPriority.valueOf(e.getValue().trim().toUpperCase()));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Invalid priority '" + e.getValue() + "' of plugin " + e.getKey(), ex);
+            }
+        }
+    }
+
+    public SchedulingPolicy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * Computes the scheduling attributes of a job.
+     * 
+     * @param backupJob
+     *            the job execution or null if it could not be fetched
+     * @param messagePriority
+     *            priority of the message that delivered the job or null if
+     *            it has none
+     */
+    public JobSchedulingInfo schedule(BackupJobExecutionDTO backupJob, Integer messagePriority) {
+        final long now = System.currentTimeMillis();
+
+        JobPriority priority = JobPriority.NORMAL;
+        long estimatedSize = JobSchedulingInfo.UNKNOWN_SIZE;
+        if (backupJob != null && backupJob.getSource() != null) {
+            priority = getPriority(backupJob.getSource().getPluginId());
+            estimatedSize = this.sizeEstimator.estimateSize(backupJob.getSource().getProfileId());
+        }
+        if (messagePriority != null) {
+            priority = JobPriority.fromMessagePriority(messagePriority);
+        }
+
+        long virtualDeadline = now;
+        if (this.policy == SchedulingPolicy.SHORTEST_JOB_FIRST) {
+            long size = estimatedSize != JobSchedulingInfo.UNKNOWN_SIZE ? estimatedSize : this.defaultSize;
+            virtualDeadline += (long) (size * 1000.0 / this.agingRate);
+        }
+
+        return new JobSchedulingInfo(priority, estimatedSize, now, virtualDeadline, this.sequence.getAndIncrement());
+    }
+
+    private JobPriority getPriority(String pluginId) {
+        JobPriority priority = pluginId != null ? this.pluginPriorities.get(pluginId) : null;
+        return priority != null ? priority : JobPriority.NORMAL;
+    }
+}
@@ -0,0 +1,66 @@
+package org.backmeup.worker.job.scheduling;
+
+/**
+ * Immutable scheduling attributes of a queued job. Jobs are ordered by
+ * priority first and by their virtual deadline second. The virtual deadline
+ * is fixed when the job is enqueued, so the order of queued jobs never
+ * changes while they wait.
+ */
+public final class JobSchedulingInfo implements Comparable<JobSchedulingInfo> {
+    public static final long UNKNOWN_SIZE = -1;
+
+    private final JobPriority priority;
+    private final long estimatedSize;
+    private final long enqueueTime;
+    private final long virtualDeadline;
+    private final long sequence;
+
+    public JobSchedulingInfo(JobPriority priority, long estimatedSize, long enqueueTime, long virtualDeadline, long sequence) {
+        this.priority = priority;
+        this.estimatedSize = estimatedSize;
+        this.enqueueTime = enqueueTime;
+        this.virtualDeadline = virtualDeadline;
+        this.sequence = sequence;
+    }
+
+    public JobPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Estimated size in bytes or {@link #UNKNOWN_SIZE}.
+     */
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    public long getEnqueueTime() {
+        return enqueueTime;
+    }
+
+    public long getVirtualDeadline() {
+        return virtualDeadline;
+    }
+
+    @Override
+    public int compareTo(JobSchedulingInfo o) {
+        int c = priority.compareTo(o.priority);
+        if (c != 0) {
+            return c;
+        }
+        if (virtualDeadline != o.virtualDeadline) {
+            return virtualDeadline < o.virtualDeadline ? -1 : 1;
+        }
+        // Keep the receive order for jobs with the same deadline
+        if (sequence != o.sequence) {
+            return sequence < o.sequence ? -1 : 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "JobSchedulingInfo{priority=" + priority + ", estimatedSize=" + estimatedSize + ", virtualDeadline="
+                + virtualDeadline + '}';
+    }
+}
@@ -0,0 +1,88 @@
+package org.backmeup.worker.job.scheduling;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicTimer;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.monitor.Timer;
+
+/**
+ * Work queue for the job executor that orders jobs by their
+ * {@link JobSchedulingInfo}. Tasks that are not {@link SchedulableJob}s are
+ * executed before any job.
+ * 
+ * The time jobs spend in the queue is recorded per priority in the
+ * queueWaitTime timers.
+ */
+public class JobSchedulingQueue extends PriorityBlockingQueue<Runnable> {
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final String PRIORITY_TAG = "jobPriority";
+
+    private final transient Map<JobPriority, Timer> queueWaitTimes;
+
+    public JobSchedulingQueue() {
+        super(INITIAL_CAPACITY, new SchedulingInfoComparator());
+
+        this.queueWaitTimes = new EnumMap<>(JobPriority.class);
+        for (JobPriority priority : JobPriority.values()) {
+            MonitorConfig config = MonitorConfig.builder("queueWaitTime").withTag(PRIORITY_TAG, priority.name()).build();
+            Timer timer = new BasicTimer(config, TimeUnit.MILLISECONDS);
+            DefaultMonitorRegistry.getInstance().register(timer);
+            this.queueWaitTimes.put(priority, timer);
+        }
+    }
+
+    // Queue methods used by the executor's worker threads --------------------
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        return dequeued(super.take());
+    }
+
+    @Override
+    public Runnable poll() {
+        return dequeued(super.poll());
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return dequeued(super.poll(timeout, unit));
+    }
+
+    private Runnable dequeued(Runnable r) {
+        JobSchedulingInfo info = SchedulingInfoComparator.infoOf(r);
+        if (info != null) {
+            long waitTime = System.currentTimeMillis() - info.getEnqueueTime();
+            this.queueWaitTimes.get(info.getPriority()).record(Math.max(0, waitTime), TimeUnit.MILLISECONDS);
+        }
+        return r;
+    }
+
+    // Nested classes ---------------------------------------------------------
+
+    private static class SchedulingInfoComparator implements Comparator<Runnable> {
+        @Override
+        public int compare(Runnable r1, Runnable r2) {
+            JobSchedulingInfo i1 = infoOf(r1);
+            JobSchedulingInfo i2 = infoOf(r2);
+            if (i1 == null || i2 == null) {
+                return i1 == null ? (i2 == null ? 0 : -1) : 1;
+            }
+            return i1.compareTo(i2);
+        }
+
+        static JobSchedulingInfo infoOf(Runnable r) {
+            if (r instanceof SchedulableJob) {
+                return ((SchedulableJob) r).getSchedulingInfo();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.backmeup.worker.job.scheduling;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the amount of data the last run of each source profile
+ * downloaded. The size of the previous run is used as estimate for the next
+ * one.
+ */
+public class JobSizeEstimator {
+    private final ConcurrentMap<Long, Long> lastRunSizes = new ConcurrentHashMap<>();
+
+    public void recordRunSize(Long sourceProfileId, long bytes) {
+        if (sourceProfileId != null && bytes >= 0) {
+            this.lastRunSizes.put(sourceProfileId, bytes);
+        }
+    }
+
+    /**
+     * Returns the estimated size in bytes or
+     * {@link JobSchedulingInfo#UNKNOWN_SIZE} if the profile has not been run
+     * on this worker yet.
+     */
+    public long estimateSize(Long sourceProfileId) {
+        if (sourceProfileId == null) {
+            return JobSchedulingInfo.UNKNOWN_SIZE;
+        }
+        Long size = this.lastRunSizes.get(sourceProfileId);
+        return size != null ? size : JobSchedulingInfo.UNKNOWN_SIZE;
+    }
+}
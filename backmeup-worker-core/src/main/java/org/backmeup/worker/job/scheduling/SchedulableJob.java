@@ -0,0 +1,8 @@
+package org.backmeup.worker.job.scheduling;
+
+/**
+ * A job that can be ordered by the {@link JobSchedulingQueue}.
+ */
+public interface SchedulableJob {
+    JobSchedulingInfo getSchedulingInfo();
+}
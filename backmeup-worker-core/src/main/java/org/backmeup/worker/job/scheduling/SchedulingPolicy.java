@@ -0,0 +1,10 @@
+package org.backmeup.worker.job.scheduling;
+
+public enum SchedulingPolicy {
+    // Jobs of the same priority are executed in the order they were received
+    FIFO,
+
+    // Jobs of the same priority are ordered by their estimated size. Waiting
+    // jobs age, so large jobs are not starved by a stream of small ones
+    SHORTEST_JOB_FIRST
+}
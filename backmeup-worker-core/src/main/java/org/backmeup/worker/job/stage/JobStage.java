@@ -0,0 +1,12 @@
+package org.backmeup.worker.job.stage;
+
+public enum JobStage {
+    // Download data from the datasource into the local storage (network bound)
+    DOWNLOAD,
+
+    // Execute the actions on the local storage (CPU bound)
+    PROCESS,
+
+    // Upload data from the local storage to the datasink (network bound)
+    UPLOAD
+}
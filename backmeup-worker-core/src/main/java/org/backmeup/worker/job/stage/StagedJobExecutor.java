@@ -0,0 +1,117 @@
+package org.backmeup.worker.job.stage;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.backmeup.worker.job.threadpool.JobThreadFactory;
+
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicTimer;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.monitor.Timer;
+
+/**
+ * Executes the stages of backup jobs on separate bounded thread pools, one
+ * per {@link JobStage}. A job hands each of its stages to the pool of that
+ * stage and waits for it to complete. While one job is processed on the
+ * process pool, other jobs can download or upload on the network bound
+ * pools, so both CPU and network are kept busy.
+ * 
+ * A stage without threads runs on the calling thread. This allows to move
+ * only the CPU bound processing stage to a pool of its own.
+ * 
+ * The job is not handed off between the stages: its thread (and its slot)
+ * is held for the whole pipeline. A stage pool thus only limits the number of
+ * jobs in that stage, which has an effect if it is smaller than the number of
+ * parallel jobs.
+ * 
+ * The time a stage waits for a free thread of its pool is recorded in the
+ * stageWaitTime timers.
+ */
+public class StagedJobExecutor {
+    private static final String STAGE_TAG = "stage";
+
+    private final Map<JobStage, ThreadPoolExecutor> stagePools;
+    private final Map<JobStage, Timer> stageWaitTimes;
+
+    public StagedJobExecutor(int downloadThreads, int processThreads, int uploadThreads) {
+        this.stagePools = new EnumMap<>(JobStage.class);
+        this.stagePools.put(JobStage.DOWNLOAD, createPool(JobStage.DOWNLOAD, downloadThreads));
+        this.stagePools.put(JobStage.PROCESS, createPool(JobStage.PROCESS, processThreads));
+        this.stagePools.put(JobStage.UPLOAD, createPool(JobStage.UPLOAD, uploadThreads));
+
+        this.stageWaitTimes = new EnumMap<>(JobStage.class);
+        for (JobStage stage : JobStage.values()) {
+            MonitorConfig config = MonitorConfig.builder("stageWaitTime").withTag(STAGE_TAG, stage.name()).build();
+            Timer timer = new BasicTimer(config, TimeUnit.MILLISECONDS);
+            DefaultMonitorRegistry.getInstance().register(timer);
+            this.stageWaitTimes.put(stage, timer);
+        }
+    }
+
+    public int getPoolSize(JobStage stage) {
+        ThreadPoolExecutor pool = this.stagePools.get(stage);
+        return pool != null ? pool.getMaximumPoolSize() : 0;
+    }
+
+    /**
+     * Executes the task on the pool of the given stage and blocks until it
+     * has completed.
+     * 
+     * @return the result of the task
+     * @throws Exception
+     *             the exception thrown by the task
+     */
+    public <T> T execute(final JobStage stage, final Callable<T> task) throws Exception {
+        ThreadPoolExecutor pool = this.stagePools.get(stage);
+        if (pool == null) {
+            return task.call();
+        }
+
+        final long submitted = System.nanoTime();
+        Future<T> future = pool.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                stageWaitTimes.get(stage).record(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+                return task.call();
+            }
+        });
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor pool : this.stagePools.values()) {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static ThreadPoolExecutor createPool(JobStage stage, int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Number of threads of stage " + stage + " must not be negative");
+        } else if (threads == 0) {
+            return null;
+        }
+        return new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new JobThreadFactory("backmeup-" + stage.name().toLowerCase() + "-", 0));
+    }
+}
@@ -0,0 +1,254 @@
+package org.backmeup.worker.job.status;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.backmeup.model.dto.BackupJobExecutionDTO;
+import org.backmeup.service.client.BackmeupService;
+import org.backmeup.worker.perfmon.JobMetrics;
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicGauge;
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.MonitorConfig;
+
+/**
+ * Sends the status updates of job executions to the backmeup service off the
+ * job threads. Updates are coalesced per job: only the latest state of a job
+ * is sent, an update that has not been sent yet is replaced by a newer one.
+ * The pending updates of all jobs are flushed periodically on a single
+ * thread.
+ * 
+ * A failed update is retried with exponential backoff unless a newer update
+ * of the job has arrived in the meantime. After maxRetries it is handed to
+ * the {@link FailedUpdateHandler}, if any, or dropped. While the handler
+ * holds updates of a job, later updates of the job are handed to it directly,
+ * so they are not overtaken.
+ * 
+ * An update is a snapshot of the job execution taken when it is submitted,
+ * so the job may continue to modify its execution.
+ */
+public class JobStatusUpdater {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobStatusUpdater.class);
+
+    private final BackmeupService bmuService;
+    private final long flushIntervalMillis;
+    private final int maxRetries;
+    private final long retryDelayMillis;
+    private volatile FailedUpdateHandler failedUpdateHandler;
+
+    private final ConcurrentMap<Long, PendingUpdate> pendingUpdates;
+    private final ObjectMapper mapper;
+    private final ScheduledExecutorService flushExecutor;
+
+    private final Counter updatesSubmitted = JobMetrics.getCounter(JobStatusUpdater.class, JobMetrics.STATUS_UPDATES_SUBMITTED);
+    private final Counter updatesCoalesced = JobMetrics.getCounter(JobStatusUpdater.class, JobMetrics.STATUS_UPDATES_COALESCED);
+    private final Counter updatesSent = JobMetrics.getCounter(JobStatusUpdater.class, JobMetrics.STATUS_UPDATES_SENT);
+    private final Counter updatesFailed = JobMetrics.getCounter(JobStatusUpdater.class, JobMetrics.STATUS_UPDATES_FAILED);
+    @SuppressWarnings({ "unused", "PMD.SingularField" })
+    private final BasicGauge<Integer> pendingUpdatesGauge;
+
+    /**
+     * @param flushIntervalMillis
+     *            interval of the flushes
+     * @param maxRetries
+     *            number of times a failed update is retried
+     * @param retryDelayMillis
+     *            delay before the first retry, doubled with each retry
+     */
+    public JobStatusUpdater(BackmeupService bmuService, long flushIntervalMillis, int maxRetries, long retryDelayMillis) {
+        this.bmuService = bmuService;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+
+        this.pendingUpdates = new ConcurrentHashMap<>();
+        this.mapper = new ObjectMapper();
+        this.mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "backmeup-status-updater");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        this.pendingUpdatesGauge = new BasicGauge<>(MonitorConfig.builder("pendingStatusUpdates").build(), new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return getNoOfPendingUpdates();
+            }
+        });
+        DefaultMonitorRegistry.getInstance().register(this.pendingUpdatesGauge);
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public int getNoOfPendingUpdates() {
+        return this.pendingUpdates.size();
+    }
+
+    public FailedUpdateHandler getFailedUpdateHandler() {
+        return this.failedUpdateHandler;
+    }
+
+    public void setFailedUpdateHandler(FailedUpdateHandler failedUpdateHandler) {
+        this.failedUpdateHandler = failedUpdateHandler;
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    public void start() {
+        this.flushExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush(false);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Failed to flush status updates", e);
+                }
+            }
+        }, this.flushIntervalMillis, this.flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Submits the current state of the job execution. Replaces an update of
+     * the same job that has not been sent yet.
+     */
+    public void submit(BackupJobExecutionDTO jobExecution) {
+        BackupJobExecutionDTO snapshot = snapshot(jobExecution);
+        this.updatesSubmitted.increment();
+        if (this.pendingUpdates.put(jobExecution.getId(), new PendingUpdate(snapshot)) != null) {
+            this.updatesCoalesced.increment();
+        }
+    }
+
+    /**
+     * Stops the periodic flushes and sends all pending updates once,
+     * regardless of their backoff.
+     */
+    public void shutdown() {
+        this.flushExecutor.shutdown();
+        try {
+            this.flushExecutor.awaitTermination(this.flushIntervalMillis + TimeUnit.SECONDS.toMillis(30), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush(true);
+        if (!this.pendingUpdates.isEmpty()) {
+            LOGGER.warn("{} status updates could not be sent", this.pendingUpdates.size());
+        }
+    }
+
+    // Private methods --------------------------------------------------------
+
+    /**
+     * Sends the pending updates that are due.
+     * 
+     * @param finalFlush
+     *            if true, updates are sent regardless of their backoff and
+     *            failed updates are not retried
+     */
+    private synchronized void flush(boolean finalFlush) {
+        long now = System.currentTimeMillis();
+        List<Long> jobIds = new ArrayList<>(this.pendingUpdates.keySet());
+        for (Long jobId : jobIds) {
+            PendingUpdate update = this.pendingUpdates.get(jobId);
+            if (update == null || (!finalFlush && update.nextAttempt > now)) {
+                continue;
+            }
+            // A newer update submitted while sending stays pending
+            if (!this.pendingUpdates.remove(jobId, update)) {
+                continue;
+            }
+            FailedUpdateHandler handler = this.failedUpdateHandler;
+            if (handler != null && handler.hasPendingUpdates(jobId)) {
+                handler.updateFailed(update.jobExecution);
+                continue;
+            }
+
+            try {
+                this.bmuService.updateBackupJobExecution(update.jobExecution);
+                this.updatesSent.increment();
+            } catch (Exception e) {
+                retryOrGiveUp(jobId, update, finalFlush, e);
+            }
+        }
+    }
+
+    private void retryOrGiveUp(Long jobId, PendingUpdate update, boolean finalFlush, Exception e) {
+        if (!finalFlush && update.attempts < this.maxRetries) {
+            long delay = this.retryDelayMillis << Math.min(update.attempts, 16);
+            LOGGER.warn("Failed to update job {}, retrying in {} ms: {}", jobId, delay, e.toString());
+            // Unless a newer update has been submitted in the meantime
+            this.pendingUpdates.putIfAbsent(jobId, update.retry(System.currentTimeMillis() + delay));
+            return;
+        }
+
+        this.updatesFailed.increment();
+        FailedUpdateHandler handler = this.failedUpdateHandler;
+        if (handler != null && !this.pendingUpdates.containsKey(jobId)) {
+            handler.updateFailed(update.jobExecution);
+        } else {
+            LOGGER.error("Failed to update job " + jobId + " after " + (update.attempts + 1) + " attempts", e);
+        }
+    }
+
+    private BackupJobExecutionDTO snapshot(BackupJobExecutionDTO jobExecution) {
+        try {
+            return this.mapper.readValue(this.mapper.writeValueAsBytes(jobExecution), BackupJobExecutionDTO.class);
+        } catch (IOException e) {
+            // Send the execution itself, the update may then contain later changes
+            LOGGER.warn("Failed to copy job execution {}: {}", jobExecution.getId(), e.toString());
+            return jobExecution;
+        }
+    }
+
+    // Nested classes and interfaces ------------------------------------------
+
+    /**
+     * Takes over updates that could not be sent, e.g. to persist them.
+     */
+    public interface FailedUpdateHandler {
+        void updateFailed(BackupJobExecutionDTO jobExecution);
+
+        /**
+         * Returns whether the handler holds updates of the job, which have to
+         * be sent before any later update.
+         */
+        boolean hasPendingUpdates(Long jobId);
+    }
+
+    private static class PendingUpdate {
+        private final BackupJobExecutionDTO jobExecution;
+        private final int attempts;
+        private final long nextAttempt;
+
+        PendingUpdate(BackupJobExecutionDTO jobExecution) {
+            this(jobExecution, 0, 0);
+        }
+
+        private PendingUpdate(BackupJobExecutionDTO jobExecution, int attempts, long nextAttempt) {
+            this.jobExecution = jobExecution;
+            this.attempts = attempts;
+            this.nextAttempt = nextAttempt;
+        }
+
+        PendingUpdate retry(long nextAttempt) {
+            return new PendingUpdate(this.jobExecution, this.attempts + 1, nextAttempt);
+        }
+    }
+}
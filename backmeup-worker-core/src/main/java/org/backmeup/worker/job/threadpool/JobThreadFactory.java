@@ -0,0 +1,71 @@
+package org.backmeup.worker.job.threadpool;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates named threads for executing jobs. Platform threads may be created
+ * with a reduced stack size, so that many mostly I/O-waiting jobs can be kept
+ * in flight.
+ * 
+ * If virtual threads are requested and the runtime supports them (Java 21 and
+ * later), the threads are created by Thread.ofVirtual(). The worker is built
+ * for older runtimes, so the builder is looked up by reflection. Otherwise
+ * platform threads are used.
+ */
+public class JobThreadFactory implements ThreadFactory {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobThreadFactory.class);
+
+    private final String namePrefix;
+    private final long stackSize;
+    private final ThreadFactory virtualThreadFactory;
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    /**
+     * @param stackSize
+     *            stack size of platform threads in bytes, 0 for the default
+     *            of the runtime
+     */
+    public JobThreadFactory(String namePrefix, long stackSize) {
+        this(namePrefix, stackSize, false);
+    }
+
+    public JobThreadFactory(String namePrefix, long stackSize, boolean virtual) {
+        this.namePrefix = namePrefix;
+        this.stackSize = stackSize;
+        this.virtualThreadFactory = virtual ? createVirtualThreadFactory(namePrefix) : null;
+    }
+
+    public boolean isVirtual() {
+        return this.virtualThreadFactory != null;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        if (this.virtualThreadFactory != null) {
+            return this.virtualThreadFactory.newThread(r);
+        }
+
+        Thread t = new Thread(null, r, this.namePrefix + this.threadNumber.getAndIncrement(), this.stackSize);
+        t.setDaemon(false);
+        t.setPriority(Thread.NORM_PRIORITY);
+        return t;
+    }
+
+    private static ThreadFactory createVirtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, namePrefix, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.warn("Virtual threads are not supported by this runtime, using platform threads");
+            return null;
+        }
+    }
+}
@@ -1,13 +1,14 @@
 package org.backmeup.worker.job.threadpool;
 
-import java.util.Vector;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class ObservableThreadPoolExecutor extends ThreadPoolExecutor {
-    private final Vector<ThreadPoolListener> listeners = new Vector<>();
+    private final List<ThreadPoolListener> listeners = new CopyOnWriteArrayList<>();
 
     // Constructors -----------------------------------------------------------
 
@@ -27,9 +28,7 @@ public class ObservableThreadPoolExecutor extends ThreadPoolExecutor {
     @Override
     protected void beforeExecute(Thread t, Runnable r) {
         super.beforeExecute(t, r);
-        @SuppressWarnings("unchecked")
-        Vector<ThreadPoolListener> listenerClone = (Vector<ThreadPoolListener>) listeners.clone();
-        for(ThreadPoolListener l : listenerClone){
+        for(ThreadPoolListener l : listeners){
             l.beforeExecute(t, r);
         }
     }
@@ -37,9 +36,7 @@ public class ObservableThreadPoolExecutor extends ThreadPoolExecutor {
     @Override
     protected void afterExecute(Runnable r, Throwable t) {
         super.afterExecute(r, t);
-        @SuppressWarnings("unchecked")
-        Vector<ThreadPoolListener> listenerClone = (Vector<ThreadPoolListener>) listeners.clone();
-        for(ThreadPoolListener l : listenerClone){
+        for(ThreadPoolListener l : listeners){
             l.afterExecute(r, t);
         }
     }
@@ -47,9 +44,7 @@ public class ObservableThreadPoolExecutor extends ThreadPoolExecutor {
     @Override
     protected void terminated() {
         super.terminated();
-        @SuppressWarnings("unchecked")
-        Vector<ThreadPoolListener> listenerClone = (Vector<ThreadPoolListener>) listeners.clone();
-        for(ThreadPoolListener l : listenerClone){
+        for(ThreadPoolListener l : listeners){
             l.terminated();
         }
     }
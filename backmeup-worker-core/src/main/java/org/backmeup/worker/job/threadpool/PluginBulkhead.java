@@ -0,0 +1,324 @@
+package org.backmeup.worker.job.threadpool;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of jobs that run concurrently per datasource and per
+ * datasink plugin. A job whose source or sink plugin is at its limit waits in
+ * an overflow queue of that plugin instead of occupying a thread of the
+ * executor, so a slow (e.g. throttled) plugin cannot block jobs of other
+ * plugins.
+ * 
+ * Waiting jobs are handed to the executor in the order they were received
+ * once both of their plugins have capacity again. Jobs that are no
+ * {@link PluginJob}s are not limited.
+ * 
+ * If the bulkhead is given the {@link JobSlots} of the worker, a waiting job
+ * gives up its slot and acquires a slot again before it is handed to the
+ * executor, so jobs waiting for a slow plugin do not keep the worker from
+ * receiving jobs of other plugins. The number of waiting jobs per plugin is
+ * bounded. Jobs beyond that bound are rejected and can be returned to the
+ * queue, where other workers may pick them up.
+ */
+public class PluginBulkhead {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PluginBulkhead.class);
+
+    private final Executor executor;
+    private final Map<String, Integer> sourceLimits;
+    private final Map<String, Integer> sinkLimits;
+    private final int maxWaitingJobs;
+    private final JobSlots slots;
+    private final RejectionListener rejectionListener;
+
+    private final Map<String, Compartment> sourceCompartments = new HashMap<>();
+    private final Map<String, Compartment> sinkCompartments = new HashMap<>();
+
+    /**
+     * @param sourceLimits
+     *            maximum number of concurrent jobs per source plugin id
+     * @param sinkLimits
+     *            maximum number of concurrent jobs per sink plugin id
+     * @param rejectionListener
+     *            notified about waiting jobs the executor rejected when they
+     *            were handed over
+     */
+    public PluginBulkhead(Executor executor, Map<String, Integer> sourceLimits, Map<String, Integer> sinkLimits,
+            RejectionListener rejectionListener) {
+        this(executor, sourceLimits, sinkLimits, Integer.MAX_VALUE, null, rejectionListener);
+    }
+
+    /**
+     * @param maxWaitingJobs
+     *            maximum number of jobs waiting per plugin
+     * @param slots
+     *            the job slots waiting jobs give up, null if waiting jobs
+     *            keep their slot
+     */
+    public PluginBulkhead(Executor executor, Map<String, Integer> sourceLimits, Map<String, Integer> sinkLimits,
+            int maxWaitingJobs, JobSlots slots, RejectionListener rejectionListener) {
+        if (maxWaitingJobs < 0) {
+            throw new IllegalArgumentException("Maximum number of waiting jobs must not be negative");
+        }
+        this.executor = executor;
+        this.sourceLimits = new HashMap<>(sourceLimits);
+        this.sinkLimits = new HashMap<>(sinkLimits);
+        this.maxWaitingJobs = maxWaitingJobs;
+        this.slots = slots;
+        this.rejectionListener = rejectionListener;
+    }
+
+    /**
+     * Hands the job, which must hold a slot, to the executor or, if one of
+     * its plugins is at its limit, to the overflow queue of that plugin. A
+     * job that has to wait gives up its slot.
+     * 
+     * @throws RejectedExecutionException
+     *             if the executor rejected the job or too many jobs wait for
+     *             the plugin already. The job still holds its slot.
+     */
+    public void execute(Runnable job) {
+        boolean waiting;
+        synchronized (this) {
+            waiting = !tryAcquire(job);
+            if (waiting) {
+                park(job);
+            }
+        }
+        if (waiting) {
+            if (this.slots != null) {
+                // The slot may let a waiting job of another plugin run
+                this.slots.release();
+                slotReleased();
+            }
+            return;
+        }
+
+        try {
+            this.executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                release(job);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Must be called when a job handed to the executor has finished. Waiting
+     * jobs that may run now are handed to the executor.
+     */
+    public void jobFinished(Runnable job) {
+        List<Runnable> ready;
+        synchronized (this) {
+            release(job);
+            ready = pollReadyJobs();
+        }
+        dispatch(ready);
+    }
+
+    /**
+     * Must be called when a slot has been released, so that a waiting job
+     * that may run but had no slot is handed to the executor.
+     */
+    public void slotReleased() {
+        if (this.slots == null) {
+            return;
+        }
+        List<Runnable> ready;
+        synchronized (this) {
+            ready = pollReadyJobs();
+        }
+        dispatch(ready);
+    }
+
+    /**
+     * Removes and returns all waiting jobs. If the bulkhead has been given
+     * the job slots, the jobs do not hold a slot.
+     */
+    public synchronized List<Runnable> drainWaitingJobs() {
+        List<Runnable> waiting = new ArrayList<>();
+        for (Compartment c : allCompartments()) {
+            waiting.addAll(c.waiting);
+            c.waiting.clear();
+        }
+        return waiting;
+    }
+
+    public synchronized int getNoOfWaitingJobs() {
+        int count = 0;
+        for (Compartment c : allCompartments()) {
+            count += c.waiting.size();
+        }
+        return count;
+    }
+
+    // Private methods --------------------------------------------------------
+
+    private void dispatch(List<Runnable> ready) {
+        for (Runnable next : ready) {
+            try {
+                this.executor.execute(next);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    release(next);
+                }
+                // The job holds the slot it acquired when it became ready
+                this.rejectionListener.jobRejected(next);
+            }
+        }
+    }
+
+    private boolean tryAcquire(Runnable job) {
+        Compartment source = sourceOf(job);
+        Compartment sink = sinkOf(job);
+        if (!canRun(source) || !canRun(sink)) {
+            return false;
+        }
+        // Jobs waiting for the same plugin go first
+        if ((source != null && !source.waiting.isEmpty()) || (sink != null && !sink.waiting.isEmpty())) {
+            return false;
+        }
+        acquire(job);
+        return true;
+    }
+
+    private void acquire(Runnable job) {
+        Compartment source = sourceOf(job);
+        Compartment sink = sinkOf(job);
+        if (source != null) {
+            source.running++;
+        }
+        if (sink != null) {
+            sink.running++;
+        }
+    }
+
+    private void release(Runnable job) {
+        Compartment source = sourceOf(job);
+        Compartment sink = sinkOf(job);
+        if (source != null) {
+            source.running--;
+        }
+        if (sink != null) {
+            sink.running--;
+        }
+    }
+
+    private void park(Runnable job) {
+        // Wait in the queue of the first plugin that blocks the job
+        Compartment source = sourceOf(job);
+        Compartment compartment = source != null && (!canRun(source) || !source.waiting.isEmpty()) ? source : sinkOf(job);
+        if (compartment.waiting.size() >= this.maxWaitingJobs) {
+            LOGGER.info("Too many jobs wait for plugin {} ({} waiting), rejecting job", compartment.pluginId,
+                    compartment.waiting.size());
+            throw new RejectedExecutionException("Too many jobs wait for plugin " + compartment.pluginId);
+        }
+        LOGGER.info("Job waits for plugin {} ({} running, limit {})", compartment.pluginId, compartment.running, compartment.limit);
+        compartment.waiting.add(job);
+    }
+
+    private List<Runnable> pollReadyJobs() {
+        List<Runnable> ready = new ArrayList<>();
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (Compartment c : allCompartments()) {
+                Runnable head = c.waiting.peek();
+                if (head != null && canRun(sourceOf(head)) && canRun(sinkOf(head))) {
+                    if (this.slots != null && !this.slots.tryAcquire()) {
+                        // The job is handed over once a slot is released
+                        return ready;
+                    }
+                    c.waiting.poll();
+                    acquire(head);
+                    ready.add(head);
+                    progress = true;
+                }
+            }
+        }
+        return ready;
+    }
+
+    private static boolean canRun(Compartment c) {
+        return c == null || c.running < c.limit;
+    }
+
+    private Compartment sourceOf(Runnable job) {
+        if (job instanceof PluginJob) {
+            return compartment(this.sourceCompartments, this.sourceLimits, ((PluginJob) job).getSourcePluginId());
+        }
+        return null;
+    }
+
+    private Compartment sinkOf(Runnable job) {
+        if (job instanceof PluginJob) {
+            return compartment(this.sinkCompartments, this.sinkLimits, ((PluginJob) job).getSinkPluginId());
+        }
+        return null;
+    }
+
+    private static Compartment compartment(Map<String, Compartment> compartments, Map<String, Integer> limits, String pluginId) {
+        if (pluginId == null || !limits.containsKey(pluginId)) {
+            return null;
+        }
+        Compartment c = compartments.get(pluginId);
+        if (c == null) {
+            c = new Compartment(pluginId, limits.get(pluginId));
+            compartments.put(pluginId, c);
+        }
+        return c;
+    }
+
+    private List<Compartment> allCompartments() {
+        if (this.sourceCompartments.isEmpty() && this.sinkCompartments.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Compartment> all = new ArrayList<>(this.sourceCompartments.values());
+        all.addAll(this.sinkCompartments.values());
+        return all;
+    }
+
+    // Nested classes and interfaces ------------------------------------------
+
+    public interface RejectionListener {
+        /**
+         * The rejected job holds a slot.
+         */
+        void jobRejected(Runnable job);
+    }
+
+    /**
+     * The job slots of the worker.
+     */
+    public interface JobSlots {
+        /**
+         * @return true if a slot was free and has been acquired
+         */
+        boolean tryAcquire();
+
+        void release();
+    }
+
+    private static class Compartment {
+        private final String pluginId;
+        private final int limit;
+        private int running;
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+
+        Compartment(String pluginId, int limit) {
+            this.pluginId = pluginId;
+            this.limit = limit;
+        }
+    }
+}
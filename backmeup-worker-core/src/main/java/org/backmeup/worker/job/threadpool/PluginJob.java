@@ -0,0 +1,11 @@
+package org.backmeup.worker.job.threadpool;
+
+/**
+ * A job that uses a datasource and a datasink plugin. The plugin ids may be
+ * null if they are not known.
+ */
+public interface PluginJob extends Runnable {
+    String getSourcePluginId();
+
+    String getSinkPluginId();
+}
@@ -0,0 +1,403 @@
+package org.backmeup.worker.job.upload;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.backmeup.plugin.api.Progressable;
+import org.backmeup.plugin.api.storage.DataObject;
+import org.backmeup.plugin.api.storage.Storage;
+import org.backmeup.plugin.api.storage.StorageException;
+import org.backmeup.worker.job.bandwidth.BandwidthShare;
+import org.backmeup.worker.job.incremental.IncrementalBackupFilter;
+import org.backmeup.worker.job.threadpool.JobThreadFactory;
+import org.backmeup.worker.perfmon.JobMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicTimer;
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.monitor.Timer;
+
+/**
+ * Uploads the contents of a storage in parts that are transferred
+ * concurrently. Datasinks opt in by taking the engine from the plugin context
+ * (see {@link #CONTEXT_ATTRIBUTE}) and passing a {@link PartUploader} to
+ * {@link #upload(Storage, PartUploader, Progressable)}.
+ * 
+ * The data objects of the storage are grouped into parts of about partSize
+ * bytes; a larger object forms a part of its own. At most window parts of a
+ * job are in flight at a time, the threads are shared by all jobs. A failed
+ * part is retried with exponential backoff (at most a minute), the other
+ * parts are not affected. A part waiting for its retry does not occupy a
+ * thread. Once a part has failed for good, no further parts are started
+ * and the upload fails.
+ * 
+ * In incremental mode, sinks that reference the data of earlier backups pass
+ * the changes of the backup (see {@link IncrementalBackupFilter}) and the
+ * unchanged objects are not uploaded.
+ */
+public class ParallelUploadEngine {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelUploadEngine.class);
+
+    public static final String CONTEXT_ATTRIBUTE = "org.backmeup.worker.uploadEngine";
+
+    static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService retryScheduler;
+    private final int window;
+    private final long partSize;
+    private final int maxRetries;
+    private final long retryDelayMillis;
+
+    private final Counter partsUploaded = JobMetrics.getCounter(ParallelUploadEngine.class, JobMetrics.PARTS_UPLOADED);
+    private final Counter partRetries = JobMetrics.getCounter(ParallelUploadEngine.class, JobMetrics.PART_RETRIES);
+    private final Timer partUploadTime;
+
+    /**
+     * @param threads
+     *            number of threads shared by all jobs
+     * @param window
+     *            maximum number of parts of a job in flight
+     * @param partSize
+     *            target size of a part in bytes
+     * @param maxRetries
+     *            number of times a failed part is retried
+     * @param retryDelayMillis
+     *            delay before the first retry, doubled with each retry up to
+     *            a minute
+     */
+    public ParallelUploadEngine(int threads, int window, long partSize, int maxRetries, long retryDelayMillis) {
+        if (threads < 1 || window < 1) {
+            throw new IllegalArgumentException("At least one thread and a window of one part are required");
+        }
+        if (partSize < 1) {
+            throw new IllegalArgumentException("Part size must be positive");
+        }
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new JobThreadFactory("backmeup-upload-", 0));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(new JobThreadFactory("backmeup-upload-retry-", 0));
+        this.window = window;
+        this.partSize = partSize;
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+
+        this.partUploadTime = new BasicTimer(MonitorConfig.builder("partUploadTime").build(), TimeUnit.MILLISECONDS);
+        DefaultMonitorRegistry.getInstance().register(this.partUploadTime);
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public int getWindow() {
+        return this.window;
+    }
+
+    public long getPartSize() {
+        return this.partSize;
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    /**
+     * Uploads all data objects of the storage and blocks until all parts have
+     * been uploaded.
+     * 
+     * @throws StorageException
+     *             if a part could not be uploaded
+     */
+    public void upload(Storage storage, PartUploader uploader, Progressable progressor) throws StorageException {
+        upload(storage, uploader, progressor, null);
+    }
+
+    /**
+     * Uploads all data objects of the storage, shaped by the upload bandwidth
+     * share of the job (see {@link BandwidthShare}). The objects are charged
+     * while the uploader reads them (see
+     * {@link UploadPart#openStream(DataObject)}).
+     * 
+     * @param bandwidth
+     *            the share of the job or null if the upload is not shaped
+     * @throws StorageException
+     *             if a part could not be uploaded
+     */
+    public void upload(Storage storage, PartUploader uploader, Progressable progressor, BandwidthShare bandwidth)
+            throws StorageException {
+        upload(storage, uploader, progressor, bandwidth, null);
+    }
+
+    /**
+     * Uploads the data objects of the storage that have changed since the
+     * last successful backup of the profile, the unchanged objects are
+     * skipped. The sink has to reference the unchanged objects of the earlier
+     * backups.
+     * 
+     * @param bandwidth
+     *            the share of the job or null if the upload is not shaped
+     * @param changes
+     *            the changes of the backup (see
+     *            {@link IncrementalBackupFilter#CONTEXT_ATTRIBUTE}) or null
+     *            if all objects are uploaded
+     * @throws StorageException
+     *             if a part could not be uploaded
+     */
+    public void upload(Storage storage, PartUploader uploader, Progressable progressor, final BandwidthShare bandwidth,
+            IncrementalBackupFilter.Changes changes) throws StorageException {
+        final ChangedObjects changed = changes != null ? new ChangedObjects(storage.getDataObjects(), changes) : null;
+        final Iterator<DataObject> objects = changed != null ? changed : storage.getDataObjects();
+        Iterator<UploadPart> parts = new Iterator<UploadPart>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return objects.hasNext();
+            }
+
+            @Override
+            public UploadPart next() {
+                return nextPart(objects, this.index++, bandwidth);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        uploadParts(parts, storage.getDataObjectCount(), uploader, progressor);
+        if (changed != null) {
+            progressor.progress("Skipped " + changed.skippedObjects + " unchanged objects (" + changed.skippedBytes + " bytes)");
+        }
+    }
+
+    public void shutdown() {
+        this.retryScheduler.shutdownNow();
+        this.executor.shutdownNow();
+    }
+
+    // Private methods --------------------------------------------------------
+
+    /**
+     * Uploads the parts with at most window parts in flight and blocks until
+     * all of them have been uploaded.
+     */
+    void uploadParts(Iterator<UploadPart> parts, final int totalObjects, final PartUploader uploader,
+            final Progressable progressor) throws StorageException {
+        final AtomicInteger uploadedObjects = new AtomicInteger(0);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final Semaphore inFlight = new Semaphore(this.window);
+        final Set<PartUpload> uploads = Collections.newSetFromMap(new ConcurrentHashMap<PartUpload, Boolean>());
+
+        try {
+            while (parts.hasNext() && failure.get() == null) {
+                final UploadPart part = parts.next();
+                inFlight.acquire();
+                PartUpload upload = new PartUpload(uploader, part, progressor) {
+                    @Override
+                    void completed(Exception e) {
+                        uploads.remove(this);
+                        if (e != null) {
+                            failure.compareAndSet(null, e);
+                        } else {
+                            int uploaded = uploadedObjects.addAndGet(part.getObjects().size());
+                            progressor.progress("Uploaded " + part + ", " + uploaded + " of " + totalObjects + " objects");
+                        }
+                        inFlight.release();
+                    }
+                };
+                uploads.add(upload);
+                upload.submit(0);
+            }
+
+            // Wait for the parts in flight, the first failure is reported
+            inFlight.acquire(this.window);
+            inFlight.release(this.window);
+        } catch (InterruptedException e) {
+            for (PartUpload upload : uploads) {
+                upload.cancel();
+            }
+            Thread.currentThread().interrupt();
+            throw new StorageException(e);
+        }
+
+        Exception e = failure.get();
+        if (e != null) {
+            throw e instanceof StorageException ? (StorageException) e : new StorageException(e);
+        }
+    }
+
+    /**
+     * Takes objects from the iterator until the part is full.
+     */
+    private UploadPart nextPart(Iterator<DataObject> objects, int index, BandwidthShare bandwidth) {
+        List<DataObject> partObjects = new ArrayList<>();
+        long size = 0;
+        while (objects.hasNext() && size < this.partSize) {
+            DataObject object = objects.next();
+            partObjects.add(object);
+            size += object.getLength();
+        }
+        return new UploadPart(index, partObjects, size, bandwidth);
+    }
+
+    /**
+     * Delay before the given retry: the retry delay doubled with each retry
+     * and capped at {@link #MAX_RETRY_DELAY_MILLIS}.
+     */
+    long getRetryDelay(int retry) {
+        long delay = this.retryDelayMillis << Math.min(retry, 30);
+        return delay < 0 || delay > MAX_RETRY_DELAY_MILLIS ? MAX_RETRY_DELAY_MILLIS : delay;
+    }
+
+    // Nested classes ---------------------------------------------------------
+
+    /**
+     * Leaves out the objects that have not changed since the last backup.
+     */
+    private static class ChangedObjects implements Iterator<DataObject> {
+        private final Iterator<DataObject> objects;
+        private final IncrementalBackupFilter.Changes changes;
+        private DataObject next;
+        private int skippedObjects;
+        private long skippedBytes;
+
+        ChangedObjects(Iterator<DataObject> objects, IncrementalBackupFilter.Changes changes) {
+            this.objects = objects;
+            this.changes = changes;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null && this.objects.hasNext()) {
+                DataObject object = this.objects.next();
+                if (this.changes.isUnchanged(object.getPath())) {
+                    this.skippedObjects++;
+                    this.skippedBytes += object.getLength();
+                } else {
+                    this.next = object;
+                }
+            }
+            return this.next != null;
+        }
+
+        @Override
+        public DataObject next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            DataObject object = this.next;
+            this.next = null;
+            return object;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The attempts to upload a part. An attempt runs on the upload threads;
+     * after a failure the next attempt is scheduled on the retry scheduler,
+     * so no upload thread is blocked while the part waits.
+     */
+    private abstract class PartUpload implements Runnable {
+        private final PartUploader uploader;
+        private final UploadPart part;
+        private final Progressable progressor;
+        private int attempt;
+        private volatile Future<?> future;
+        private volatile boolean cancelled;
+
+        PartUpload(PartUploader uploader, UploadPart part, Progressable progressor) {
+            this.uploader = uploader;
+            this.part = part;
+            this.progressor = progressor;
+        }
+
+        /**
+         * Called once when the part has been uploaded or has failed for good.
+         * 
+         * @param e
+         *            the failure or null if the part has been uploaded
+         */
+        abstract void completed(Exception e);
+
+        void submit(long delayMillis) {
+            try {
+                if (delayMillis > 0) {
+                    this.future = retryScheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            submit(0);
+                        }
+                    }, delayMillis, TimeUnit.MILLISECONDS);
+                } else {
+                    this.future = executor.submit(this);
+                }
+            } catch (RejectedExecutionException e) {
+                // The engine has been shut down
+                completed(e);
+                return;
+            }
+            if (this.cancelled) {
+                this.future.cancel(true);
+            }
+        }
+
+        void cancel() {
+            this.cancelled = true;
+            Future<?> current = this.future;
+            if (current != null) {
+                current.cancel(true);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (this.cancelled) {
+                return;
+            }
+            final long start = System.nanoTime();
+            try {
+                this.uploader.upload(this.part);
+                partUploadTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                partsUploaded.increment();
+                completed(null);
+            } catch (IOException | StorageException e) {
+                if (this.attempt >= maxRetries || this.cancelled) {
+                    LOGGER.error("Upload of " + this.part + " failed after " + (this.attempt + 1) + " attempts", e);
+                    completed(e);
+                    return;
+                }
+                long delay = getRetryDelay(this.attempt++);
+                this.progressor.progress("Upload of " + this.part + " failed, retrying in " + delay + " ms (" + this.attempt
+                        + "/" + maxRetries + "): " + e.getMessage());
+                partRetries.increment();
+                submit(delay);
+            } catch (RuntimeException e) {
+                completed(e);
+            } catch (Error e) {
+                completed(new StorageException(e));
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.backmeup.worker.job.upload;
+
+import java.io.IOException;
+
+import org.backmeup.plugin.api.storage.StorageException;
+
+/**
+ * Uploads a single part to the sink. Implemented by datasinks that use the
+ * {@link ParallelUploadEngine}. Parts are uploaded concurrently, so an
+ * implementation must be thread safe. A part may be uploaded more than once
+ * if an attempt failed.
+ */
+public interface PartUploader {
+    void upload(UploadPart part) throws IOException, StorageException;
+}
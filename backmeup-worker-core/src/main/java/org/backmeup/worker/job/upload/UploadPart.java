@@ -0,0 +1,70 @@
+package org.backmeup.worker.job.upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+import org.backmeup.plugin.api.storage.DataObject;
+import org.backmeup.worker.job.bandwidth.BandwidthShare;
+
+/**
+ * A group of data objects that is uploaded as a whole. Parts are numbered in
+ * the order they were taken from the storage, starting with 0.
+ * 
+ * Uploaders should read the objects through {@link #openStream(DataObject)},
+ * so that the upload is shaped by the bandwidth share of the job.
+ */
+public class UploadPart {
+    private final int index;
+    private final List<DataObject> objects;
+    private final long size;
+    private final BandwidthShare bandwidth;
+
+    public UploadPart(int index, List<DataObject> objects, long size) {
+        this(index, objects, size, null);
+    }
+
+    /**
+     * @param bandwidth
+     *            the upload share of the job or null if the upload is not
+     *            shaped
+     */
+    public UploadPart(int index, List<DataObject> objects, long size, BandwidthShare bandwidth) {
+        this.index = index;
+        this.objects = Collections.unmodifiableList(objects);
+        this.size = size;
+        this.bandwidth = bandwidth;
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+
+    public List<DataObject> getObjects() {
+        return this.objects;
+    }
+
+    /**
+     * Total length of the objects of this part in bytes.
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Opens the content of an object of this part. The bytes are charged to
+     * the bandwidth share of the job in chunks while they are read, so each
+     * attempt to upload the part is charged as it transfers.
+     */
+    public InputStream openStream(DataObject object) throws IOException {
+        InputStream in = new ByteArrayInputStream(object.getBytes());
+        return this.bandwidth != null ? this.bandwidth.wrap(in) : in;
+    }
+
+    @Override
+    public String toString() {
+        return "part " + this.index + " (" + this.objects.size() + " objects, " + this.size + " bytes)";
+    }
+}
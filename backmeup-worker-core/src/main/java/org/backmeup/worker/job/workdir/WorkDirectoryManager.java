@@ -0,0 +1,359 @@
+package org.backmeup.worker.job.workdir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.backmeup.worker.perfmon.JobMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicGauge;
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.MonitorConfig;
+
+/**
+ * Manages the temporary directories of the jobs under the work directory
+ * (workDir/&lt;jobId&gt;).
+ * 
+ * The directory of a successful job is deleted asynchronously once the job
+ * has finished. Directories of failed jobs are retained for a configurable
+ * time and deleted by a periodic sweep afterwards. Directories found at
+ * startup are treated like the ones of failed jobs.
+ * 
+ * If the free space of the work directory drops below a watermark, retained
+ * directories are deleted early (oldest first) and new jobs are deferred
+ * until enough space is available again, see {@link #awaitFreeSpace()}. Once
+ * the manager is closed (e.g. while the worker drains), jobs are no longer
+ * deferred.
+ * 
+ * Free and used space of the work directory as well as the number of
+ * reclaimed bytes are exposed as metrics.
+ */
+public class WorkDirectoryManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WorkDirectoryManager.class);
+
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+    private static final long FREE_SPACE_CHECK_INTERVAL_MILLIS = 5000;
+
+    private final File workDir;
+    private final long minFreeSpace;
+    private final long retentionMillis;
+
+    private final Set<Long> activeJobs;
+    // Retained directories and the time they may be deleted at
+    private final Map<Long, Long> retainedJobs;
+
+    private final AtomicLong usedSpace;
+    private final Counter reclaimedBytes;
+
+    private final ScheduledExecutorService cleanupExecutor;
+
+    private final CountDownLatch closed;
+    private final AtomicBoolean sweepPending;
+
+    /**
+     * @param minFreeSpace
+     *            free space in bytes below which new jobs are deferred; 0
+     *            disables the watermark
+     * @param retentionMillis
+     *            time the directory of a failed job is retained
+     */
+    public WorkDirectoryManager(File workDir, long minFreeSpace, long retentionMillis) {
+        this.workDir = workDir;
+        this.minFreeSpace = minFreeSpace;
+        this.retentionMillis = retentionMillis;
+
+        this.activeJobs = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        this.retainedJobs = new ConcurrentHashMap<>();
+
+        this.usedSpace = new AtomicLong(0);
+        this.reclaimedBytes = JobMetrics.getCounter(WorkDirectoryManager.class, "workDirReclaimedBytes");
+
+        DefaultMonitorRegistry.getInstance().register(new BasicGauge<>(MonitorConfig.builder("workDirFreeSpace").build(),
+                new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return getFreeSpace();
+                    }
+                }));
+        DefaultMonitorRegistry.getInstance().register(new BasicGauge<>(MonitorConfig.builder("workDirUsedSpace").build(),
+                new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return usedSpace.get();
+                    }
+                }));
+
+
+        this.closed = new CountDownLatch(1);
+        this.sweepPending = new AtomicBoolean();
+
+        this.cleanupExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "backmeup-workdir-cleanup");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public boolean isClosed() {
+        return this.closed.getCount() == 0;
+    }
+
+    public long getFreeSpace() {
+        return this.workDir.getUsableSpace();
+    }
+
+    /**
+     * Size of the work directory as of the last sweep.
+     */
+    public long getUsedSpace() {
+        return this.usedSpace.get();
+    }
+
+    public File getJobDirectory(Long jobId) {
+        return new File(this.workDir, jobId.toString());
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    /**
+     * Scans the work directory for left-over job directories and starts the
+     * periodic sweep.
+     */
+    public void start() {
+        if (!this.workDir.isDirectory() && !this.workDir.mkdirs()) {
+            LOGGER.warn("Failed to create work directory {}", this.workDir);
+        }
+
+        File[] dirs = this.workDir.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                Long jobId = parseJobId(dir);
+                if (jobId != null && !this.activeJobs.contains(jobId)) {
+                    this.retainedJobs.put(jobId, dir.lastModified() + this.retentionMillis);
+                }
+            }
+            LOGGER.info("Found {} job directories in {}", this.retainedJobs.size(), this.workDir);
+        }
+
+        this.cleanupExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep(false);
+            }
+        }, 0, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops deferring new jobs, callers waiting in {@link #awaitFreeSpace()}
+     * return.
+     */
+    public void close() {
+        this.closed.countDown();
+    }
+
+    public void shutdown() {
+        close();
+        this.cleanupExecutor.shutdown();
+    }
+
+    /**
+     * Must be called before a job uses its directory. The directory will not
+     * be deleted while the job is running.
+     */
+    public void jobStarted(Long jobId) {
+        this.activeJobs.add(jobId);
+        this.retainedJobs.remove(jobId);
+    }
+
+    /**
+     * Must be called when a job has finished.
+     * 
+     * @param removeData
+     *            true to delete the directory of the job now, false to retain
+     *            it (e.g. because the job failed)
+     */
+    public void jobFinished(final Long jobId, boolean removeData) {
+        this.activeJobs.remove(jobId);
+        if (removeData) {
+            this.cleanupExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!activeJobs.contains(jobId)) {
+                        delete(jobId);
+                    }
+                }
+            });
+        } else {
+            this.retainedJobs.put(jobId, System.currentTimeMillis() + this.retentionMillis);
+        }
+    }
+
+    /**
+     * Blocks until the free space of the work directory is above the
+     * watermark or the manager is closed. Retained directories are deleted
+     * early to free space, at most one such sweep is pending at a time.
+     * 
+     * @return true if enough space is free, false if the manager is closed
+     */
+    public boolean awaitFreeSpace() throws InterruptedException {
+        if (this.minFreeSpace <= 0 || getFreeSpace() >= this.minFreeSpace) {
+            return !isClosed();
+        }
+
+        LOGGER.warn("Free space of {} below {} bytes, deferring new jobs", this.workDir, this.minFreeSpace);
+        while (getFreeSpace() < this.minFreeSpace) {
+            if (this.sweepPending.compareAndSet(false, true)) {
+                try {
+                    this.cleanupExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                sweep(true);
+                            } finally {
+                                sweepPending.set(false);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Shut down concurrently, the closed check below returns
+                    this.sweepPending.set(false);
+                }
+            }
+            if (this.closed.await(FREE_SPACE_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOGGER.info("Stopped waiting for free space of {}, manager closed", this.workDir);
+                return false;
+            }
+        }
+        LOGGER.info("Free space of {} above {} bytes again", this.workDir, this.minFreeSpace);
+        return !isClosed();
+    }
+
+    // Private methods --------------------------------------------------------
+
+    /**
+     * Deletes expired retained directories. Under disk pressure, retained
+     * directories are deleted oldest first until enough space is free.
+     */
+    private void sweep(boolean underPressure) {
+        try {
+            long now = System.currentTimeMillis();
+            List<Map.Entry<Long, Long>> retained = new ArrayList<>(this.retainedJobs.entrySet());
+            Collections.sort(retained, new Comparator<Map.Entry<Long, Long>>() {
+                @Override
+                public int compare(Map.Entry<Long, Long> e1, Map.Entry<Long, Long> e2) {
+                    return e1.getValue().compareTo(e2.getValue());
+                }
+            });
+
+            for (Map.Entry<Long, Long> entry : retained) {
+                boolean expired = entry.getValue() <= now;
+                boolean needSpace = underPressure && getFreeSpace() < this.minFreeSpace;
+                if (!expired && !needSpace) {
+                    break;
+                }
+                if (this.retainedJobs.remove(entry.getKey(), entry.getValue())) {
+                    delete(entry.getKey());
+                }
+            }
+
+            this.usedSpace.set(sizeOf(this.workDir.toPath()));
+        } catch (RuntimeException e) {
+            // Keep the periodic sweep alive
+            LOGGER.error("Failed to clean up work directory", e);
+        }
+    }
+
+    private void delete(Long jobId) {
+        Path dir = getJobDirectory(jobId).toPath();
+        if (!Files.exists(dir)) {
+            return;
+        }
+
+        final AtomicLong deleted = new AtomicLong(0);
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    deleted.addAndGet(attrs.size());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path d, IOException exc) throws IOException {
+                    if (exc != null) {
+                        throw exc;
+                    }
+                    Files.delete(d);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            LOGGER.info("Removed directory of job {} ({} bytes)", jobId, deleted.get());
+        } catch (IOException e) {
+            LOGGER.warn("Failed to remove directory of job " + jobId, e);
+        } finally {
+            this.reclaimedBytes.increment(deleted.get());
+        }
+    }
+
+    private static long sizeOf(Path dir) {
+        final AtomicLong size = new AtomicLong(0);
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    size.addAndGet(attrs.size());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    // Files may be deleted by running jobs meanwhile
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.debug("Failed to determine size of {}", dir, e);
+        }
+        return size.get();
+    }
+
+    private static Long parseJobId(File dir) {
+        if (!dir.isDirectory()) {
+            return null;
+        }
+        try {
+            return Long.valueOf(dir.getName());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
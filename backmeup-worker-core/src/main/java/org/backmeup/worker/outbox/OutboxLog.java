@@ -0,0 +1,249 @@
+package org.backmeup.worker.outbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of records in a memory-mapped file. Records are read in the
+ * order they were appended and removed by acknowledging them.
+ * 
+ * The file starts with the offset of the first unacknowledged record,
+ * followed by the records (length, checksum, kind, key, payload). The length
+ * is written last, so a record is either complete or ends the log; a record
+ * whose checksum does not match ends the log as well. Acknowledged records
+ * are dropped by compaction, which rewrites the remaining records into a new
+ * file that replaces the log atomically.
+ */
+class OutboxLog implements Closeable {
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 4 + 4 + 1 + 8;
+
+    private final Path file;
+    private final int capacity;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int readOffset;
+    private int writeOffset;
+    private int noOfRecords;
+
+    private OutboxLog(Path file, int capacity) {
+        this.file = file;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Opens the log, creating it if it does not exist.
+     * 
+     * @param capacity
+     *            size of the file in bytes, an existing larger file keeps its
+     *            size
+     */
+    static OutboxLog open(Path file, int capacity) throws IOException {
+        if (capacity < HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Capacity too small: " + capacity);
+        }
+        OutboxLog log = new OutboxLog(file, capacity);
+        log.map();
+        return log;
+    }
+
+    // Properties -------------------------------------------------------------
+
+    synchronized int getNoOfRecords() {
+        return this.noOfRecords;
+    }
+
+    synchronized int getUsedBytes() {
+        return this.writeOffset - this.readOffset;
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    /**
+     * Appends a record and forces it to disk.
+     * 
+     * @return false if the log is full
+     */
+    synchronized boolean append(byte kind, long key, byte[] payload) throws IOException {
+        int size = RECORD_HEADER_SIZE + payload.length;
+        if (this.writeOffset + size > this.buffer.capacity()) {
+            if (this.readOffset == HEADER_SIZE) {
+                return false;
+            }
+            compact();
+            if (this.writeOffset + size > this.buffer.capacity()) {
+                return false;
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        int pos = this.writeOffset;
+        this.buffer.putInt(pos + 4, (int) crc.getValue());
+        this.buffer.put(pos + 8, kind);
+        this.buffer.putLong(pos + 9, key);
+        for (int i = 0; i < payload.length; i++) {
+            this.buffer.put(pos + RECORD_HEADER_SIZE + i, payload[i]);
+        }
+        this.buffer.putInt(pos, payload.length);
+        this.buffer.force();
+
+        this.writeOffset += size;
+        this.noOfRecords++;
+        return true;
+    }
+
+    /**
+     * Returns the first unacknowledged record or null if there is none.
+     */
+    synchronized Record peek() {
+        return readRecord(this.readOffset);
+    }
+
+    /**
+     * Returns all unacknowledged records.
+     */
+    synchronized List<Record> getRecords() {
+        List<Record> records = new ArrayList<>(this.noOfRecords);
+        Record record = readRecord(this.readOffset);
+        while (record != null) {
+            records.add(record);
+            record = readRecord(record.next);
+        }
+        return records;
+    }
+
+    /**
+     * Removes the given record, which must be the first unacknowledged one.
+     * The log is compacted once more than half of it has been acknowledged.
+     */
+    synchronized void acknowledge(Record record) throws IOException {
+        if (record.offset != this.readOffset) {
+            throw new IllegalStateException("Records must be acknowledged in order");
+        }
+        this.readOffset = record.next;
+        this.noOfRecords--;
+        this.buffer.putLong(0, this.readOffset);
+        this.buffer.force();
+
+        if (this.readOffset > this.buffer.capacity() / 2) {
+            compact();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.buffer.force();
+        this.channel.close();
+    }
+
+    // Private methods --------------------------------------------------------
+
+    private void map() throws IOException {
+        this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = Math.max(this.channel.size(), this.capacity);
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        long offset = this.buffer.getLong(0);
+        if (offset < HEADER_SIZE || offset > size) {
+            // New (or damaged) file
+            offset = HEADER_SIZE;
+            this.buffer.putLong(0, offset);
+        }
+        this.readOffset = (int) offset;
+
+        // Find the end of the log
+        this.noOfRecords = 0;
+        int pos = this.readOffset;
+        Record record = readRecord(pos);
+        while (record != null) {
+            this.noOfRecords++;
+            pos = record.next;
+            record = readRecord(pos);
+        }
+        this.writeOffset = pos;
+    }
+
+    private Record readRecord(int pos) {
+        if (pos + RECORD_HEADER_SIZE > this.buffer.capacity()) {
+            return null;
+        }
+        int length = this.buffer.getInt(pos);
+        if (length <= 0 || pos + RECORD_HEADER_SIZE + length > this.buffer.capacity()) {
+            return null;
+        }
+
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = this.buffer.get(pos + RECORD_HEADER_SIZE + i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != this.buffer.getInt(pos + 4)) {
+            return null;
+        }
+        return new Record(pos, pos + RECORD_HEADER_SIZE + length, this.buffer.get(pos + 8), this.buffer.getLong(pos + 9), payload);
+    }
+
+    /**
+     * Rewrites the unacknowledged records into a new file, which replaces
+     * the log.
+     */
+    private void compact() throws IOException {
+        Path tmp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        try (FileChannel tmpChannel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer tmpBuffer = tmpChannel.map(FileChannel.MapMode.READ_WRITE, 0, this.buffer.capacity());
+            tmpBuffer.putLong(0, HEADER_SIZE);
+            for (int i = this.readOffset; i < this.writeOffset; i++) {
+                tmpBuffer.put(HEADER_SIZE + i - this.readOffset, this.buffer.get(i));
+            }
+            tmpBuffer.force();
+        }
+        Files.move(tmp, this.file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        this.channel.close();
+        map();
+    }
+
+    // Nested classes ---------------------------------------------------------
+
+    static final class Record {
+        private final int offset;
+        private final int next;
+        private final byte kind;
+        private final long key;
+        private final byte[] payload;
+
+        Record(int offset, int next, byte kind, long key, byte[] payload) {
+            this.offset = offset;
+            this.next = next;
+            this.kind = kind;
+            this.key = key;
+            this.payload = payload;
+        }
+
+        byte getKind() {
+            return this.kind;
+        }
+
+        long getKey() {
+            return this.key;
+        }
+
+        byte[] getPayload() {
+            return this.payload;
+        }
+    }
+}
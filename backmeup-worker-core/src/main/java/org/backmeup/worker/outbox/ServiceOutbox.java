@@ -0,0 +1,312 @@
+package org.backmeup.worker.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.backmeup.model.dto.BackupJobExecutionDTO;
+import org.backmeup.model.dto.WorkerMetricDTO;
+import org.backmeup.service.client.BackmeupService;
+import org.backmeup.worker.WorkerException;
+import org.backmeup.worker.job.status.JobStatusUpdater;
+import org.backmeup.worker.outbox.OutboxLog.Record;
+import org.backmeup.worker.perfmon.JobMetrics;
+import org.backmeup.worker.service.ServiceUnavailableException;
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicGauge;
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.MonitorConfig;
+
+/**
+ * Durable outbox for the status updates and metrics the worker sends to the
+ * backmeup service. Adding an update is a local append to a memory-mapped log
+ * in the work directory; a background drainer sends the updates in the order
+ * they were added and removes them once the service has accepted them. If
+ * the service is unreachable, the updates stay in the log (also across
+ * restarts) and are sent when the service is back.
+ * 
+ * As long as a job has status updates in the outbox, later updates of the job
+ * have to be added to the outbox as well (see
+ * {@link #hasPendingUpdates(Long)}), otherwise the service could receive
+ * them out of order.
+ * 
+ * An update that the service rejects (the call fails, but not with a
+ * transport failure, see
+ * {@link ServiceUnavailableException#isTransportFailure(Throwable)}) is
+ * retried a limited number of times. It is then moved to the rejected file next to the outbox and counted
+ * as lost, so that it does not block the updates behind it.
+ */
+public class ServiceOutbox implements JobStatusUpdater.FailedUpdateHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceOutbox.class);
+
+    private static final String LOG_FILE_NAME = "outbox.log";
+    private static final String REJECTED_FILE_NAME = "outbox.rejected";
+    private static final byte KIND_STATUS = 1;
+    private static final byte KIND_METRICS = 2;
+
+    private final BackmeupService bmuService;
+    private final long drainIntervalMillis;
+    private final int maxAttempts;
+    private final File rejectedFile;
+    private final OutboxLog log;
+    private final ObjectMapper mapper;
+    private final ScheduledExecutorService drainExecutor;
+
+    // Number of status updates in the log per job
+    private final Map<Long, Integer> pendingJobs;
+
+    // Number of rejected attempts to send the first update of the log
+    private int headAttempts;
+
+    private final Counter updatesAppended = JobMetrics.getCounter(ServiceOutbox.class, JobMetrics.OUTBOX_APPENDED);
+    private final Counter updatesReplayed = JobMetrics.getCounter(ServiceOutbox.class, JobMetrics.OUTBOX_REPLAYED);
+    private final Counter updatesLost = JobMetrics.getCounter(ServiceOutbox.class, JobMetrics.OUTBOX_LOST);
+    private final BasicGauge<Integer> pendingUpdatesGauge;
+
+    /**
+     * @param dir
+     *            directory of the outbox file
+     * @param capacity
+     *            size of the outbox file in bytes
+     * @param drainIntervalMillis
+     *            interval in which the drainer sends the updates
+     * @param maxAttempts
+     *            number of times an update is sent before it is moved to the
+     *            rejected file if the service rejects it
+     */
+    public ServiceOutbox(BackmeupService bmuService, File dir, int capacity, long drainIntervalMillis, int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is required");
+        }
+        this.bmuService = bmuService;
+        this.drainIntervalMillis = drainIntervalMillis;
+        this.maxAttempts = maxAttempts;
+        this.rejectedFile = new File(dir, REJECTED_FILE_NAME);
+        this.mapper = new ObjectMapper();
+        this.mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        this.pendingJobs = new HashMap<>();
+
+        try {
+            dir.mkdirs();
+            this.log = OutboxLog.open(new File(dir, LOG_FILE_NAME).toPath(), capacity);
+        } catch (IOException e) {
+            throw new WorkerException("Failed to open outbox in " + dir, e);
+        }
+        for (Record record : this.log.getRecords()) {
+            if (record.getKind() == KIND_STATUS) {
+                addPendingJob(record.getKey());
+            }
+        }
+        if (this.log.getNoOfRecords() > 0) {
+            LOGGER.info("Outbox contains {} updates that have not been sent", this.log.getNoOfRecords());
+        }
+
+        this.drainExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "backmeup-outbox-drainer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.pendingUpdatesGauge = new BasicGauge<>(MonitorConfig.builder("outboxPendingUpdates").build(), new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return getNoOfPendingUpdates();
+            }
+        });
+        DefaultMonitorRegistry.getInstance().register(this.pendingUpdatesGauge);
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public int getNoOfPendingUpdates() {
+        return this.log.getNoOfRecords();
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    public void start() {
+        this.drainExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, 0, this.drainIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a status update of a job execution.
+     * 
+     * @return false if the update could not be stored
+     */
+    public boolean addStatusUpdate(BackupJobExecutionDTO jobExecution) {
+        synchronized (this.pendingJobs) {
+            if (append(KIND_STATUS, jobExecution.getId(), jobExecution)) {
+                addPendingJob(jobExecution.getId());
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Adds a batch of metrics.
+     * 
+     * @return false if the metrics could not be stored
+     */
+    public boolean addMetrics(List<WorkerMetricDTO> metrics) {
+        return append(KIND_METRICS, 0, metrics.toArray(new WorkerMetricDTO[metrics.size()]));
+    }
+
+    /**
+     * Returns whether status updates of the job are waiting in the outbox.
+     */
+    public boolean hasPendingUpdates(Long jobId) {
+        synchronized (this.pendingJobs) {
+            return this.pendingJobs.containsKey(jobId);
+        }
+    }
+
+    @Override
+    public void updateFailed(BackupJobExecutionDTO jobExecution) {
+        addStatusUpdate(jobExecution);
+    }
+
+    /**
+     * Stops the drainer after a last attempt to send the pending updates.
+     * Updates that could not be sent stay in the outbox file.
+     */
+    public void shutdown() {
+        this.drainExecutor.shutdown();
+        try {
+            this.drainExecutor.awaitTermination(this.drainIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drain();
+        DefaultMonitorRegistry.getInstance().unregister(this.pendingUpdatesGauge);
+        try {
+            this.log.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close outbox", e);
+        }
+        if (this.log.getNoOfRecords() > 0) {
+            LOGGER.warn("{} updates remain in the outbox", this.log.getNoOfRecords());
+        }
+    }
+
+    // Private methods --------------------------------------------------------
+
+    private boolean append(byte kind, long key, Object value) {
+        try {
+            if (this.log.append(kind, key, this.mapper.writeValueAsBytes(value))) {
+                this.updatesAppended.increment();
+                return true;
+            }
+            LOGGER.error("Outbox is full, dropping update");
+        } catch (IOException e) {
+            LOGGER.error("Failed to add update to outbox", e);
+        }
+        this.updatesLost.increment();
+        return false;
+    }
+
+    /**
+     * Sends the updates in order until the outbox is empty or the service
+     * fails.
+     */
+    private synchronized void drain() {
+        Record record;
+        while ((record = this.log.peek()) != null) {
+            try {
+                send(record);
+            } catch (IOException e) {
+                // Cannot be sent, ever
+                LOGGER.error("Dropping unreadable update from outbox", e);
+                reject(record);
+            } catch (Exception e) {
+                if (ServiceUnavailableException.isTransportFailure(e) || ++this.headAttempts < this.maxAttempts) {
+                    LOGGER.warn("Failed to send update from outbox, {} updates pending: {}", this.log.getNoOfRecords(), e.toString());
+                    return;
+                }
+                LOGGER.error("Service rejected update from outbox " + this.headAttempts + " times, dropping it", e);
+                reject(record);
+            }
+
+            try {
+                synchronized (this.pendingJobs) {
+                    this.log.acknowledge(record);
+                    this.headAttempts = 0;
+                    if (record.getKind() == KIND_STATUS) {
+                        removePendingJob(record.getKey());
+                    }
+                }
+            } catch (IOException e) {
+                // The update may be sent again after a restart
+                LOGGER.error("Failed to remove update from outbox", e);
+                return;
+            }
+        }
+    }
+
+    private void send(Record record) throws IOException {
+        switch (record.getKind()) {
+        case KIND_STATUS:
+            this.bmuService.updateBackupJobExecution(this.mapper.readValue(record.getPayload(), BackupJobExecutionDTO.class));
+            break;
+        case KIND_METRICS:
+            WorkerMetricDTO[] metrics = this.mapper.readValue(record.getPayload(), WorkerMetricDTO[].class);
+            this.bmuService.addWorkerMetrics(Arrays.asList(metrics));
+            break;
+        default:
+            throw new IOException("Unknown kind of update: " + record.getKind());
+        }
+        this.updatesReplayed.increment();
+    }
+
+    /**
+     * Keeps an update that cannot be sent in the rejected file, one line of
+     * kind, key and payload per update.
+     */
+    private void reject(Record record) {
+        this.updatesLost.increment();
+        String line = record.getKind() + " " + record.getKey() + " " + new String(record.getPayload(), StandardCharsets.UTF_8) + "\n";
+        try {
+            Files.write(this.rejectedFile.toPath(), line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            LOGGER.error("Failed to keep rejected update " + line.trim(), e);
+        }
+    }
+
+    private void addPendingJob(Long jobId) {
+        Integer count = this.pendingJobs.get(jobId);
+        this.pendingJobs.put(jobId, count == null ? 1 : count + 1);
+    }
+
+    private void removePendingJob(Long jobId) {
+        Integer count = this.pendingJobs.get(jobId);
+        if (count == null || count <= 1) {
+            this.pendingJobs.remove(jobId);
+        } else {
+            this.pendingJobs.put(jobId, count - 1);
+        }
+    }
+}
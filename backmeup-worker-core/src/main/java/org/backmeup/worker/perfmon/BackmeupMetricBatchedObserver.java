@@ -9,6 +9,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 
 import org.backmeup.model.dto.WorkerMetricDTO;
 import org.backmeup.service.client.BackmeupService;
+import org.backmeup.worker.outbox.ServiceOutbox;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,6 +26,7 @@ public class BackmeupMetricBatchedObserver implements MetricObserver {
     
     private final int batchSize;
     private final BackmeupService backmeupServiceClient;
+    private final ServiceOutbox outbox;
 
     private final BlockingQueue<UpdateTask> pushQueue = new LinkedBlockingQueue<UpdateTask>(PUSH_QUEUE_SIZE);
 
@@ -36,8 +38,18 @@ public class BackmeupMetricBatchedObserver implements MetricObserver {
     }
 
     public BackmeupMetricBatchedObserver(BackmeupService backmeupServiceClient, int batchSize) {
+        this(backmeupServiceClient, batchSize, null);
+    }
+
+    /**
+     * @param outbox
+     *            if not null, batches that are dropped from the full queue or
+     *            could not be sent are added to the outbox
+     */
+    public BackmeupMetricBatchedObserver(BackmeupService backmeupServiceClient, int batchSize, ServiceOutbox outbox) {
         this.backmeupServiceClient = backmeupServiceClient;
         this.batchSize = batchSize;
+        this.outbox = outbox;
 
         final Thread pushThread = new Thread(new PushProcessor(), "BackmeupMetricObserver-Push");
         pushThread.setDaemon(true);
@@ -85,15 +97,16 @@ public class BackmeupMetricBatchedObserver implements MetricObserver {
         }
 
         int totalSent = 0;
-        List<WorkerMetricDTO> workerMetrics = new ArrayList<>(updateTasks.metrics.length);
-        for(Metric m : updateTasks.metrics) {
-            WorkerMetricDTO metric = new WorkerMetricDTO();
-            metric.setTimestamp(new Date(m.getTimestamp()));
-            metric.setMetric( m.getConfig().getName());
-            metric.setValue(m.getNumberValue().doubleValue());
-            workerMetrics.add(metric);
+        List<WorkerMetricDTO> workerMetrics = toWorkerMetrics(updateTasks);
+        try {
+            this.backmeupServiceClient.addWorkerMetrics(workerMetrics);
+        } catch (RuntimeException e) {
+            if (this.outbox == null || !this.outbox.addMetrics(workerMetrics)) {
+                throw e;
+            }
+            LOGGER.debug("Failed to send {} metrics, added them to the outbox", updateTasks.numMetrics);
+            return;
         }
-        this.backmeupServiceClient.addWorkerMetrics(workerMetrics);
         LOGGER.debug("Sent {}/{} metrics to backmeup-service", totalSent, updateTasks.numMetrics);
     }
     
@@ -103,9 +116,13 @@ public class BackmeupMetricBatchedObserver implements MetricObserver {
         while (!pushQueue.offer(task) && attempts <= maxAttempts) {
             attempts++;
             final UpdateTask droppedTask = pushQueue.remove();
-            LOGGER.warn(
-                    "Remove old task because queue is full. Dropping {} metrics.",
-                    droppedTask.numMetrics);
+            if (outbox != null && outbox.addMetrics(toWorkerMetrics(droppedTask))) {
+                LOGGER.info("Queue is full, moved {} metrics of old task to the outbox", droppedTask.numMetrics);
+            } else {
+                LOGGER.warn(
+                        "Remove old task because queue is full. Dropping {} metrics.",
+                        droppedTask.numMetrics);
+            }
         }
         if (attempts >= maxAttempts) {
             LOGGER.error("Unable to push update of {}", task);
@@ -114,6 +131,18 @@ public class BackmeupMetricBatchedObserver implements MetricObserver {
         }
     }
 
+    private static List<WorkerMetricDTO> toWorkerMetrics(UpdateTask updateTask) {
+        List<WorkerMetricDTO> workerMetrics = new ArrayList<>(updateTask.metrics.length);
+        for(Metric m : updateTask.metrics) {
+            WorkerMetricDTO metric = new WorkerMetricDTO();
+            metric.setTimestamp(new Date(m.getTimestamp()));
+            metric.setMetric( m.getConfig().getName());
+            metric.setValue(m.getNumberValue().doubleValue());
+            workerMetrics.add(metric);
+        }
+        return workerMetrics;
+    }
+
     private static class UpdateTask {
         private final int numMetrics;
         private final Metric[] metrics;
@@ -7,6 +7,7 @@ import java.util.List;
 
 import org.backmeup.model.dto.WorkerMetricDTO;
 import org.backmeup.service.client.BackmeupService;
+import org.backmeup.worker.outbox.ServiceOutbox;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +20,7 @@ public class BackmeupMetricObserver extends BaseMetricObserver {
     private static final String OBSERVER_NAME_DEFAULT = "BackmeupMetricObserver";
 
     private final BackmeupService backmeupServiceClient;
+    private final ServiceOutbox outbox;
 
     private volatile boolean sendMetrics = true;
     
@@ -29,10 +31,24 @@ public class BackmeupMetricObserver extends BaseMetricObserver {
         this(backmeupServiceClient, METRIC_PREFIX_DEFAULT);
     }
 
+    public BackmeupMetricObserver(BackmeupService backmeupServiceClient, ServiceOutbox outbox) {
+        this(backmeupServiceClient, METRIC_PREFIX_DEFAULT, outbox);
+    }
+
     public BackmeupMetricObserver(BackmeupService backmeupServiceClient, String metricPrefix) {
+        this(backmeupServiceClient, metricPrefix, null);
+    }
+
+    /**
+     * @param outbox
+     *            if not null, the metrics are added to the outbox, which sends
+     *            them in the background
+     */
+    public BackmeupMetricObserver(BackmeupService backmeupServiceClient, String metricPrefix, ServiceOutbox outbox) {
         super(OBSERVER_NAME_DEFAULT);
         this.backmeupServiceClient = backmeupServiceClient;
         this.metricPrefix = metricPrefix;
+        this.outbox = outbox;
     }
     
     public void stop() {
@@ -72,7 +88,9 @@ public class BackmeupMetricObserver extends BaseMetricObserver {
             metric.setValue(m.getNumberValue().doubleValue());
             workerMetrics.add(metric);
         }
-        
-        this.backmeupServiceClient.addWorkerMetrics(workerMetrics);
+
+        if (this.outbox == null || !this.outbox.addMetrics(workerMetrics)) {
+            this.backmeupServiceClient.addWorkerMetrics(workerMetrics);
+        }
     }
 }
@@ -17,6 +17,26 @@ public final class JobMetrics {
     public static final String OBJECTS_RECEIVED = "objectsReceived";
     public static final String OBJECTS_SENT = "objectsSent";
 
+    public static final String BYTES_UNCHANGED = "bytesUnchanged";
+    public static final String OBJECTS_UNCHANGED = "objectsUnchanged";
+
+    public static final String PARTS_UPLOADED = "partsUploaded";
+    public static final String PART_RETRIES = "partRetries";
+
+    public static final String FETCHES_COMPLETED = "fetchesCompleted";
+    public static final String SEGMENTS_FETCHED = "segmentsFetched";
+
+    public static final String STATUS_UPDATES_SUBMITTED = "statusUpdatesSubmitted";
+    public static final String STATUS_UPDATES_COALESCED = "statusUpdatesCoalesced";
+    public static final String STATUS_UPDATES_SENT = "statusUpdatesSent";
+    public static final String STATUS_UPDATES_FAILED = "statusUpdatesFailed";
+
+    public static final String PREFETCH_FAILURES = "prefetchFailures";
+
+    public static final String OUTBOX_APPENDED = "outboxAppended";
+    public static final String OUTBOX_REPLAYED = "outboxReplayed";
+    public static final String OUTBOX_LOST = "outboxLost";
+
     private static final ConcurrentMap<MonitorConfig, Counter> COUNTERS = new ConcurrentHashMap<MonitorConfig, Counter>();
     
     private JobMetrics() {
@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.backmeup.service.client.BackmeupService;
+import org.backmeup.worker.outbox.ServiceOutbox;
 
 import com.netflix.servo.publish.AsyncMetricObserver;
 import com.netflix.servo.publish.BasicMetricFilter;
@@ -34,7 +35,11 @@ public final class PerformanceMonitor {
     }
 
     public static void initialize(BackmeupService bmuServiceClient) {
-        observers.add(createBackmeupMetricObserver(bmuServiceClient));
+        initialize(bmuServiceClient, null);
+    }
+
+    public static void initialize(BackmeupService bmuServiceClient, ServiceOutbox outbox) {
+        observers.add(createBackmeupMetricObserver(bmuServiceClient, outbox));
     }
 
     public static void startPublishing() {
@@ -62,9 +67,9 @@ public final class PerformanceMonitor {
     }
 
     private static MetricObserver createBackmeupMetricObserver(
-            BackmeupService bmuServiceClient) {
+            BackmeupService bmuServiceClient, ServiceOutbox outbox) {
         return async("AsyncBackmeupMetricObserver", transformCountertoRate(
-                new BackmeupMetricObserver(bmuServiceClient)));
+                new BackmeupMetricObserver(bmuServiceClient, outbox)));
     }
 
     private static MetricObserver transformCountertoRate(
@@ -0,0 +1,115 @@
+package org.backmeup.worker.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops calls to a failing service for a while. The circuit opens after a
+ * number of consecutive failures; calls are rejected while it is open. Once
+ * the open time has passed, a single trial call is let through (half open):
+ * if it succeeds the circuit closes, otherwise it opens again.
+ */
+public class CircuitBreaker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialInFlight;
+    private long stateChanges;
+
+    /**
+     * @param failureThreshold
+     *            number of consecutive failures that open the circuit
+     * @param openMillis
+     *            time the circuit stays open before a trial call is allowed
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be positive");
+        }
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    // Properties -------------------------------------------------------------
+
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    public synchronized long getNoOfStateChanges() {
+        return this.stateChanges;
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    /**
+     * Returns whether a call may be made now. A call that is allowed must be
+     * reported with {@link #recordSuccess()} or {@link #recordFailure()}.
+     */
+    public synchronized boolean allowRequest() {
+        switch (this.state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (System.currentTimeMillis() - this.openedAt < this.openMillis) {
+                return false;
+            }
+            transitionTo(State.HALF_OPEN);
+            this.trialInFlight = true;
+            return true;
+        default:
+            // Half open, only one trial call at a time
+            if (this.trialInFlight) {
+                return false;
+            }
+            this.trialInFlight = true;
+            return true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        this.consecutiveFailures = 0;
+        this.trialInFlight = false;
+        if (this.state != State.CLOSED) {
+            transitionTo(State.CLOSED);
+        }
+    }
+
+    public synchronized void recordFailure() {
+        this.consecutiveFailures++;
+        this.trialInFlight = false;
+        if (this.state == State.HALF_OPEN || (this.state == State.CLOSED && this.consecutiveFailures >= this.failureThreshold)) {
+            this.openedAt = System.currentTimeMillis();
+            transitionTo(State.OPEN);
+        }
+    }
+
+    /**
+     * Reports an allowed call that was abandoned without an answer of the
+     * service.
+     */
+    public synchronized void recordCancelled() {
+        this.trialInFlight = false;
+    }
+
+    // Private methods --------------------------------------------------------
+
+    private void transitionTo(State newState) {
+        LOGGER.info("Circuit {} changed from {} to {}", this.name, this.state, newState);
+        this.state = newState;
+        this.stateChanges++;
+    }
+
+    // Nested classes and enums -----------------------------------------------
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+}
@@ -0,0 +1,36 @@
+package org.backmeup.worker.service;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent calls to estimate percentiles.
+ */
+class LatencyWindow {
+    private final long[] samples;
+    private int next;
+    private int size;
+
+    LatencyWindow(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    synchronized void record(long latencyMillis) {
+        this.samples[this.next] = latencyMillis;
+        this.next = (this.next + 1) % this.samples.length;
+        this.size = Math.min(this.size + 1, this.samples.length);
+    }
+
+    /**
+     * Returns the given percentile (0-100) of the recorded latencies or -1 if
+     * nothing has been recorded yet.
+     */
+    synchronized long getPercentile(int percentile) {
+        if (this.size == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(this.samples, this.size);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * this.size) - 1;
+        return sorted[Math.max(0, Math.min(index, this.size - 1))];
+    }
+}
@@ -0,0 +1,286 @@
+package org.backmeup.worker.service;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.backmeup.service.client.BackmeupService;
+import org.backmeup.worker.WorkerException;
+import org.backmeup.worker.job.threadpool.JobThreadFactory;
+
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicCounter;
+import com.netflix.servo.monitor.BasicGauge;
+import com.netflix.servo.monitor.BasicTimer;
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.Monitor;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.monitor.Timer;
+
+/**
+ * Wraps the client of the backmeup service, so that a slow or failing service
+ * does not block the worker.
+ * 
+ * All calls go through a {@link CircuitBreaker}: after a number of
+ * consecutive transport failures (see
+ * {@link ServiceUnavailableException#isTransportFailure(Throwable)}) the calls
+ * fail fast with a {@link ServiceUnavailableException} until the service has
+ * recovered. Other exceptions are answers of the service, e.g. a rejected
+ * update, and do not open the circuit.
+ * 
+ * The methods in the hedge list are hedged: if a call has not completed after
+ * the 95th percentile of the recent latencies of that method, a second
+ * request is sent and the first response wins. Only reads without side
+ * effects may be hedged; {@code getBackupJobExecution} changes the state of
+ * the job on the service and must not be listed.
+ * 
+ * The latencies, failures, rejected and hedged calls and the state of the
+ * circuit are registered as metrics and published by the performance monitor.
+ */
+public class ResilientBackmeupService {
+    private static final String METHOD_TAG = "method";
+    private static final int LATENCY_WINDOW_SIZE = 100;
+    private static final int HEDGE_PERCENTILE = 95;
+
+    private final BackmeupService delegate;
+    private final CircuitBreaker circuitBreaker;
+    private final long minHedgeDelayMillis;
+    private final Set<String> hedgedMethods;
+    private final ExecutorService hedgeExecutor;
+    private final BackmeupService proxy;
+
+    private final ConcurrentMap<String, LatencyWindow> latencies;
+    private final ConcurrentMap<String, Timer> callTimes;
+
+    private final Counter callFailures;
+    private final Counter callsRejected;
+    private final Counter hedgedCalls;
+
+    /**
+     * @param failureThreshold
+     *            number of consecutive failures that open the circuit
+     * @param openMillis
+     *            time the circuit stays open before a trial call is made
+     * @param minHedgeDelayMillis
+     *            minimum time a call waits before it is hedged, 0 disables
+     *            hedging
+     * @param hedgedMethods
+     *            names of the side-effect-free methods that may be hedged
+     */
+    public ResilientBackmeupService(BackmeupService delegate, int failureThreshold, long openMillis, long minHedgeDelayMillis,
+            Set<String> hedgedMethods) {
+        for (String methodName : hedgedMethods) {
+            if (!isServiceMethod(methodName)) {
+                throw new IllegalArgumentException("Unknown service method " + methodName);
+            }
+        }
+        this.delegate = delegate;
+        this.circuitBreaker = new CircuitBreaker("backmeup-service", failureThreshold, openMillis);
+        this.minHedgeDelayMillis = minHedgeDelayMillis;
+        this.hedgedMethods = Collections.unmodifiableSet(new HashSet<>(hedgedMethods));
+        if (minHedgeDelayMillis > 0 && !hedgedMethods.isEmpty()) {
+            this.hedgeExecutor = Executors.newCachedThreadPool(new JobThreadFactory("backmeup-service-call-", 0));
+        } else {
+            this.hedgeExecutor = null;
+        }
+        this.latencies = new ConcurrentHashMap<>();
+        this.callTimes = new ConcurrentHashMap<>();
+
+        this.callFailures = register(new BasicCounter(MonitorConfig.builder("serviceCallFailures").build()));
+        this.callsRejected = register(new BasicCounter(MonitorConfig.builder("serviceCallsRejected").build()));
+        this.hedgedCalls = register(new BasicCounter(MonitorConfig.builder("serviceCallsHedged").build()));
+        register(new BasicGauge<>(MonitorConfig.builder("serviceCircuitState").build(), new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return circuitBreaker.getState().ordinal();
+            }
+        }));
+        register(new BasicGauge<>(MonitorConfig.builder("serviceCircuitStateChanges").build(), new Callable<Long>() {
+            @Override
+            public Long call() {
+                return circuitBreaker.getNoOfStateChanges();
+            }
+        }));
+
+        this.proxy = (BackmeupService) Proxy.newProxyInstance(BackmeupService.class.getClassLoader(),
+                new Class<?>[] { BackmeupService.class }, new ResilientInvocationHandler());
+    }
+
+    // Properties -------------------------------------------------------------
+
+    /**
+     * Returns the service whose calls are protected by the circuit breaker.
+     */
+    public BackmeupService getService() {
+        return this.proxy;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    // Methods ----------------------------------------------------------------
+
+    public void shutdown() {
+        if (this.hedgeExecutor != null) {
+            this.hedgeExecutor.shutdownNow();
+        }
+    }
+
+    // Private methods --------------------------------------------------------
+
+    private Object invoke(Method method, Object[] args) throws Throwable {
+        if (!this.circuitBreaker.allowRequest()) {
+            this.callsRejected.increment();
+            throw new ServiceUnavailableException("Backmeup service unavailable, call to " + method.getName() + " rejected");
+        }
+
+        long start = System.nanoTime();
+        try {
+            Object result = isHedged(method) ? invokeHedged(method, args) : invokeDelegate(method, args);
+            this.circuitBreaker.recordSuccess();
+            recordLatency(method.getName(), System.nanoTime() - start);
+            return result;
+        } catch (InterruptedException e) {
+            // Not a failure of the service
+            this.circuitBreaker.recordCancelled();
+            Thread.currentThread().interrupt();
+            throw new WorkerException("Interrupted while calling " + method.getName(), e);
+        } catch (Throwable t) {
+            if (ServiceUnavailableException.isTransportFailure(t)) {
+                this.circuitBreaker.recordFailure();
+                this.callFailures.increment();
+            } else {
+                // The service answered, it is available
+                this.circuitBreaker.recordSuccess();
+            }
+            throw t;
+        }
+    }
+
+    private Object invokeDelegate(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(this.delegate, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private Object invokeHedged(final Method method, final Object[] args) throws Throwable {
+        Callable<Object> call = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                try {
+                    return invokeDelegate(method, args);
+                } catch (Exception | Error e) {
+                    throw e;
+                } catch (Throwable t) {
+                    throw new WorkerException(t);
+                }
+            }
+        };
+
+        CompletionService<Object> completionService = new ExecutorCompletionService<>(this.hedgeExecutor);
+        Future<Object> primary = completionService.submit(call);
+        Future<Object> hedge = null;
+        try {
+            Future<Object> first = completionService.poll(getHedgeDelay(method.getName()), TimeUnit.MILLISECONDS);
+            if (first == null) {
+                this.hedgedCalls.increment();
+                hedge = completionService.submit(call);
+                first = completionService.take();
+            }
+            try {
+                return first.get();
+            } catch (ExecutionException e) {
+                if (hedge == null) {
+                    throw e.getCause();
+                }
+                // The other request may still succeed
+                try {
+                    return completionService.take().get();
+                } catch (ExecutionException e2) {
+                    throw e.getCause();
+                }
+            }
+        } finally {
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    private boolean isHedged(Method method) {
+        return this.hedgeExecutor != null && this.hedgedMethods.contains(method.getName());
+    }
+
+    private static boolean isServiceMethod(String methodName) {
+        for (Method method : BackmeupService.class.getMethods()) {
+            if (method.getName().equals(methodName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long getHedgeDelay(String methodName) {
+        LatencyWindow window = this.latencies.get(methodName);
+        long percentile = window != null ? window.getPercentile(HEDGE_PERCENTILE) : -1;
+        return Math.max(this.minHedgeDelayMillis, percentile);
+    }
+
+    private void recordLatency(String methodName, long nanos) {
+        LatencyWindow window = this.latencies.get(methodName);
+        if (window == null) {
+            LatencyWindow created = new LatencyWindow(LATENCY_WINDOW_SIZE);
+            window = this.latencies.putIfAbsent(methodName, created);
+            if (window == null) {
+                window = created;
+            }
+        }
+        window.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+
+        Timer timer = this.callTimes.get(methodName);
+        if (timer == null) {
+            MonitorConfig config = MonitorConfig.builder("serviceCallTime").withTag(METHOD_TAG, methodName).build();
+            Timer created = new BasicTimer(config, TimeUnit.MILLISECONDS);
+            timer = this.callTimes.putIfAbsent(methodName, created);
+            if (timer == null) {
+                timer = register(created);
+            }
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static <T extends Monitor<?>> T register(T monitor) {
+        DefaultMonitorRegistry.getInstance().register(monitor);
+        return monitor;
+    }
+
+    // Nested classes ---------------------------------------------------------
+
+    private class ResilientInvocationHandler implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(this, args);
+            }
+            return ResilientBackmeupService.this.invoke(method, args);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.backmeup.worker.service;
+
+import java.io.IOException;
+
+import org.backmeup.worker.WorkerException;
+
+/**
+ * Thrown when a call to the backmeup service is rejected without being sent,
+ * because the circuit of the service is open. Like an {@link IOException} it
+ * means that the service could not be reached, not that it refused the call.
+ */
+public class ServiceUnavailableException extends WorkerException {
+    private static final long serialVersionUID = 1L;
+
+    public ServiceUnavailableException(String message) {
+        super(message);
+    }
+
+    /**
+     * Returns true if the call failed because the service could not be
+     * reached: the cause chain contains an {@link IOException} or a
+     * ServiceUnavailableException. Any other exception is an answer of the
+     * service, e.g. a rejected update.
+     */
+    public static boolean isTransportFailure(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException || cause instanceof ServiceUnavailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
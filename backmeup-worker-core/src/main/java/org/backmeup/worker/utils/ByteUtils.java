@@ -1,16 +1,55 @@
 package org.backmeup.worker.utils;
 
-import java.nio.ByteBuffer;
-
 public final class ByteUtils {
     private ByteUtils() {
         // Utility classes should not have public constructor
     }
     
     public static long bytesToLong(byte[] bytes) {
-        ByteBuffer buffer = ByteBuffer.allocate(Long.SIZE);
-        buffer.put(bytes);
-        buffer.flip();
-        return buffer.getLong();
+        return getLong(bytes, 0);
+    }
+
+    /**
+     * Reads a big-endian long at the given offset without copying the array.
+     */
+    public static long getLong(byte[] bytes, int offset) {
+        if (offset < 0 || bytes.length - offset < Long.SIZE / Byte.SIZE) {
+            throw new IllegalArgumentException("Not enough bytes to read a long at offset " + offset);
+        }
+        return ((long) bytes[offset] << 56)
+                | ((long) (bytes[offset + 1] & 0xff) << 48)
+                | ((long) (bytes[offset + 2] & 0xff) << 40)
+                | ((long) (bytes[offset + 3] & 0xff) << 32)
+                | ((long) (bytes[offset + 4] & 0xff) << 24)
+                | ((long) (bytes[offset + 5] & 0xff) << 16)
+                | ((long) (bytes[offset + 6] & 0xff) << 8)
+                | (bytes[offset + 7] & 0xff);
+    }
+
+    /**
+     * Reads a big-endian int at the given offset without copying the array.
+     */
+    public static int getInt(byte[] bytes, int offset) {
+        if (offset < 0 || bytes.length - offset < Integer.SIZE / Byte.SIZE) {
+            throw new IllegalArgumentException("Not enough bytes to read an int at offset " + offset);
+        }
+        return (bytes[offset] << 24)
+                | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8)
+                | (bytes[offset + 3] & 0xff);
+    }
+
+    public static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    public static void putInt(byte[] bytes, int offset, int value) {
+        for (int i = 3; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
     }
 }
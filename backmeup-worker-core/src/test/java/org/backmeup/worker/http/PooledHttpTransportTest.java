@@ -0,0 +1,94 @@
+package org.backmeup.worker.http;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class PooledHttpTransportTest {
+    private PooledHttpTransport transport;
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private ExecutorService executor;
+
+    @After
+    public void tearDown() {
+        if (transport != null) {
+            transport.shutdown();
+        }
+        if (server != null) {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testHostLimitAppliesToAnyPort() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int current = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), current));
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                }
+                exchange.sendResponseHeaders(200, 0);
+                exchange.close();
+            }
+        });
+        server.start();
+        final String uri = "http://localhost:" + server.getAddress().getPort() + "/";
+
+        transport = new PooledHttpTransport("test", 10, 10, Collections.singletonMap("localhost", 1), 5000, 5000, 5000, 0,
+                true);
+        executor = Executors.newFixedThreadPool(3);
+        List<Future<Integer>> responses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            responses.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    try (CloseableHttpResponse response = transport.getHttpClient().execute(new HttpGet(uri))) {
+                        EntityUtils.consume(response.getEntity());
+                        return response.getStatusLine().getStatusCode();
+                    }
+                }
+            }));
+        }
+        for (Future<Integer> response : responses) {
+            assertEquals(200, response.get().intValue());
+        }
+        assertEquals(1, maxRunning.get());
+    }
+}
@@ -0,0 +1,202 @@
+package org.backmeup.worker.job;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.backmeup.model.constants.JobExecutionStatus;
+import org.backmeup.model.dto.AuthDataDTO;
+import org.backmeup.model.dto.BackupJobExecutionDTO;
+import org.backmeup.model.dto.PluginProfileDTO;
+import org.backmeup.model.dto.UserDTO;
+import org.backmeup.model.spi.PluginDescribable;
+import org.backmeup.plugin.api.Action;
+import org.backmeup.plugin.api.Datasink;
+import org.backmeup.plugin.api.Datasource;
+import org.backmeup.plugin.api.storage.Storage;
+import org.backmeup.plugin.api.storage.StorageException;
+import org.backmeup.plugin.infrastructure.PluginManager;
+import org.backmeup.worker.job.action.ActionDependencies;
+import org.backmeup.worker.job.action.ActionScheduler;
+import org.backmeup.worker.service.FakeBackmeupService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BackupJobRunnerTest {
+    private static final String INDEXER_ID = "org.backmeup.indexer";
+
+    private File jobTempDir;
+    private ActionScheduler actionScheduler;
+    private BackupJobRunner runner;
+
+    private final Recorder source = new Recorder();
+    private final Recorder sink = new Recorder();
+    private final Recorder actions = new Recorder();
+    private final Recorder storage = new Recorder();
+
+    @Before
+    public void setUp() throws IOException {
+        jobTempDir = Files.createTempDirectory("jobs").toFile();
+        actionScheduler = new ActionScheduler(1, new ActionDependencies());
+        runner = new BackupJobRunner(new FakePluginManager(), new FakeBackmeupService().getService(), jobTempDir.getPath(),
+                "'BMU_%SOURCE%_%PROFILEID%_'yyyyMMddHHmmssSSS", null, null, actionScheduler);
+        runner.setJournalEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        actionScheduler.shutdown();
+    }
+
+    @Test
+    public void testJobInterruptedAfterProcessingResumesAtUpload() throws StorageException {
+        // The worker goes away while the job uploads
+        sink.failNext("upload", new StorageException("Connection reset"));
+        assertEquals(JobExecutionStatus.ERROR, runner.executeBackup(backupJob(), storage.proxy(Storage.class)));
+        assertEquals(1, source.getCalls("downloadAll"));
+        assertEquals(2, actions.getCalls("doAction"));
+
+        // The redelivered job uploads the processed data it left behind
+        assertEquals(JobExecutionStatus.SUCCESSFUL, runner.executeBackup(backupJob(), storage.proxy(Storage.class)));
+        assertEquals(1, source.getCalls("downloadAll"));
+        assertEquals(2, actions.getCalls("doAction"));
+        assertEquals(2, sink.getCalls("upload"));
+    }
+
+    @Test
+    public void testJobInterruptedWhileProcessingStartsOver() throws StorageException {
+        actions.failNext("doAction", new StorageException("No space left on device"));
+        assertEquals(JobExecutionStatus.ERROR, runner.executeBackup(backupJob(), storage.proxy(Storage.class)));
+        assertEquals(0, sink.getCalls("upload"));
+
+        assertEquals(JobExecutionStatus.SUCCESSFUL, runner.executeBackup(backupJob(), storage.proxy(Storage.class)));
+        assertEquals(2, source.getCalls("downloadAll"));
+        assertEquals(1, sink.getCalls("upload"));
+    }
+
+    private static BackupJobExecutionDTO backupJob() {
+        UserDTO user = new UserDTO();
+        user.setUserId(1L);
+
+        PluginProfileDTO sourceProfile = new PluginProfileDTO();
+        sourceProfile.setProfileId(2L);
+        sourceProfile.setPluginId("org.backmeup.dropbox");
+
+        AuthDataDTO authData = new AuthDataDTO();
+        authData.setProperties(new HashMap<String, String>());
+        PluginProfileDTO sinkProfile = new PluginProfileDTO();
+        sinkProfile.setProfileId(3L);
+        sinkProfile.setPluginId("org.backmeup.filesystem");
+        sinkProfile.setAuthData(authData);
+
+        BackupJobExecutionDTO backupJob = new BackupJobExecutionDTO();
+        backupJob.setId(4L);
+        backupJob.setUser(user);
+        backupJob.setSource(sourceProfile);
+        backupJob.setSink(sinkProfile);
+        backupJob.setActions(new ArrayList<PluginProfileDTO>());
+        return backupJob;
+    }
+
+    private class FakePluginManager extends PluginManager {
+        FakePluginManager() {
+            super(null, null, null);
+        }
+
+        @Override
+        public Datasource getDatasource(String id) {
+            return source.proxy(Datasource.class);
+        }
+
+        @Override
+        public Datasink getDatasink(String id) {
+            return sink.proxy(Datasink.class);
+        }
+
+        @Override
+        public Action getAction(String id) {
+            return actions.proxy(Action.class);
+        }
+
+        @Override
+        public PluginDescribable getPluginDescribableById(String id) {
+            return new Recorder().proxy(PluginDescribable.class);
+        }
+    }
+
+    /**
+     * Counts the calls to a plugin and lets the next call of a method fail.
+     * Storage directories are created when they are opened, so they survive
+     * a failed job like the directories of the local storage.
+     */
+    private static class Recorder implements InvocationHandler {
+        private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+        private final Map<String, Exception> failures = new ConcurrentHashMap<>();
+
+        <T> T proxy(Class<T> type) {
+            return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, this));
+        }
+
+        int getCalls(String method) {
+            AtomicInteger count = this.calls.get(method);
+            return count != null ? count.get() : 0;
+        }
+
+        void failNext(String method, Exception e) {
+            this.failures.put(method, e);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                return name.equals("equals") ? proxy == args[0] : name.equals("hashCode") ? System.identityHashCode(proxy)
+                        : "Recorder";
+            }
+            this.calls.putIfAbsent(name, new AtomicInteger());
+            this.calls.get(name).incrementAndGet();
+            Exception failure = this.failures.remove(name);
+            if (failure != null) {
+                throw failure;
+            }
+
+            switch (name) {
+            case "open":
+                new File((String) args[0]).mkdirs();
+                return null;
+            case "getDataObjectCount":
+                return 2;
+            case "getDataObjectSize":
+                return 20L;
+            case "getId":
+                return INDEXER_ID;
+            case "getMetadata":
+                return new HashMap<String, String>();
+            default:
+                return defaultValue(method.getReturnType());
+            }
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) {
+                return false;
+            } else if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.backmeup.worker.job.action;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ActionDependenciesTest {
+
+    @Test
+    public void testIndependentActionsRunInOneWave() {
+        ActionDependencies dependencies = new ActionDependencies();
+        List<List<ActionTask>> waves = dependencies.plan(tasks("org.backmeup.thumbnail", "org.backmeup.checksum"));
+
+        assertEquals("[[org.backmeup.thumbnail, org.backmeup.checksum]]", waves.toString());
+    }
+
+    @Test
+    public void testThumbnailBeforeIndexing() {
+        ActionDependencies dependencies = new ActionDependencies();
+        List<List<ActionTask>> waves = dependencies.plan(tasks("org.backmeup.indexing", "org.backmeup.thumbnail"));
+
+        assertEquals("[[org.backmeup.thumbnail], [org.backmeup.indexing]]", waves.toString());
+    }
+
+    @Test
+    public void testEncryptionLast() {
+        ActionDependencies dependencies = new ActionDependencies();
+        List<List<ActionTask>> waves = dependencies.plan(tasks("org.backmeup.encryption", "org.backmeup.filesplit",
+                "org.backmeup.thumbnail", "org.backmeup.indexing"));
+
+        assertEquals("[[org.backmeup.filesplit, org.backmeup.thumbnail], [org.backmeup.indexing], [org.backmeup.encryption]]",
+                waves.toString());
+    }
+
+    @Test
+    public void testConfiguredConstraintReplacesBuiltIn() {
+        ActionDependencies dependencies = new ActionDependencies(Collections.singletonMap("org.backmeup.indexing", ""));
+        List<List<ActionTask>> waves = dependencies.plan(tasks("org.backmeup.thumbnail", "org.backmeup.indexing"));
+
+        assertEquals("[[org.backmeup.thumbnail, org.backmeup.indexing]]", waves.toString());
+    }
+
+    @Test
+    public void testSameActionTwiceRunsInSequence() {
+        ActionDependencies dependencies = new ActionDependencies();
+        List<List<ActionTask>> waves = dependencies.plan(tasks("org.backmeup.filesplit", "org.backmeup.filesplit"));
+
+        assertEquals(2, waves.size());
+    }
+
+    @Test
+    public void testCycleIsBroken() {
+        ActionDependencies dependencies = new ActionDependencies(Collections.singletonMap("org.backmeup.thumbnail",
+                "org.backmeup.indexing"));
+        List<List<ActionTask>> waves = dependencies.plan(tasks("org.backmeup.indexing", "org.backmeup.thumbnail"));
+
+        assertEquals("[[org.backmeup.indexing], [org.backmeup.thumbnail]]", waves.toString());
+    }
+
+    private static List<ActionTask> tasks(String... actionIds) {
+        List<ActionTask> tasks = new ArrayList<>();
+        for (String actionId : Arrays.asList(actionIds)) {
+            tasks.add(new ActionTask(actionId) {
+                @Override
+                public void execute() {
+                }
+            });
+        }
+        return tasks;
+    }
+}
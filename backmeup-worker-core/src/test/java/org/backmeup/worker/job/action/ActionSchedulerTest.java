@@ -0,0 +1,46 @@
+package org.backmeup.worker.job.action;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.backmeup.plugin.api.ActionException;
+import org.junit.Test;
+
+public class ActionSchedulerTest {
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+
+    @Test
+    public void testIndexingIsSkippedIfThumbnailsFailed() throws Exception {
+        ActionScheduler scheduler = new ActionScheduler(1, new ActionDependencies());
+        scheduler.execute(1L, Arrays.asList(task(ActionDependencies.THUMBNAIL_ACTION_ID, true),
+                task(ActionDependencies.INDEXING_ACTION_ID, false), task(ActionDependencies.ENCRYPTION_ACTION_ID, false)));
+
+        assertEquals(Arrays.asList(ActionDependencies.THUMBNAIL_ACTION_ID, ActionDependencies.ENCRYPTION_ACTION_ID), executed);
+    }
+
+    @Test
+    public void testConfiguredConstraintOnlyDefinesOrder() throws Exception {
+        ActionScheduler scheduler = new ActionScheduler(1, new ActionDependencies(Collections.singletonMap(
+                ActionDependencies.INDEXING_ACTION_ID, ActionDependencies.THUMBNAIL_ACTION_ID)));
+        scheduler.execute(1L, Arrays.asList(task(ActionDependencies.THUMBNAIL_ACTION_ID, true),
+                task(ActionDependencies.INDEXING_ACTION_ID, false)));
+
+        assertEquals(Arrays.asList(ActionDependencies.THUMBNAIL_ACTION_ID, ActionDependencies.INDEXING_ACTION_ID), executed);
+    }
+
+    private ActionTask task(final String actionId, final boolean fail) {
+        return new ActionTask(actionId) {
+            @Override
+            public void execute() throws ActionException {
+                executed.add(actionId);
+                if (fail) {
+                    throw new ActionException("Failed to run " + actionId);
+                }
+            }
+        };
+    }
+}
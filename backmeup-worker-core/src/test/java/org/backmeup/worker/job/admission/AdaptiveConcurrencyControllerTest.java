@@ -0,0 +1,75 @@
+package org.backmeup.worker.job.admission;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.backmeup.worker.job.admission.AdaptiveConcurrencyController.Sample;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdaptiveConcurrencyControllerTest {
+    private ThreadPoolExecutor executor;
+    private JobAdmissionController admissionController;
+    private AdaptiveConcurrencyController controller;
+
+    @Before
+    public void setUp() {
+        executor = new ThreadPoolExecutor(4, 4, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        admissionController = new JobAdmissionController(4 + 2);
+        controller = new AdaptiveConcurrencyController(executor, admissionController, 2, 2, 6, 0.85, 0.9);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testIncreaseWhenSaturated() {
+        assertEquals(5, controller.adjust(new Sample(0.5, 0.5, 0.5, 1.0, true)));
+
+        assertEquals(5, executor.getCorePoolSize());
+        assertEquals(5, executor.getMaximumPoolSize());
+        assertEquals(5 + 2, admissionController.getMaxSlots());
+    }
+
+    @Test
+    public void testKeepWhenNotSaturated() {
+        assertEquals(4, controller.adjust(new Sample(0.5, 0.5, 0.5, 1.0, false)));
+    }
+
+    @Test
+    public void testDecreaseWhenOverloaded() {
+        assertEquals(3, controller.adjust(new Sample(0.95, 0.5, 0.5, 1.0, true)));
+        assertEquals(2, controller.adjust(new Sample(0.5, 0.95, 0.5, 1.0, true)));
+        // Never below the lower bound
+        assertEquals(2, controller.adjust(new Sample(0.5, 0.5, 0.01, 1.0, true)));
+
+        assertEquals(2, executor.getCorePoolSize());
+        assertEquals(2 + 2, admissionController.getMaxSlots());
+    }
+
+    @Test
+    public void testRevertIncreaseWhenThroughputDrops() {
+        assertEquals(5, controller.adjust(new Sample(0.5, 0.5, 0.5, 1.0, true)));
+        assertEquals(4, controller.adjust(new Sample(0.5, 0.5, 0.5, 0.5, true)));
+    }
+
+    @Test
+    public void testUpperBound() {
+        for (int i = 0; i < 5; i++) {
+            controller.adjust(new Sample(0.5, 0.5, 0.5, 1.0, true));
+        }
+        assertEquals(6, controller.getLimit());
+        assertEquals(6, executor.getMaximumPoolSize());
+    }
+
+    @Test
+    public void testUnavailableMetricsDoNotCountAsOverload() {
+        assertEquals(5, controller.adjust(new Sample(-1, -1, -1, 1.0, true)));
+    }
+}
@@ -0,0 +1,85 @@
+package org.backmeup.worker.job.admission;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class JobDeduplicationIndexTest {
+    private static final long TTL = TimeUnit.HOURS.toMillis(1);
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(Files.createTempDirectory("dedup").toFile(), "completed-jobs");
+    }
+
+    @Test
+    public void testJobInFlightIsDuplicate() {
+        JobDeduplicationIndex index = new JobDeduplicationIndex(null, TTL);
+
+        assertTrue(index.register(1L));
+        assertFalse(index.register(1L));
+        assertTrue(index.register(2L));
+    }
+
+    @Test
+    public void testCompletedJobIsDuplicate() {
+        JobDeduplicationIndex index = new JobDeduplicationIndex(null, TTL);
+
+        index.register(1L);
+        index.jobFinished(1L, true);
+
+        assertFalse(index.register(1L));
+        assertEquals(0, index.getNoOfInFlightJobs());
+    }
+
+    @Test
+    public void testFailedOrAbortedJobMayRunAgain() {
+        JobDeduplicationIndex index = new JobDeduplicationIndex(null, TTL);
+
+        index.register(1L);
+        index.jobFinished(1L, false);
+        index.register(2L);
+        index.jobAborted(2L);
+
+        assertTrue(index.register(1L));
+        assertTrue(index.register(2L));
+    }
+
+    @Test
+    public void testCompletedJobsSurviveRestart() {
+        JobDeduplicationIndex index = new JobDeduplicationIndex(file, TTL);
+        index.register(1L);
+        index.jobFinished(1L, true);
+        index.close();
+
+        JobDeduplicationIndex restarted = new JobDeduplicationIndex(file, TTL);
+
+        assertEquals(1, restarted.getNoOfCompletedJobs());
+        assertFalse(restarted.register(1L));
+    }
+
+    @Test
+    public void testExpiredAndInvalidEntriesAreDropped() throws IOException {
+        long now = System.currentTimeMillis();
+        Files.write(file.toPath(), Arrays.asList("1;" + (now - 2 * TTL), "2;" + now, "3;"), StandardCharsets.UTF_8);
+
+        JobDeduplicationIndex index = new JobDeduplicationIndex(file, TTL);
+
+        assertEquals(1, index.getNoOfCompletedJobs());
+        assertTrue(index.register(1L));
+        assertFalse(index.register(2L));
+        assertEquals(Arrays.asList("2;" + now), Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+    }
+}
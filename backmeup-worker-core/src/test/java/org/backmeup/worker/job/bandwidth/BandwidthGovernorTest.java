@@ -0,0 +1,121 @@
+package org.backmeup.worker.job.bandwidth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class BandwidthGovernorTest {
+
+    @Test
+    public void testWeightsDivideTheGlobalRate() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor("test", new BandwidthSchedule(100000),
+                0, Collections.singletonMap("org.backmeup.heavy", 2));
+        BandwidthShare heavy = governor.openShare(1L, "org.backmeup.heavy");
+        BandwidthShare light = governor.openShare(2L, "org.backmeup.light");
+        assertEquals(2, heavy.getWeight());
+        assertEquals(1, light.getWeight());
+
+        final CountDownLatch stop = new CountDownLatch(1);
+        final AtomicLong measuring = new AtomicLong(0);
+        Transfer heavyTransfer = new Transfer(heavy, stop, measuring);
+        Transfer lightTransfer = new Transfer(light, stop, measuring);
+        heavyTransfer.start();
+        lightTransfer.start();
+
+        // The burst of the bucket is served before both are throttled
+        Thread.sleep(1500);
+        measuring.set(1);
+        Thread.sleep(1500);
+        stop.countDown();
+        heavyTransfer.join();
+        lightTransfer.join();
+
+        double ratio = (double) heavyTransfer.measured / lightTransfer.measured;
+        assertTrue("Ratio " + ratio, ratio > 1.5 && ratio < 2.5);
+        heavy.close();
+        light.close();
+    }
+
+    @Test
+    public void testSingleShareGetsTheWholeRate() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor("test", new BandwidthSchedule(100000),
+                0, Collections.<String, Integer> emptyMap());
+        BandwidthShare share = governor.openShare(1L, "org.backmeup.light");
+
+        // The burst, then one second at the full rate
+        long start = System.nanoTime();
+        for (int i = 0; i < 40; i++) {
+            share.acquire(5000);
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Elapsed " + elapsed, elapsed >= 900 && elapsed < 1500);
+        share.close();
+    }
+
+    @Test
+    public void testJobRateLimitsShare() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor("test", new BandwidthSchedule(0),
+                10000, Collections.<String, Integer> emptyMap());
+        BandwidthShare share = governor.openShare(1L, null);
+
+        long start = System.nanoTime();
+        share.acquire(10000);
+        share.acquire(5000);
+        share.acquire(1);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Elapsed " + elapsed, elapsed >= 450);
+        assertEquals(15001, share.getBytes());
+        share.close();
+    }
+
+    @Test
+    public void testUnlimitedRateDoesNotWait() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor("test", new BandwidthSchedule(0),
+                0, Collections.<String, Integer> emptyMap());
+        BandwidthShare share = governor.openShare(1L, null);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            share.acquire(1024 * 1024);
+        }
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+        assertEquals(0, governor.getRate());
+        share.close();
+    }
+
+    private static class Transfer extends Thread {
+        private final BandwidthShare share;
+        private final CountDownLatch stop;
+        private final AtomicLong measuring;
+        private volatile long measured;
+
+        Transfer(BandwidthShare share, CountDownLatch stop, AtomicLong measuring) {
+            this.share = share;
+            this.stop = stop;
+            this.measuring = measuring;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (this.stop.getCount() > 0) {
+                    this.share.acquire(1000);
+                    if (this.measuring.get() > 0) {
+                        this.measured += 1000;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
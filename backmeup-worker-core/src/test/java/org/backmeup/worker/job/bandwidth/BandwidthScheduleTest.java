@@ -0,0 +1,58 @@
+package org.backmeup.worker.job.bandwidth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BandwidthScheduleTest {
+
+    @Test
+    public void testDefaultRateOutsideOfIntervals() {
+        BandwidthSchedule schedule = BandwidthSchedule.parse(1000, "08:00-18:00=512");
+
+        assertEquals(512 * 1024, schedule.getRate(8 * 60));
+        assertEquals(512 * 1024, schedule.getRate(18 * 60 - 1));
+        assertEquals(1000, schedule.getRate(18 * 60));
+        assertEquals(1000, schedule.getRate(7 * 60 + 59));
+    }
+
+    @Test
+    public void testIntervalWrapsAroundMidnight() {
+        BandwidthSchedule schedule = BandwidthSchedule.parse(0, "22:00-06:00=100");
+
+        assertEquals(100 * 1024, schedule.getRate(23 * 60));
+        assertEquals(100 * 1024, schedule.getRate(0));
+        assertEquals(0, schedule.getRate(6 * 60));
+    }
+
+    @Test
+    public void testFirstMatchingIntervalApplies() {
+        BandwidthSchedule schedule = BandwidthSchedule.parse(0, "00:00-24:00=1, 12:00-13:00=2");
+
+        assertEquals(1024, schedule.getRate(12 * 60 + 30));
+    }
+
+    @Test
+    public void testEmptySchedule() {
+        assertTrue(BandwidthSchedule.parse(0, null).isEmpty());
+        assertTrue(BandwidthSchedule.parse(0, " ").isEmpty());
+        assertFalse(BandwidthSchedule.parse(1, null).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedEntry() {
+        BandwidthSchedule.parse(0, "08:00=512");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMinutes() {
+        BandwidthSchedule.parse(0, "08:75-18:00=512");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeRate() {
+        BandwidthSchedule.parse(0, "08:00-18:00=-1");
+    }
+}
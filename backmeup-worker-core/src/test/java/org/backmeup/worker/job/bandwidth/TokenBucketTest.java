@@ -0,0 +1,70 @@
+package org.backmeup.worker.job.bandwidth;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testReservationsWithinRateDoNotWait() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+
+        assertEquals(0, bucket.reserve(500, 0));
+        assertEquals(0, bucket.reserve(500, 0));
+        assertEquals(0, bucket.nanosUntilAvailable(SECOND));
+    }
+
+    @Test
+    public void testDebtIsPaidBeforeNextTransfer() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+
+        // A large transfer may exceed the bucket, the next one waits
+        assertEquals(0, bucket.reserve(3000, 0));
+        assertEquals(2001 * SECOND / 1000, bucket.nanosUntilAvailable(0));
+        assertEquals(SECOND, bucket.reserve(100, SECOND));
+        assertEquals(0, bucket.nanosUntilAvailable(3 * SECOND));
+    }
+
+    @Test
+    public void testBucketHoldsOneSecondOfTokens() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+        bucket.reserve(1000, 0);
+
+        // Idle for ten seconds, only one second worth of tokens is refilled
+        assertEquals(0, bucket.reserve(1500, 10 * SECOND));
+        assertEquals(501 * SECOND / 1000, bucket.nanosUntilAvailable(10 * SECOND));
+    }
+
+    @Test
+    public void testRateChangeAppliesToWaiting() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+        bucket.reserve(2000, 0);
+        assertEquals(1001 * SECOND / 1000, bucket.nanosUntilAvailable(0));
+
+        bucket.setRate(2000, 0);
+        assertEquals(2000, bucket.getRate());
+        assertEquals(1001 * SECOND / 2000, bucket.nanosUntilAvailable(0));
+    }
+
+    @Test
+    public void testLowerRateCapsTokens() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+
+        bucket.setRate(100, 0);
+        assertEquals(0, bucket.reserve(100, 0));
+        assertEquals(SECOND / 100, bucket.nanosUntilAvailable(0));
+    }
+
+    @Test
+    public void testZeroRateIsUnlimited() {
+        TokenBucket bucket = new TokenBucket(0, 0);
+
+        assertEquals(0, bucket.reserve(Long.MAX_VALUE / 2, 0));
+        assertEquals(0, bucket.reserve(1, 0));
+        assertEquals(0, bucket.nanosUntilAvailable(0));
+    }
+}
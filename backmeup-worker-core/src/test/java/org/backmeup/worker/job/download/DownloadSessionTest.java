@@ -0,0 +1,221 @@
+package org.backmeup.worker.job.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.backmeup.plugin.api.storage.StorageException;
+import org.backmeup.worker.http.PooledHttpTransport;
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class DownloadSessionTest {
+    private DownloadScheduler scheduler;
+    private PooledHttpTransport transport;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        if (transport != null) {
+            transport.shutdown();
+        }
+        if (server != null) {
+            server.stop(0);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRangedDownloadAssemblesSegments() throws Exception {
+        final byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        final List<String> encodings = new CopyOnWriteArrayList<>();
+        URI uri = startServer(content, encodings);
+
+        transport = new PooledHttpTransport("test", 4, 4, Collections.<String, Integer> emptyMap(), 5000, 5000, 5000, 0,
+                true);
+        scheduler = new DownloadScheduler(4, 3, Collections.<String, Integer> emptyMap(), 2, 1024, transport);
+        DownloadSession session = scheduler.openSession(1L, "org.backmeup.test");
+
+        File target = File.createTempFile("download", ".bin");
+        target.deleteOnExit();
+        final AtomicInteger downloaded = new AtomicInteger();
+        session.submitRanged(uri, content.length, target, new DownloadSession.DownloadedFileHandler() {
+            @Override
+            public void downloaded(File file) {
+                downloaded.incrementAndGet();
+            }
+        });
+        session.await();
+
+        assertEquals(1, downloaded.get());
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        // Ten segments, none of them may be compressed
+        assertEquals(10, encodings.size());
+        for (String encoding : encodings) {
+            assertEquals("identity", encoding);
+        }
+    }
+
+    @Test
+    public void testFailedFetchFailsSession() throws Exception {
+        scheduler = new DownloadScheduler(2, 2, Collections.<String, Integer> emptyMap(), 2, 1024, null);
+        DownloadSession session = scheduler.openSession(1L, "org.backmeup.test");
+
+        session.submit(new TestFetch("a") {
+            @Override
+            public void fetch() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        });
+        try {
+            session.await();
+            fail("Await should have failed");
+        } catch (StorageException e) {
+            // expected
+        }
+        try {
+            session.submit(new TestFetch("a"));
+            fail("Submit should have failed");
+        } catch (StorageException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPermitsAreReleasedWhenWaitingForHostIsInterrupted() throws Exception {
+        scheduler = new DownloadScheduler(4, 2, Collections.<String, Integer> emptyMap(), 1, 1024, null);
+        final DownloadSession session = scheduler.openSession(1L, "org.backmeup.test");
+        executor = Executors.newSingleThreadExecutor();
+
+        // Takes the only connection of host a
+        final CountDownLatch release = new CountDownLatch(1);
+        session.submit(new BlockingFetch("a", release));
+
+        // Takes the second permit of the window and waits for host a
+        Future<Void> waiting = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                session.submit(new TestFetch("a"));
+                return null;
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(waiting.isDone());
+        waiting.cancel(true);
+
+        release.countDown();
+        session.await();
+
+        // Both permits of the window are free again
+        final CountDownLatch releaseAll = new CountDownLatch(1);
+        Future<Void> submitted = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                session.submit(new BlockingFetch("b", releaseAll));
+                session.submit(new BlockingFetch("c", releaseAll));
+                return null;
+            }
+        });
+        try {
+            submitted.get(1, TimeUnit.SECONDS);
+        } finally {
+            releaseAll.countDown();
+        }
+        session.await();
+        assertTrue(submitted.isDone());
+    }
+
+    private URI startServer(final byte[] content, final List<String> encodings) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/object", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                encodings.add(String.valueOf(exchange.getRequestHeaders().getFirst("Accept-Encoding")));
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                int start = 0;
+                int end = content.length - 1;
+                int status = 200;
+                if (range != null) {
+                    String[] bounds = range.substring("bytes=".length()).split("-");
+                    start = Integer.parseInt(bounds[0]);
+                    end = Integer.parseInt(bounds[1]);
+                    status = 206;
+                    exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+                }
+                exchange.sendResponseHeaders(status, end - start + 1);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(content, start, end - start + 1);
+                }
+            }
+        });
+        server.start();
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/object");
+    }
+
+    private static class TestFetch implements ObjectFetch {
+        private final String host;
+
+        TestFetch(String host) {
+            this.host = host;
+        }
+
+        @Override
+        public String getHost() {
+            return this.host;
+        }
+
+        @Override
+        public void fetch() throws IOException, StorageException {
+        }
+    }
+
+    private static class BlockingFetch extends TestFetch {
+        private final CountDownLatch release;
+
+        BlockingFetch(String host, CountDownLatch release) {
+            super(host);
+            this.release = release;
+        }
+
+        @Override
+        public void fetch() throws IOException {
+            try {
+                this.release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.backmeup.worker.job.incremental;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FingerprintIndexTest {
+    private static final byte[] DIGEST = digest(1);
+    private static final byte[] OTHER_DIGEST = digest(2);
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(Files.createTempDirectory("fingerprints").toFile(), "1.idx");
+    }
+
+    @Test
+    public void testContainsOnlyMatchingObjects() throws IOException {
+        try (FingerprintIndex index = new FingerprintIndex(file)) {
+            index.put("/a/b.txt", 100, DIGEST, 0);
+
+            assertTrue(index.contains("/a/b.txt", 100, DIGEST));
+            assertFalse(index.contains("/a/b.txt", 101, DIGEST));
+            assertFalse(index.contains("/a/b.txt", 100, OTHER_DIGEST));
+            assertFalse(index.contains("/a/c.txt", 100, DIGEST));
+        }
+    }
+
+    @Test
+    public void testUpdateReplacesFingerprint() throws IOException {
+        try (FingerprintIndex index = new FingerprintIndex(file)) {
+            index.put("/a/b.txt", 100, DIGEST, 0);
+            index.put("/a/b.txt", 200, OTHER_DIGEST, 1);
+
+            assertEquals(1, index.size());
+            assertTrue(index.contains("/a/b.txt", 200, OTHER_DIGEST));
+            assertFalse(index.contains("/a/b.txt", 100, DIGEST));
+        }
+    }
+
+    @Test
+    public void testGrowAndReopen() throws IOException {
+        try (FingerprintIndex index = new FingerprintIndex(file)) {
+            for (int i = 0; i < 5000; i++) {
+                index.put("/file" + i, i, digest(i), 0);
+            }
+            assertTrue(index.capacity() > 5000);
+        }
+
+        try (FingerprintIndex index = new FingerprintIndex(file)) {
+            assertEquals(5000, index.size());
+            for (int i = 0; i < 5000; i++) {
+                assertTrue(index.contains("/file" + i, i, digest(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testEvictRemovesObjectsNotSeenSince() throws IOException {
+        try (FingerprintIndex index = new FingerprintIndex(file)) {
+            for (int i = 0; i < 500; i++) {
+                index.put("/file" + i, i, digest(i), i % 2 == 0 ? 100 : 200);
+            }
+
+            assertEquals(0, index.evict(100));
+            assertEquals(250, index.evict(150));
+            assertEquals(250, index.size());
+            for (int i = 0; i < 500; i++) {
+                assertEquals(i % 2 != 0, index.contains("/file" + i, i, digest(i)));
+            }
+        }
+
+        try (FingerprintIndex index = new FingerprintIndex(file)) {
+            assertEquals(250, index.size());
+            assertTrue(index.contains("/file1", 1, digest(1)));
+        }
+    }
+
+    @Test
+    public void testInvalidFileIsReplaced() throws IOException {
+        Files.write(file.toPath(), new byte[100]);
+
+        try (FingerprintIndex index = new FingerprintIndex(file)) {
+            assertEquals(0, index.size());
+            index.put("/a", 1, DIGEST, 0);
+            assertTrue(index.contains("/a", 1, DIGEST));
+        }
+    }
+
+    private static byte[] digest(int value) {
+        byte[] digest = new byte[FingerprintIndex.DIGEST_LENGTH];
+        digest[0] = (byte) value;
+        digest[1] = (byte) (value >> 8);
+        return digest;
+    }
+}
@@ -0,0 +1,94 @@
+package org.backmeup.worker.job.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.backmeup.worker.job.stage.JobStage;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JobJournalTest {
+    private File jobDir;
+    private File tmpDir;
+
+    @Before
+    public void setUp() throws IOException {
+        jobDir = Files.createTempDirectory("journal").toFile();
+        tmpDir = new File(jobDir, "BMU_1");
+        assertTrue(tmpDir.mkdir());
+    }
+
+    @Test
+    public void testJournalIsPersisted() {
+        JobJournal journal = JobJournal.open(jobDir);
+        journal.begin(tmpDir.getPath());
+        journal.downloadCompleted(3, 300L);
+
+        JobJournal reopened = JobJournal.open(jobDir);
+        assertEquals(tmpDir.getPath(), reopened.getTmpDir());
+        assertTrue(reopened.isCompleted(JobStage.DOWNLOAD));
+        assertFalse(reopened.isStarted(JobStage.PROCESS));
+        assertEquals(3, reopened.getObjectCount());
+        assertEquals(300L, reopened.getObjectSize());
+    }
+
+    @Test
+    public void testResumeAfterCompletedDownload() {
+        JobJournal journal = JobJournal.open(jobDir);
+        journal.begin(tmpDir.getPath());
+        assertNull(JobJournal.open(jobDir).getResumableTmpDir());
+
+        journal.downloadCompleted(1, 1L);
+        assertEquals(tmpDir.getPath(), JobJournal.open(jobDir).getResumableTmpDir());
+    }
+
+    @Test
+    public void testNoResumeOnceProcessingStarted() {
+        JobJournal journal = JobJournal.open(jobDir);
+        journal.begin(tmpDir.getPath());
+        journal.downloadCompleted(1, 1L);
+        journal.stageStarted(JobStage.PROCESS);
+
+        assertNull(JobJournal.open(jobDir).getResumableTmpDir());
+    }
+
+    @Test
+    public void testResumeAfterCompletedProcessing() {
+        JobJournal journal = JobJournal.open(jobDir);
+        journal.begin(tmpDir.getPath());
+        journal.downloadCompleted(1, 1L);
+        journal.stageStarted(JobStage.PROCESS);
+        journal.processingCompleted(2, 5L);
+
+        JobJournal reopened = JobJournal.open(jobDir);
+        assertEquals(tmpDir.getPath(), reopened.getResumableTmpDir());
+        assertTrue(reopened.isCompleted(JobStage.PROCESS));
+        assertEquals(2, reopened.getObjectCount());
+        assertEquals(5L, reopened.getObjectSize());
+    }
+
+    @Test
+    public void testNoResumeWithoutData() {
+        JobJournal journal = JobJournal.open(jobDir);
+        journal.begin(new File(jobDir, "BMU_2").getPath());
+        journal.downloadCompleted(1, 1L);
+
+        assertNull(JobJournal.open(jobDir).getResumableTmpDir());
+    }
+
+    @Test
+    public void testDelete() {
+        JobJournal journal = JobJournal.open(jobDir);
+        journal.begin(tmpDir.getPath());
+        journal.downloadCompleted(1, 1L);
+        journal.delete();
+
+        assertNull(JobJournal.open(jobDir).getTmpDir());
+    }
+}
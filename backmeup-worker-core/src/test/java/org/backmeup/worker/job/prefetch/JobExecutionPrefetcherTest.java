@@ -0,0 +1,132 @@
+package org.backmeup.worker.job.prefetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.backmeup.model.dto.BackupJobExecutionDTO;
+import org.backmeup.service.client.BackmeupService;
+import org.backmeup.worker.service.FakeBackmeupService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JobExecutionPrefetcherTest {
+    private static final String GET = "getBackupJobExecution";
+
+    private FakeBackmeupService service;
+    private BackupJobExecutionDTO jobExecution;
+    private JobExecutionPrefetcher prefetcher;
+
+    @Before
+    public void setUp() {
+        service = new FakeBackmeupService();
+        jobExecution = new BackupJobExecutionDTO();
+        jobExecution.setId(1L);
+        service.setResult(GET, jobExecution);
+    }
+
+    @After
+    public void tearDown() {
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testExecutionIsFetchedOnce() throws InterruptedException {
+        prefetcher = new JobExecutionPrefetcher(service.getService(), 2);
+        RecordingListener listener = new RecordingListener();
+
+        prefetcher.fetch(1L, listener);
+        assertTrue(listener.notified.await(1, TimeUnit.SECONDS));
+        assertSame(jobExecution, listener.jobExecution);
+        assertEquals(0, prefetcher.getNoOfPendingFetches());
+        assertEquals(1, service.getNoOfCalls(GET));
+    }
+
+    @Test
+    public void testFailedFetchIsNotRepeated() throws InterruptedException {
+        prefetcher = new JobExecutionPrefetcher(service.getService(), 1);
+        service.failNext(GET, new RuntimeException("Service unavailable"));
+        RecordingListener listener = new RecordingListener();
+
+        prefetcher.fetch(1L, listener);
+        assertTrue(listener.notified.await(1, TimeUnit.SECONDS));
+        assertTrue(listener.fetched);
+        assertNull(listener.jobExecution);
+        assertEquals(1, service.getNoOfCalls(GET));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testJobIsNotFetchedTwiceConcurrently() {
+        BlockingService blocking = new BlockingService();
+        prefetcher = new JobExecutionPrefetcher(blocking.getService(), 2);
+
+        prefetcher.fetch(1L, new RecordingListener());
+        prefetcher.fetch(1L, new RecordingListener());
+    }
+
+    @Test
+    public void testShutdownCancelsPendingFetches() throws InterruptedException {
+        BlockingService blocking = new BlockingService();
+        prefetcher = new JobExecutionPrefetcher(blocking.getService(), 1);
+        RecordingListener running = new RecordingListener();
+        RecordingListener queued = new RecordingListener();
+
+        prefetcher.fetch(1L, running);
+        prefetcher.fetch(2L, queued);
+        assertTrue(blocking.started.await(1, TimeUnit.SECONDS));
+        prefetcher.shutdown();
+
+        // Notified before shutdown returns
+        assertEquals(0, running.notified.getCount());
+        assertEquals(0, queued.notified.getCount());
+        assertTrue(running.cancelled);
+        assertTrue(queued.cancelled);
+        assertEquals(0, prefetcher.getNoOfPendingFetches());
+    }
+
+    private static class RecordingListener implements JobExecutionPrefetcher.FetchListener {
+        private final CountDownLatch notified = new CountDownLatch(1);
+        private volatile boolean fetched;
+        private volatile boolean cancelled;
+        private volatile BackupJobExecutionDTO jobExecution;
+
+        @Override
+        public void fetched(Long jobId, BackupJobExecutionDTO jobExecution) {
+            this.jobExecution = jobExecution;
+            this.fetched = true;
+            this.notified.countDown();
+        }
+
+        @Override
+        public void cancelled(Long jobId) {
+            this.cancelled = true;
+            this.notified.countDown();
+        }
+    }
+
+    private static class BlockingService implements InvocationHandler {
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        BackmeupService getService() {
+            return (BackmeupService) Proxy.newProxyInstance(BackmeupService.class.getClassLoader(),
+                    new Class<?>[] { BackmeupService.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws InterruptedException {
+            this.started.countDown();
+            Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            return null;
+        }
+    }
+}
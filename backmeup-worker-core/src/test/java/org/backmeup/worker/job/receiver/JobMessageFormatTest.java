@@ -0,0 +1,65 @@
+package org.backmeup.worker.job.receiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class JobMessageFormatTest {
+    @Test
+    public void testSingleJobFromLegacyProducer() throws Exception {
+        // Old producers write the job id with a ByteBuffer
+        byte[] body = ByteBuffer.allocate(8).putLong(4711L).array();
+
+        assertEquals(1, JobMessageFormat.getJobCount(body));
+        assertEquals(4711L, JobMessageFormat.getJobId(body, 0));
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        long[] jobIds = { 1L, -2L, Long.MAX_VALUE, 123456789012L };
+        byte[] body = JobMessageFormat.encode(jobIds);
+
+        assertEquals(jobIds.length, JobMessageFormat.getJobCount(body));
+        for (int i = 0; i < jobIds.length; i++) {
+            assertEquals(jobIds[i], JobMessageFormat.getJobId(body, i));
+        }
+    }
+
+    @Test
+    public void testEncodeSingleJobInLegacyFormat() throws Exception {
+        byte[] body = JobMessageFormat.encode(42L);
+
+        assertEquals(8, body.length);
+        assertEquals(42L, ByteBuffer.wrap(body).getLong());
+    }
+
+    @Test
+    public void testEventReadsJobsFromBody() throws Exception {
+        byte[] body = JobMessageFormat.encode(7L, 8L, 9L);
+        JobReceivedEvent jre = new JobReceivedEvent(this, body, JobMessageFormat.getJobCount(body), null, 1);
+
+        assertEquals(Long.valueOf(7L), jre.getJobId());
+        assertEquals(9L, jre.getJobId(2));
+        assertEquals(false, jre.settleJob(7L, true));
+        assertEquals(false, jre.settleJob(8L, false));
+        assertEquals(true, jre.settleJob(9L, true));
+        assertArrayEquals(new long[] { 8L }, jre.getUnprocessedJobIds());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedBatch() throws Exception {
+        byte[] body = JobMessageFormat.encode(1L, 2L);
+        byte[] truncated = new byte[body.length - 1];
+        System.arraycopy(body, 0, truncated, 0, truncated.length);
+
+        JobMessageFormat.getJobCount(truncated);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFormat() throws Exception {
+        JobMessageFormat.getJobCount(new byte[12]);
+    }
+}
@@ -0,0 +1,114 @@
+package org.backmeup.worker.job.receiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class JobReceivedEventTest {
+    private final RecordingReceiver receiver = new RecordingReceiver();
+
+    @Test
+    public void testProcessedBatchIsAcknowledged() {
+        JobReceivedEvent jre = batch(1L, 2L, 3L);
+
+        assertFalse(jre.settleJob(1L, true));
+        assertFalse(jre.settleJob(2L, true));
+        assertNull(receiver.settlement);
+        assertTrue(jre.settleJob(3L, true));
+
+        assertEquals("ack", receiver.settlement);
+    }
+
+    @Test
+    public void testUnprocessedBatchIsRequeued() {
+        JobReceivedEvent jre = batch(1L, 2L);
+
+        jre.settleJob(1L, false);
+        jre.settleJob(2L, false);
+
+        assertEquals("reject requeue=true", receiver.settlement);
+    }
+
+    @Test
+    public void testOnlyUnprocessedJobsOfPartlyProcessedBatchAreRequeued() {
+        JobReceivedEvent jre = batch(1L, 2L, 3L, 4L);
+
+        // The first two jobs completed, the others were returned while draining
+        jre.settleJob(1L, true);
+        jre.settleJob(3L, false);
+        jre.settleJob(2L, true);
+        jre.settleJob(4L, false);
+
+        assertEquals("requeue", receiver.settlement);
+        assertArrayEquals(new long[] { 3L, 4L }, receiver.requeuedJobs);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testJobsCannotBeSettledTwice() {
+        JobReceivedEvent jre = batch(1L);
+
+        jre.settleJob(1L, true);
+        jre.settleJob(1L, true);
+    }
+
+    private JobReceivedEvent batch(long... jobIds) {
+        byte[] body = JobMessageFormat.encode(jobIds);
+        return new JobReceivedEvent(this, body, JobMessageFormat.getJobCount(body), receiver, 1);
+    }
+
+    private static class RecordingReceiver extends AbstractJobReceiver {
+        private String settlement;
+        private long[] requeuedJobs;
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void pause() {
+        }
+
+        @Override
+        public boolean isRunning() {
+            return false;
+        }
+
+        @Override
+        public void acknowledgeJob(JobReceivedEvent jre) {
+            record("ack");
+        }
+
+        @Override
+        public void rejectJob(JobReceivedEvent jre, boolean requeue) {
+            record("reject requeue=" + requeue);
+        }
+
+        @Override
+        public void requeueJobs(JobReceivedEvent jre, long[] jobIds) {
+            record("requeue");
+            this.requeuedJobs = jobIds;
+        }
+
+        private void record(String settlement) {
+            if (this.settlement != null) {
+                throw new IllegalStateException("Message settled twice");
+            }
+            this.settlement = settlement;
+        }
+    }
+}
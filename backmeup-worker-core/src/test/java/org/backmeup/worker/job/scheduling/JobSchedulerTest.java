@@ -0,0 +1,49 @@
+package org.backmeup.worker.job.scheduling;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.backmeup.model.dto.BackupJobExecutionDTO;
+import org.backmeup.model.dto.PluginProfileDTO;
+import org.junit.Test;
+
+public class JobSchedulerTest {
+    private static final String PLUGIN = "org.backmeup.facebook";
+
+    private static JobScheduler scheduler(Map<String, String> pluginPriorities) {
+        return new JobScheduler(SchedulingPolicy.FIFO, 1024, 0, new JobSizeEstimator(), pluginPriorities);
+    }
+
+    private static BackupJobExecutionDTO backupJob(String pluginId) {
+        PluginProfileDTO source = new PluginProfileDTO();
+        source.setPluginId(pluginId);
+        BackupJobExecutionDTO backupJob = new BackupJobExecutionDTO();
+        backupJob.setSource(source);
+        return backupJob;
+    }
+
+    @Test
+    public void testPriorityOfPlugin() {
+        JobScheduler scheduler = scheduler(Collections.singletonMap(PLUGIN, " high"));
+
+        assertEquals(JobPriority.HIGH, scheduler.schedule(backupJob(PLUGIN), null).getPriority());
+        assertEquals(JobPriority.NORMAL, scheduler.schedule(backupJob("org.backmeup.dropbox"), null).getPriority());
+        assertEquals(JobPriority.NORMAL, scheduler.schedule(null, null).getPriority());
+    }
+
+    @Test
+    public void testMessagePriorityTakesPrecedence() {
+        JobScheduler scheduler = scheduler(Collections.singletonMap(PLUGIN, "HIGH"));
+
+        assertEquals(JobPriority.LOW, scheduler.schedule(backupJob(PLUGIN), 0).getPriority());
+        assertEquals(JobPriority.NORMAL, scheduler.schedule(backupJob(PLUGIN), 4).getPriority());
+        assertEquals(JobPriority.HIGH, scheduler.schedule(null, 9).getPriority());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPriorityIsRejected() {
+        scheduler(Collections.singletonMap(PLUGIN, "URGENT"));
+    }
+}
@@ -0,0 +1,102 @@
+package org.backmeup.worker.job.scheduling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class JobSchedulingQueueTest {
+    private static final long MB = 1024 * 1024;
+
+    private final JobSizeEstimator estimator = new JobSizeEstimator();
+    private long sequence = 0;
+
+    private Job job(JobPriority priority, long enqueueTime, long size, long agingRate) {
+        long deadline = enqueueTime + size * 1000 / agingRate;
+        return new Job(new JobSchedulingInfo(priority, size, enqueueTime, deadline, sequence++));
+    }
+
+    @Test
+    public void testPriorityFirst() throws Exception {
+        JobSchedulingQueue queue = new JobSchedulingQueue();
+        Job low = job(JobPriority.LOW, 0, 0, MB);
+        Job normal = job(JobPriority.NORMAL, 10, 0, MB);
+        Job high = job(JobPriority.HIGH, 20, 0, MB);
+        queue.add(low);
+        queue.add(normal);
+        queue.add(high);
+
+        assertSame(high, queue.take());
+        assertSame(normal, queue.take());
+        assertSame(low, queue.take());
+    }
+
+    @Test
+    public void testShortestJobFirstWithAging() throws Exception {
+        JobSchedulingQueue queue = new JobSchedulingQueue();
+        // 2 GB job received first, at 1 MB/s it ages for 2048 seconds
+        Job large = job(JobPriority.NORMAL, 0, 2048 * MB, MB);
+        Job smallSoonAfter = job(JobPriority.NORMAL, 1000, MB, MB);
+        Job smallMuchLater = job(JobPriority.NORMAL, 3000 * 1000, MB, MB);
+        queue.add(smallMuchLater);
+        queue.add(large);
+        queue.add(smallSoonAfter);
+
+        assertSame(smallSoonAfter, queue.take());
+        assertSame(large, queue.take());
+        assertSame(smallMuchLater, queue.take());
+    }
+
+    @Test
+    public void testFifoForEqualDeadlines() throws Exception {
+        JobSchedulingQueue queue = new JobSchedulingQueue();
+        Job first = job(JobPriority.NORMAL, 5, 0, MB);
+        Job second = job(JobPriority.NORMAL, 5, 0, MB);
+        queue.add(second);
+        queue.add(first);
+
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+    }
+
+    @Test
+    public void testOtherTasksRunFirst() throws Exception {
+        JobSchedulingQueue queue = new JobSchedulingQueue();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                // Nothing to do
+            }
+        };
+        queue.add(job(JobPriority.HIGH, 0, 0, MB));
+        queue.add(task);
+
+        assertSame(task, queue.poll());
+    }
+
+    @Test
+    public void testSizeEstimator() throws Exception {
+        assertEquals(JobSchedulingInfo.UNKNOWN_SIZE, estimator.estimateSize(1L));
+        estimator.recordRunSize(1L, 42);
+        assertEquals(42, estimator.estimateSize(1L));
+        assertEquals(JobSchedulingInfo.UNKNOWN_SIZE, estimator.estimateSize(null));
+    }
+
+    private static class Job implements Runnable, SchedulableJob {
+        private final JobSchedulingInfo info;
+
+        Job(JobSchedulingInfo info) {
+            this.info = info;
+        }
+
+        @Override
+        public JobSchedulingInfo getSchedulingInfo() {
+            return info;
+        }
+
+        @Override
+        public void run() {
+            // Nothing to do
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.backmeup.worker.job.stage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class StagedJobExecutorTest {
+    private StagedJobExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testStageRunsOnItsPool() throws Exception {
+        executor = new StagedJobExecutor(0, 1, 0);
+
+        String processThread = executor.execute(JobStage.PROCESS, new CurrentThreadName());
+        assertTrue(processThread.startsWith("backmeup-process-"));
+
+        // A stage without threads runs on the calling thread
+        String downloadThread = executor.execute(JobStage.DOWNLOAD, new CurrentThreadName());
+        assertEquals(Thread.currentThread().getName(), downloadThread);
+        assertEquals(0, executor.getPoolSize(JobStage.DOWNLOAD));
+    }
+
+    @Test
+    public void testExceptionOfStageIsPropagated() throws Exception {
+        executor = new StagedJobExecutor(0, 1, 0);
+        final IOException failure = new IOException("failed");
+
+        try {
+            executor.execute(JobStage.PROCESS, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    throw failure;
+                }
+            });
+            fail("Exception of the stage expected");
+        } catch (IOException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void testPoolLimitsJobsInStage() throws Exception {
+        executor = new StagedJobExecutor(0, 2, 0);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(6);
+
+        for (int i = 0; i < 6; i++) {
+            Thread job = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        executor.execute(JobStage.PROCESS, new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                int now = running.incrementAndGet();
+                                synchronized (maxRunning) {
+                                    maxRunning.set(Math.max(maxRunning.get(), now));
+                                }
+                                Thread.sleep(20);
+                                running.decrementAndGet();
+                                return null;
+                            }
+                        });
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            job.start();
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+    }
+
+    private static class CurrentThreadName implements Callable<String> {
+        @Override
+        public String call() {
+            return Thread.currentThread().getName();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.backmeup.worker.job.status;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.backmeup.model.constants.JobExecutionStatus;
+import org.backmeup.model.dto.BackupJobExecutionDTO;
+import org.backmeup.worker.service.FakeBackmeupService;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JobStatusUpdaterTest {
+    private static final String UPDATE = "updateBackupJobExecution";
+
+    private FakeBackmeupService service;
+
+    @Before
+    public void setUp() {
+        service = new FakeBackmeupService();
+    }
+
+    @Test
+    public void testUpdatesOfAJobAreCoalesced() {
+        JobStatusUpdater updater = new JobStatusUpdater(service.getService(), 60000, 0, 10);
+
+        updater.submit(createJobExecution(1L, JobExecutionStatus.RUNNING));
+        updater.submit(createJobExecution(2L, JobExecutionStatus.RUNNING));
+        updater.submit(createJobExecution(1L, JobExecutionStatus.SUCCESSFUL));
+        assertEquals(2, updater.getNoOfPendingUpdates());
+
+        updater.shutdown();
+
+        assertEquals(2, service.getNoOfCalls(UPDATE));
+        assertEquals(JobExecutionStatus.SUCCESSFUL, getSentStatus(1L));
+        assertEquals(JobExecutionStatus.RUNNING, getSentStatus(2L));
+        assertEquals(0, updater.getNoOfPendingUpdates());
+    }
+
+    @Test
+    public void testSnapshotIsSent() {
+        JobStatusUpdater updater = new JobStatusUpdater(service.getService(), 60000, 0, 10);
+        BackupJobExecutionDTO jobExecution = createJobExecution(1L, JobExecutionStatus.RUNNING);
+
+        updater.submit(jobExecution);
+        jobExecution.setStatus(JobExecutionStatus.ERROR);
+        updater.shutdown();
+
+        assertEquals(JobExecutionStatus.RUNNING, getSentStatus(1L));
+    }
+
+    @Test
+    public void testFailedUpdateIsRetried() throws Exception {
+        JobStatusUpdater updater = new JobStatusUpdater(service.getService(), 10, 3, 10);
+        service.failNext(UPDATE, new RuntimeException("Service unavailable"));
+        service.failNext(UPDATE, new RuntimeException("Service unavailable"));
+
+        updater.start();
+        updater.submit(createJobExecution(1L, JobExecutionStatus.RUNNING));
+        for (int i = 0; i < 100 && updater.getNoOfPendingUpdates() > 0; i++) {
+            Thread.sleep(10);
+        }
+        updater.shutdown();
+
+        assertEquals(3, service.getNoOfCalls(UPDATE));
+        assertEquals(0, updater.getNoOfPendingUpdates());
+    }
+
+    @Test
+    public void testFailedUpdateIsHandedToHandler() {
+        JobStatusUpdater updater = new JobStatusUpdater(service.getService(), 60000, 0, 10);
+        RecordingHandler handler = new RecordingHandler();
+        updater.setFailedUpdateHandler(handler);
+        service.failAlways(UPDATE, new RuntimeException("Service unavailable"));
+
+        updater.submit(createJobExecution(1L, JobExecutionStatus.RUNNING));
+        updater.shutdown();
+
+        assertEquals(1, service.getNoOfCalls(UPDATE));
+        assertEquals(1, handler.updates.size());
+        assertEquals(JobExecutionStatus.RUNNING, handler.updates.get(0).getStatus());
+    }
+
+    @Test
+    public void testLaterUpdatesFollowHandedOverUpdates() throws Exception {
+        JobStatusUpdater updater = new JobStatusUpdater(service.getService(), 10, 0, 10);
+        RecordingHandler handler = new RecordingHandler();
+        updater.setFailedUpdateHandler(handler);
+        service.failNext(UPDATE, new RuntimeException("Service unavailable"));
+
+        updater.start();
+        updater.submit(createJobExecution(1L, JobExecutionStatus.RUNNING));
+        for (int i = 0; i < 100 && handler.updates.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        // The service is back, but the handler still holds an update of job 1
+        updater.submit(createJobExecution(1L, JobExecutionStatus.SUCCESSFUL));
+        updater.submit(createJobExecution(2L, JobExecutionStatus.SUCCESSFUL));
+        updater.shutdown();
+
+        assertEquals(2, service.getNoOfCalls(UPDATE));
+        assertEquals(JobExecutionStatus.SUCCESSFUL, getSentStatus(2L));
+        assertEquals(2, handler.updates.size());
+        assertEquals(JobExecutionStatus.SUCCESSFUL, handler.updates.get(1).getStatus());
+    }
+
+    private JobExecutionStatus getSentStatus(Long jobId) {
+        JobExecutionStatus status = null;
+        for (Object[] args : service.getCalls(UPDATE)) {
+            BackupJobExecutionDTO sent = (BackupJobExecutionDTO) args[0];
+            if (jobId.equals(sent.getId())) {
+                status = sent.getStatus();
+            }
+        }
+        return status;
+    }
+
+    private static BackupJobExecutionDTO createJobExecution(Long id, JobExecutionStatus status) {
+        BackupJobExecutionDTO jobExecution = new BackupJobExecutionDTO();
+        jobExecution.setId(id);
+        jobExecution.setStatus(status);
+        return jobExecution;
+    }
+
+    private static class RecordingHandler implements JobStatusUpdater.FailedUpdateHandler {
+        private final List<BackupJobExecutionDTO> updates = new CopyOnWriteArrayList<>();
+
+        @Override
+        public synchronized void updateFailed(BackupJobExecutionDTO jobExecution) {
+            this.updates.add(jobExecution);
+        }
+
+        @Override
+        public synchronized boolean hasPendingUpdates(Long jobId) {
+            for (BackupJobExecutionDTO update : this.updates) {
+                if (jobId.equals(update.getId())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.backmeup.worker.job.threadpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PluginBulkheadTest {
+    private final List<Runnable> executed = new ArrayList<>();
+    private final List<Runnable> rejected = new ArrayList<>();
+    private PluginBulkhead bulkhead;
+
+    @Before
+    public void setUp() {
+        Map<String, Integer> sourceLimits = new HashMap<>();
+        sourceLimits.put("slow-source", 1);
+        Map<String, Integer> sinkLimits = Collections.singletonMap("slow-sink", 2);
+
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.add(command);
+            }
+        };
+        bulkhead = new PluginBulkhead(executor, sourceLimits, sinkLimits, new PluginBulkhead.RejectionListener() {
+            @Override
+            public void jobRejected(Runnable job) {
+                rejected.add(job);
+            }
+        });
+    }
+
+    @Test
+    public void testSourceLimit() throws Exception {
+        Job first = new Job("slow-source", "sink");
+        Job second = new Job("slow-source", "sink");
+        Job other = new Job("fast-source", "sink");
+
+        bulkhead.execute(first);
+        bulkhead.execute(second);
+        bulkhead.execute(other);
+
+        // The second job of the slow source waits without taking a thread
+        assertEquals(2, executed.size());
+        assertSame(other, executed.get(1));
+        assertEquals(1, bulkhead.getNoOfWaitingJobs());
+
+        bulkhead.jobFinished(first);
+        assertEquals(3, executed.size());
+        assertSame(second, executed.get(2));
+        assertEquals(0, bulkhead.getNoOfWaitingJobs());
+    }
+
+    @Test
+    public void testSinkLimit() throws Exception {
+        Job j1 = new Job("a", "slow-sink");
+        Job j2 = new Job("b", "slow-sink");
+        Job j3 = new Job("c", "slow-sink");
+        Job j4 = new Job("d", "slow-sink");
+
+        bulkhead.execute(j1);
+        bulkhead.execute(j2);
+        bulkhead.execute(j3);
+        bulkhead.execute(j4);
+        assertEquals(2, executed.size());
+
+        // Waiting jobs are released in the order they were received
+        bulkhead.jobFinished(j2);
+        assertEquals(3, executed.size());
+        assertSame(j3, executed.get(2));
+
+        assertEquals(1, bulkhead.drainWaitingJobs().size());
+        bulkhead.jobFinished(j1);
+        assertEquals(3, executed.size());
+    }
+
+    @Test
+    public void testJobWaitingForBothPlugins() throws Exception {
+        Job sourceBusy = new Job("slow-source", "sink");
+        Job sink1 = new Job("a", "slow-sink");
+        Job sink2 = new Job("b", "slow-sink");
+        Job both = new Job("slow-source", "slow-sink");
+
+        bulkhead.execute(sourceBusy);
+        bulkhead.execute(sink1);
+        bulkhead.execute(sink2);
+        bulkhead.execute(both);
+        assertEquals(3, executed.size());
+
+        // The source is free, but the sink is still at its limit
+        bulkhead.jobFinished(sourceBusy);
+        assertEquals(3, executed.size());
+
+        bulkhead.jobFinished(sink1);
+        assertEquals(4, executed.size());
+        assertSame(both, executed.get(3));
+    }
+
+    @Test
+    public void testWaitingJobsAreBounded() throws Exception {
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.add(command);
+            }
+        };
+        PluginBulkhead bounded = new PluginBulkhead(executor, Collections.singletonMap("slow-source", 1),
+                Collections.<String, Integer> emptyMap(), 1, null, null);
+
+        Job running = new Job("slow-source", "sink");
+        bounded.execute(running);
+        bounded.execute(new Job("slow-source", "sink"));
+        try {
+            bounded.execute(new Job("slow-source", "sink"));
+            fail("Job beyond the bound should be rejected");
+        } catch (RejectedExecutionException e) {
+            // Expected, the job goes back to the queue
+        }
+        assertEquals(1, bounded.getNoOfWaitingJobs());
+
+        // Jobs of other plugins are not affected
+        bounded.execute(new Job("fast-source", "sink"));
+        assertEquals(2, executed.size());
+    }
+
+    @Test
+    public void testWaitingJobsGiveUpTheirSlot() throws Exception {
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.add(command);
+            }
+        };
+        Slots slots = new Slots(2);
+        PluginBulkhead bounded = new PluginBulkhead(executor, Collections.singletonMap("slow-source", 1),
+                Collections.<String, Integer> emptyMap(), 1, slots, null);
+
+        Job running = new Job("slow-source", "sink");
+        Job waiting = new Job("slow-source", "sink");
+        assertTrue(slots.tryAcquire());
+        bounded.execute(running);
+        assertTrue(slots.tryAcquire());
+        bounded.execute(waiting);
+        assertEquals(1, slots.free);
+
+        // The overflowing job keeps its slot, the caller returns the job
+        assertTrue(slots.tryAcquire());
+        try {
+            bounded.execute(new Job("slow-source", "sink"));
+            fail("Job beyond the bound should be rejected");
+        } catch (RejectedExecutionException e) {
+            slots.release();
+        }
+        assertEquals(1, slots.free);
+
+        // The slot of the waiting job is used by a job of another plugin
+        assertTrue(slots.tryAcquire());
+        Job other = new Job("fast-source", "sink");
+        bounded.execute(other);
+        assertEquals(0, slots.free);
+
+        // The source is free, but the waiting job has no slot yet
+        bounded.jobFinished(running);
+        slots.release();
+        assertEquals(2, executed.size());
+        bounded.slotReleased();
+        assertEquals(3, executed.size());
+        assertSame(waiting, executed.get(2));
+        assertEquals(0, slots.free);
+        assertEquals(0, bounded.getNoOfWaitingJobs());
+    }
+
+    @Test
+    public void testUnlimitedJobs() throws Exception {
+        Runnable task = new Job(null, null);
+        for (int i = 0; i < 10; i++) {
+            bulkhead.execute(task);
+        }
+        assertEquals(10, executed.size());
+        assertEquals(0, rejected.size());
+    }
+
+    private static class Slots implements PluginBulkhead.JobSlots {
+        private int free;
+
+        Slots(int free) {
+            this.free = free;
+        }
+
+        @Override
+        public boolean tryAcquire() {
+            if (free == 0) {
+                return false;
+            }
+            free--;
+            return true;
+        }
+
+        @Override
+        public void release() {
+            free++;
+        }
+    }
+
+    private static class Job implements PluginJob {
+        private final String source;
+        private final String sink;
+
+        Job(String source, String sink) {
+            this.source = source;
+            this.sink = sink;
+        }
+
+        @Override
+        public String getSourcePluginId() {
+            return source;
+        }
+
+        @Override
+        public String getSinkPluginId() {
+            return sink;
+        }
+
+        @Override
+        public void run() {
+            // Nothing to do
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.backmeup.worker.job.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.backmeup.plugin.api.Progressable;
+import org.backmeup.plugin.api.storage.DataObject;
+import org.backmeup.plugin.api.storage.StorageException;
+import org.junit.After;
+import org.junit.Test;
+
+public class ParallelUploadEngineTest {
+    private static final Progressable PROGRESSOR = new Progressable() {
+        @Override
+        public void progress(String message) {
+        }
+    };
+
+    private ParallelUploadEngine engine;
+
+    @After
+    public void tearDown() {
+        if (engine != null) {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedPartIsRetriedWithBackoff() throws Exception {
+        engine = new ParallelUploadEngine(2, 2, 1, 2, 20);
+        final Map<Integer, AtomicInteger> attempts = new ConcurrentHashMap<>();
+
+        long start = System.currentTimeMillis();
+        engine.uploadParts(createParts(3).iterator(), 0, new PartUploader() {
+            @Override
+            public void upload(UploadPart part) throws IOException {
+                attempts.putIfAbsent(part.getIndex(), new AtomicInteger());
+                if (attempts.get(part.getIndex()).incrementAndGet() <= 2 && part.getIndex() == 1) {
+                    throw new IOException("Connection reset");
+                }
+            }
+        }, PROGRESSOR);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(1, attempts.get(0).get());
+        assertEquals(3, attempts.get(1).get());
+        assertEquals(1, attempts.get(2).get());
+        // Retries after 20 and 40 ms
+        assertTrue(elapsed >= 60);
+    }
+
+    @Test
+    public void testRetryDelayIsCapped() {
+        engine = new ParallelUploadEngine(1, 1, 1, 20, 1000);
+
+        assertEquals(1000, engine.getRetryDelay(0));
+        assertEquals(4000, engine.getRetryDelay(2));
+        assertEquals(ParallelUploadEngine.MAX_RETRY_DELAY_MILLIS, engine.getRetryDelay(6));
+        assertEquals(ParallelUploadEngine.MAX_RETRY_DELAY_MILLIS, engine.getRetryDelay(19));
+    }
+
+    @Test
+    public void testRetryDoesNotBlockThread() throws Exception {
+        // A single thread uploads the other parts while part 0 waits
+        engine = new ParallelUploadEngine(1, 3, 1, 1, 200);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+
+        engine.uploadParts(createParts(3).iterator(), 0, new PartUploader() {
+            @Override
+            public void upload(UploadPart part) throws IOException {
+                order.add(part.getIndex());
+                if (part.getIndex() == 0 && order.size() == 1) {
+                    throw new IOException("Connection reset");
+                }
+            }
+        }, PROGRESSOR);
+
+        assertEquals(Arrays.asList(0, 1, 2, 0), order);
+    }
+
+    @Test
+    public void testUploadFailsWhenRetriesAreExhausted() throws Exception {
+        engine = new ParallelUploadEngine(1, 1, 1, 1, 1);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            engine.uploadParts(createParts(1).iterator(), 0, new PartUploader() {
+                @Override
+                public void upload(UploadPart part) throws IOException {
+                    attempts.incrementAndGet();
+                    throw new IOException("Connection reset");
+                }
+            }, PROGRESSOR);
+            fail("Upload should have failed");
+        } catch (StorageException e) {
+            // expected
+        }
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void testFailedPartStopsFurtherParts() throws Exception {
+        engine = new ParallelUploadEngine(1, 1, 1, 0, 1);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            engine.uploadParts(createParts(10).iterator(), 0, new PartUploader() {
+                @Override
+                public void upload(UploadPart part) throws StorageException {
+                    attempts.incrementAndGet();
+                    if (part.getIndex() == 0) {
+                        throw new StorageException("Quota exceeded");
+                    }
+                }
+            }, PROGRESSOR);
+            fail("Upload should have failed");
+        } catch (StorageException e) {
+            // expected
+        }
+        // The part taken while the first one failed may still be uploaded
+        assertTrue(attempts.get() <= 2);
+    }
+
+    @Test
+    public void testWindowLimitsPartsInFlight() throws Exception {
+        engine = new ParallelUploadEngine(4, 2, 1, 0, 1);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger uploaded = new AtomicInteger();
+
+        engine.uploadParts(createParts(10).iterator(), 0, new PartUploader() {
+            @Override
+            public void upload(UploadPart part) throws IOException {
+                int current = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), current));
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+                uploaded.incrementAndGet();
+            }
+        }, PROGRESSOR);
+
+        assertEquals(10, uploaded.get());
+        assertEquals(2, maxInFlight.get());
+    }
+
+    private static List<UploadPart> createParts(int count) {
+        List<UploadPart> parts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            parts.add(new UploadPart(i, Collections.<DataObject> emptyList(), 1));
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,107 @@
+package org.backmeup.worker.job.workdir;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorkDirectoryManagerTest {
+    private File workDir;
+    private WorkDirectoryManager manager;
+
+    @Before
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("workdir").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if (manager != null) {
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    public void testDirectoryOfSuccessfulJobIsRemoved() throws Exception {
+        manager = new WorkDirectoryManager(workDir, 0, TimeUnit.HOURS.toMillis(1));
+        File jobDir = createJobDirectory(1L);
+
+        manager.jobStarted(1L);
+        manager.jobFinished(1L, true);
+
+        assertTrue(awaitRemoval(jobDir));
+    }
+
+    @Test
+    public void testDirectoryOfFailedJobIsRetained() throws Exception {
+        manager = new WorkDirectoryManager(workDir, 0, TimeUnit.HOURS.toMillis(1));
+        File jobDir = createJobDirectory(2L);
+
+        manager.start();
+        manager.jobStarted(2L);
+        manager.jobFinished(2L, false);
+
+        assertFalse(awaitRemoval(jobDir));
+    }
+
+    @Test
+    public void testExpiredDirectoryIsRemovedAtStartup() throws Exception {
+        manager = new WorkDirectoryManager(workDir, 0, 0);
+        File jobDir = createJobDirectory(3L);
+        File otherFile = new File(workDir, "other");
+        assertTrue(otherFile.createNewFile());
+
+        manager.start();
+
+        assertTrue(awaitRemoval(jobDir));
+        assertTrue(otherFile.exists());
+    }
+
+    @Test
+    public void testClosingStopsWaitingForFreeSpace() throws Exception {
+        manager = new WorkDirectoryManager(workDir, Long.MAX_VALUE, 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> waiter = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return manager.awaitFreeSpace();
+                }
+            });
+            Thread.sleep(100);
+            assertFalse(waiter.isDone());
+
+            manager.close();
+
+            assertFalse(waiter.get(1, TimeUnit.SECONDS));
+            assertFalse(manager.awaitFreeSpace());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private File createJobDirectory(Long jobId) throws IOException {
+        File dir = new File(new File(workDir, jobId.toString()), "BMU_test");
+        assertTrue(dir.mkdirs());
+        Files.write(new File(dir, "data").toPath(), new byte[] { 1, 2, 3 });
+        return dir.getParentFile();
+    }
+
+    private static boolean awaitRemoval(File dir) throws InterruptedException {
+        for (int i = 0; i < 20 && dir.exists(); i++) {
+            Thread.sleep(50);
+        }
+        return !dir.exists();
+    }
+}
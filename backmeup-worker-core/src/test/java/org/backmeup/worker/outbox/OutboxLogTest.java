@@ -0,0 +1,106 @@
+package org.backmeup.worker.outbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.backmeup.worker.outbox.OutboxLog.Record;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutboxLogTest {
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempDirectory("outbox").resolve("outbox.log");
+    }
+
+    @Test
+    public void testRecordsAreReadInOrder() throws IOException {
+        OutboxLog log = OutboxLog.open(file, 4096);
+        assertTrue(log.append((byte) 1, 7L, bytes("first")));
+        assertTrue(log.append((byte) 2, 0L, bytes("second")));
+
+        Record record = log.peek();
+        assertEquals(1, record.getKind());
+        assertEquals(7L, record.getKey());
+        assertArrayEquals(bytes("first"), record.getPayload());
+        log.acknowledge(record);
+
+        assertArrayEquals(bytes("second"), log.peek().getPayload());
+        log.acknowledge(log.peek());
+        assertNull(log.peek());
+        assertEquals(0, log.getNoOfRecords());
+        log.close();
+    }
+
+    @Test
+    public void testUnacknowledgedRecordsSurviveReopen() throws IOException {
+        OutboxLog log = OutboxLog.open(file, 4096);
+        log.append((byte) 1, 1L, bytes("a"));
+        log.append((byte) 1, 2L, bytes("b"));
+        log.acknowledge(log.peek());
+        log.close();
+
+        OutboxLog reopened = OutboxLog.open(file, 4096);
+        assertEquals(1, reopened.getNoOfRecords());
+        assertEquals(2L, reopened.peek().getKey());
+        // Appends continue after the last record
+        reopened.append((byte) 1, 3L, bytes("c"));
+        assertEquals(2, reopened.getRecords().size());
+        reopened.close();
+    }
+
+    @Test
+    public void testCorruptRecordEndsLog() throws IOException {
+        OutboxLog log = OutboxLog.open(file, 4096);
+        log.append((byte) 1, 1L, bytes("valid"));
+        log.append((byte) 1, 2L, bytes("corrupt"));
+        log.close();
+
+        // Damage the payload of the second record
+        byte[] content = Files.readAllBytes(file);
+        int secondPayload = OutboxLog.HEADER_SIZE + OutboxLog.RECORD_HEADER_SIZE + 5 + OutboxLog.RECORD_HEADER_SIZE;
+        content[secondPayload] = (byte) ~content[secondPayload];
+        Files.write(file, content);
+
+        OutboxLog reopened = OutboxLog.open(file, 4096);
+        assertEquals(1, reopened.getNoOfRecords());
+        assertEquals(1L, reopened.peek().getKey());
+        reopened.close();
+    }
+
+    @Test
+    public void testFullLogIsCompacted() throws IOException {
+        int recordSize = OutboxLog.RECORD_HEADER_SIZE + 100;
+        OutboxLog log = OutboxLog.open(file, OutboxLog.HEADER_SIZE + 3 * recordSize);
+        byte[] payload = new byte[100];
+        assertTrue(log.append((byte) 1, 1L, payload));
+        assertTrue(log.append((byte) 1, 2L, payload));
+        assertTrue(log.append((byte) 1, 3L, payload));
+        assertFalse(log.append((byte) 1, 4L, payload));
+
+        log.acknowledge(log.peek());
+        assertTrue(log.append((byte) 1, 4L, payload));
+        assertEquals(3, log.getNoOfRecords());
+        assertEquals(2L, log.peek().getKey());
+        log.close();
+
+        OutboxLog reopened = OutboxLog.open(file, OutboxLog.HEADER_SIZE + 3 * recordSize);
+        assertEquals(3, reopened.getNoOfRecords());
+        assertEquals(4L, reopened.getRecords().get(2).getKey());
+        reopened.close();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
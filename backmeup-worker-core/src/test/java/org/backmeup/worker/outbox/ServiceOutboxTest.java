@@ -0,0 +1,138 @@
+package org.backmeup.worker.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import org.backmeup.model.dto.BackupJobExecutionDTO;
+import org.backmeup.model.exceptions.BackMeUpException;
+import org.backmeup.worker.service.CircuitBreaker.State;
+import org.backmeup.worker.service.FakeBackmeupService;
+import org.backmeup.worker.service.ResilientBackmeupService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServiceOutboxTest {
+    private static final String UPDATE = "updateBackupJobExecution";
+
+    private File dir;
+    private FakeBackmeupService service;
+    private ServiceOutbox outbox;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("outbox").toFile();
+        service = new FakeBackmeupService();
+    }
+
+    @After
+    public void tearDown() {
+        if (outbox != null) {
+            outbox.shutdown();
+        }
+    }
+
+    @Test
+    public void testUpdatesAreKeptWhileServiceIsUnreachable() throws InterruptedException {
+        service.failAlways(UPDATE, new BackMeUpException(new IOException("Connection refused")));
+        outbox = new ServiceOutbox(service.getService(), dir, 4096, 10, 2);
+        assertTrue(outbox.addStatusUpdate(jobExecution(1L)));
+        outbox.start();
+
+        awaitCalls(UPDATE, 5);
+        assertEquals(1, outbox.getNoOfPendingUpdates());
+        assertTrue(outbox.hasPendingUpdates(1L));
+
+        service.failAlways(UPDATE, null);
+        awaitPendingUpdates(0);
+        assertFalse(outbox.hasPendingUpdates(1L));
+        assertFalse(new File(dir, "outbox.rejected").exists());
+    }
+
+    @Test
+    public void testRejectedUpdateIsMovedAside() throws InterruptedException, IOException {
+        for (int i = 0; i < 3; i++) {
+            service.failNext(UPDATE, new BackMeUpException("Invalid job status"));
+        }
+        outbox = new ServiceOutbox(service.getService(), dir, 4096, 10, 3);
+        assertTrue(outbox.addStatusUpdate(jobExecution(1L)));
+        assertTrue(outbox.addStatusUpdate(jobExecution(2L)));
+        outbox.start();
+
+        awaitPendingUpdates(0);
+        List<Object[]> calls = service.getCalls(UPDATE);
+        assertEquals(4, calls.size());
+        assertEquals(Long.valueOf(2L), ((BackupJobExecutionDTO) calls.get(3)[0]).getId());
+        assertFalse(outbox.hasPendingUpdates(1L));
+
+        List<String> rejected = Files.readAllLines(new File(dir, "outbox.rejected").toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, rejected.size());
+        assertTrue(rejected.get(0).startsWith("1 1 "));
+    }
+
+    @Test
+    public void testUpdatesAreKeptWhileCircuitIsOpen() throws InterruptedException {
+        service.failAlways(UPDATE, new BackMeUpException(new IOException("Connection refused")));
+        ResilientBackmeupService resilience = new ResilientBackmeupService(service.getService(), 1, 60000, 0,
+                Collections.<String> emptySet());
+        try {
+            outbox = new ServiceOutbox(resilience.getService(), dir, 4096, 10, 2);
+            assertTrue(outbox.addStatusUpdate(jobExecution(1L)));
+            outbox.start();
+
+            // The first call opens the circuit, later calls are rejected
+            // without reaching the service
+            awaitCalls(UPDATE, 1);
+            Thread.sleep(200);
+            assertEquals(State.OPEN, resilience.getCircuitBreaker().getState());
+            assertEquals(1, service.getNoOfCalls(UPDATE));
+            assertEquals(1, outbox.getNoOfPendingUpdates());
+            assertTrue(outbox.hasPendingUpdates(1L));
+            assertFalse(new File(dir, "outbox.rejected").exists());
+        } finally {
+            resilience.shutdown();
+        }
+    }
+
+    @Test
+    public void testPendingUpdatesSurviveRestart() {
+        service.failAlways(UPDATE, new BackMeUpException(new IOException("Connection refused")));
+        ServiceOutbox first = new ServiceOutbox(service.getService(), dir, 4096, 10, 2);
+        assertTrue(first.addStatusUpdate(jobExecution(1L)));
+        first.shutdown();
+
+        outbox = new ServiceOutbox(service.getService(), dir, 4096, 10, 2);
+        assertEquals(1, outbox.getNoOfPendingUpdates());
+        assertTrue(outbox.hasPendingUpdates(1L));
+    }
+
+    private static BackupJobExecutionDTO jobExecution(Long id) {
+        BackupJobExecutionDTO jobExecution = new BackupJobExecutionDTO();
+        jobExecution.setId(id);
+        return jobExecution;
+    }
+
+    private void awaitCalls(String method, int calls) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getNoOfCalls(method) < calls && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(service.getNoOfCalls(method) >= calls);
+    }
+
+    private void awaitPendingUpdates(int updates) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (outbox.getNoOfPendingUpdates() != updates && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(updates, outbox.getNoOfPendingUpdates());
+    }
+}
@@ -0,0 +1,69 @@
+package org.backmeup.worker.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.backmeup.worker.service.CircuitBreaker.State;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 60000);
+
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+
+        breaker.recordFailure();
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void testSuccessfulTrialClosesCircuit() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 10);
+        breaker.recordFailure();
+        Thread.sleep(20);
+
+        assertTrue(breaker.allowRequest());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        // Only one trial at a time
+        assertFalse(breaker.allowRequest());
+
+        breaker.recordSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertEquals(3, breaker.getNoOfStateChanges());
+    }
+
+    @Test
+    public void testFailedTrialReopensCircuit() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 10);
+        breaker.recordFailure();
+        Thread.sleep(20);
+
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void testCancelledTrialAllowsAnotherTrial() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 10);
+        breaker.recordFailure();
+        Thread.sleep(20);
+
+        assertTrue(breaker.allowRequest());
+        breaker.recordCancelled();
+        assertTrue(breaker.allowRequest());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+    }
+}
@@ -0,0 +1,94 @@
+package org.backmeup.worker.service;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import org.backmeup.service.client.BackmeupService;
+
+/**
+ * Records the calls to the backmeup service. Calls return null unless a
+ * result is set and may be made to fail.
+ */
+public class FakeBackmeupService implements InvocationHandler {
+    private final BackmeupService service;
+    private final Map<String, List<Object[]>> calls = new HashMap<>();
+    private final Map<String, Queue<RuntimeException>> failures = new HashMap<>();
+    private final Map<String, RuntimeException> permanentFailures = new HashMap<>();
+    private final Map<String, Object> results = new HashMap<>();
+
+    public FakeBackmeupService() {
+        this.service = (BackmeupService) Proxy.newProxyInstance(BackmeupService.class.getClassLoader(),
+                new Class<?>[] { BackmeupService.class }, this);
+    }
+
+    public BackmeupService getService() {
+        return this.service;
+    }
+
+    public synchronized List<Object[]> getCalls(String method) {
+        List<Object[]> methodCalls = this.calls.get(method);
+        return methodCalls != null ? new ArrayList<>(methodCalls) : Collections.<Object[]> emptyList();
+    }
+
+    public synchronized int getNoOfCalls(String method) {
+        return getCalls(method).size();
+    }
+
+    /**
+     * The next call of the method fails with the exception.
+     */
+    public synchronized void failNext(String method, RuntimeException e) {
+        if (!this.failures.containsKey(method)) {
+            this.failures.put(method, new LinkedList<RuntimeException>());
+        }
+        this.failures.get(method).add(e);
+    }
+
+    /**
+     * All calls of the method fail with the exception, null to succeed again.
+     */
+    public synchronized void failAlways(String method, RuntimeException e) {
+        this.permanentFailures.put(method, e);
+    }
+
+    public synchronized void setResult(String method, Object result) {
+        this.results.put(method, result);
+    }
+
+    @Override
+    public synchronized Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            default:
+                return "FakeBackmeupService";
+            }
+        }
+
+        String name = method.getName();
+        if (!this.calls.containsKey(name)) {
+            this.calls.put(name, new ArrayList<Object[]>());
+        }
+        this.calls.get(name).add(args != null ? args.clone() : new Object[0]);
+
+        Queue<RuntimeException> next = this.failures.get(name);
+        if (next != null && !next.isEmpty()) {
+            throw next.poll();
+        }
+        if (this.permanentFailures.get(name) != null) {
+            throw this.permanentFailures.get(name);
+        }
+        return this.results.get(name);
+    }
+}
@@ -0,0 +1,113 @@
+package org.backmeup.worker.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.backmeup.model.exceptions.BackMeUpException;
+import org.backmeup.service.client.BackmeupService;
+import org.backmeup.worker.WorkerException;
+import org.backmeup.worker.service.CircuitBreaker.State;
+import org.junit.After;
+import org.junit.Test;
+
+public class ResilientBackmeupServiceTest {
+    private ResilientBackmeupService resilience;
+
+    @After
+    public void tearDown() {
+        if (resilience != null) {
+            resilience.shutdown();
+        }
+    }
+
+    @Test
+    public void testTransportFailuresOpenCircuit() {
+        FakeBackmeupService fake = new FakeBackmeupService();
+        fake.failAlways("addWorkerMetrics", new BackMeUpException(new SocketTimeoutException("Read timed out")));
+        resilience = new ResilientBackmeupService(fake.getService(), 2, 60000, 0, Collections.<String> emptySet());
+
+        callAndExpectFailure(resilience.getService());
+        callAndExpectFailure(resilience.getService());
+        assertEquals(State.OPEN, resilience.getCircuitBreaker().getState());
+
+        // Rejected without calling the service
+        try {
+            resilience.getService().addWorkerMetrics(null);
+            fail("Call should have been rejected");
+        } catch (WorkerException e) {
+            // expected
+        }
+        assertEquals(2, fake.getNoOfCalls("addWorkerMetrics"));
+    }
+
+    @Test
+    public void testErrorsReturnedByServiceDoNotOpenCircuit() {
+        FakeBackmeupService fake = new FakeBackmeupService();
+        fake.failAlways("addWorkerMetrics", new BackMeUpException("Job execution not found"));
+        resilience = new ResilientBackmeupService(fake.getService(), 2, 60000, 0, Collections.<String> emptySet());
+
+        for (int i = 0; i < 5; i++) {
+            callAndExpectFailure(resilience.getService());
+        }
+        assertEquals(State.CLOSED, resilience.getCircuitBreaker().getState());
+        assertEquals(5, fake.getNoOfCalls("addWorkerMetrics"));
+    }
+
+    @Test
+    public void testOnlyListedMethodsAreHedged() {
+        SlowService slow = new SlowService(200);
+        resilience = new ResilientBackmeupService(slow.getService(), 5, 60000, 20, Collections.<String> emptySet());
+        resilience.getService().addWorkerMetrics(null);
+        assertEquals(1, slow.calls.get());
+
+        resilience.shutdown();
+        slow = new SlowService(200);
+        resilience = new ResilientBackmeupService(slow.getService(), 5, 60000, 20,
+                Collections.singleton("addWorkerMetrics"));
+        resilience.getService().addWorkerMetrics(null);
+        assertEquals(2, slow.calls.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownHedgedMethodIsRejected() {
+        new ResilientBackmeupService(new FakeBackmeupService().getService(), 5, 60000, 20,
+                Collections.singleton("getJob"));
+    }
+
+    private static void callAndExpectFailure(BackmeupService service) {
+        try {
+            service.addWorkerMetrics(null);
+            fail("Call should have failed");
+        } catch (BackMeUpException e) {
+            // expected
+        }
+    }
+
+    private static class SlowService implements InvocationHandler {
+        private final long delayMillis;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        SlowService(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        BackmeupService getService() {
+            return (BackmeupService) Proxy.newProxyInstance(BackmeupService.class.getClassLoader(),
+                    new Class<?>[] { BackmeupService.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws InterruptedException {
+            this.calls.incrementAndGet();
+            Thread.sleep(this.delayMillis);
+            return null;
+        }
+    }
+}